@@ -0,0 +1,95 @@
+package pensieve.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Minimal stand-in for a JMH run: timed warmup iterations, then timed measurement
+ * iterations, reporting average time per operation with a 99.9% error margin.
+ */
+public class BenchRunner {
+	private int warmupIterations = 5;
+	private int measurementIterations = 10;
+	private long iterationMillis = 200;
+
+	public static volatile long sink; // results end up here, so they count as used
+
+	public void setWarmupIterations(int warmupIterations) {
+		this.warmupIterations = warmupIterations;
+	}
+
+	public void setMeasurementIterations(int measurementIterations) {
+		this.measurementIterations = measurementIterations;
+	}
+
+	public void setIterationMillis(long iterationMillis) {
+		this.iterationMillis = iterationMillis;
+	}
+
+	/** Run every benchmark whose name contains one of the filters (all if there are none). */
+	public void runAll(List<Benchmark> benchmarks, String[] filters) throws Exception {
+		List<Benchmark> selected = new ArrayList<Benchmark>();
+		for (Benchmark b : benchmarks) {
+			if (filters.length == 0)
+				selected.add(b);
+			for (String f : filters) {
+				if (b.getName().contains(f)) {
+					selected.add(b);
+					break;
+				}
+			}
+		}
+
+		int width = 9;
+		for (Benchmark b : selected)
+			width = Math.max(width, b.getName().length());
+		System.out.println(String.format(Locale.US, "%-" + width + "s  %4s  %12s   %10s  %s", "Benchmark", "Cnt", "Score", "Error", "Units"));
+		for (Benchmark b : selected) {
+			double[] r = measure(b);
+			System.out.println(String.format(Locale.US, "%-" + width + "s  %4d  %12.3f +- %10.3f  us/op", b.getName(), measurementIterations, r[0] / 1000, r[1] / 1000));
+		}
+	}
+
+	/** Returns {mean, error} in ns/op. */
+	public double[] measure(Benchmark b) throws Exception {
+		b.setup();
+		try {
+			int ops = calibrate(b);
+			for (int i = 0; i < warmupIterations; i++)
+				time(b, ops);
+			double[] samples = new double[measurementIterations];
+			for (int i = 0; i < measurementIterations; i++)
+				samples[i] = (double) time(b, ops) / ops;
+
+			double mean = 0;
+			for (double s : samples)
+				mean += s;
+			mean /= samples.length;
+			double var = 0;
+			for (double s : samples)
+				var += (s - mean) * (s - mean);
+			double stddev = samples.length > 1 ? Math.sqrt(var / (samples.length - 1)) : 0;
+			double error = 3.291 * stddev / Math.sqrt(samples.length); // 99.9% (normal approximation)
+			return new double[] { mean, error };
+		} finally {
+			b.teardown();
+		}
+	}
+
+	/** Find an op count that takes about iterationMillis. */
+	private int calibrate(Benchmark b) throws Exception {
+		int ops = 1;
+		long elapsed;
+		while ((elapsed = time(b, ops)) < 20000000L && ops < (1 << 28))
+			ops *= 2;
+		long target = iterationMillis * 1000000L;
+		return (int) Math.max(1, Math.min(Integer.MAX_VALUE, ops * target / Math.max(1, elapsed)));
+	}
+
+	private long time(Benchmark b, int ops) throws Exception {
+		long start = System.nanoTime();
+		sink += b.run(ops);
+		return System.nanoTime() - start;
+	}
+}
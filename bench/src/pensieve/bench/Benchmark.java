@@ -0,0 +1,28 @@
+package pensieve.bench;
+
+/**
+ * One measured operation. Subclasses do their allocation in setup() and return something
+ * derived from their results from run(), so the JIT can't discard the work.
+ */
+public abstract class Benchmark {
+	private final String name;
+
+	protected Benchmark(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/** Prepare inputs; called once before warmup. */
+	public void setup() throws Exception {
+	}
+
+	/** Release resources; called once after measurement. */
+	public void teardown() throws Exception {
+	}
+
+	/** Perform the operation ops times. */
+	public abstract long run(int ops) throws Exception;
+}
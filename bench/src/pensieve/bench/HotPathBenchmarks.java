@@ -0,0 +1,490 @@
+package pensieve.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import pensieve.android.AudioCodec;
+import pensieve.android.ByteBufferPool;
+import pensieve.android.FlacCodec;
+import pensieve.android.FrameChangeDetector;
+import pensieve.android.ImuBatch;
+import pensieve.android.ImuRecorder;
+import pensieve.android.FramedMessage;
+import pensieve.android.ImaAdpcmCodec;
+import pensieve.android.LatencyHistogram;
+import pensieve.android.LumaView;
+import pensieve.android.MathUtils;
+import pensieve.android.MessageFramer;
+import pensieve.android.Nv21Converter;
+import pensieve.android.Nv21Frames;
+import pensieve.android.Pcm16Codec;
+import pensieve.android.PcmRingBuffer;
+import pensieve.android.SttReply;
+import pensieve.android.SttReplyDecoder;
+
+/**
+ * Benchmarks for the client's JVM-runnable hot paths: NV21 to RGB conversion, downscaling, grayscale and change detection, STT request
+ * framing, audio encoding, STT reply decoding, the geometry helpers, latency recording and IMU batching. Arguments are name filters, e.g. "nv21" or "framing".
+ */
+public class HotPathBenchmarks {
+	private static final int[][] RESOLUTIONS = { { 320, 240 }, { 640, 480 }, { 1280, 720 } };
+	private static final int AUDIO_CHUNK_BYTES = 16000 * 2 * 2; // 2 s of 16 kHz 16-bit mono
+	static final String TRANSCRIPT_REPLY = "{\"status\": 200, \"result\": [{\"alternative\": [{\"transcript\": \"hello there how are you doing today\", \"confidence\": 0.91}, {\"transcript\": \"hello there how are you going today\"}], \"final\": true}], \"result_index\": 0}";
+	static final String STATUS_REPLY = "{\"status\": 200}";
+	private static final byte[] STT_HEADER = "{\"type\":\"stt\",\"num_bytes\":64000,\"sample_rate\":16000,\"format\":\"pcm16\",\"channels\":1}".getBytes();
+
+	public static void main(String[] args) throws Exception {
+		new BenchRunner().runAll(benchmarks(), args);
+		System.exit(0); // executor threads
+	}
+
+	public static List<Benchmark> benchmarks() {
+		List<Benchmark> list = new ArrayList<Benchmark>();
+		for (int[] r : RESOLUTIONS)
+			addConversionBenchmarks(list, r[0], r[1]);
+		for (int[] r : RESOLUTIONS)
+			addScaleBenchmarks(list, r[0], r[1]);
+		addFramingBenchmarks(list);
+		addCodecBenchmark(list, new Pcm16Codec());
+		addCodecBenchmark(list, new ImaAdpcmCodec());
+		addCodecBenchmark(list, new FlacCodec(16000));
+		addReplyBenchmarks(list);
+		addGeometryBenchmarks(list);
+		addMetricsBenchmarks(list);
+		addImuBenchmarks(list);
+		return list;
+	}
+
+	private static byte[] randomNV21(int width, int height) {
+		byte[] image = new byte[width * height * 3 / 2];
+		new Random(42).nextBytes(image);
+		return image;
+	}
+
+	private static void addConversionBenchmarks(List<Benchmark> list, final int width, final int height) {
+		final String size = width + "x" + height;
+		list.add(new Benchmark("nv21.rgb.float_legacy." + size) {
+			byte[] image;
+
+			public void setup() {
+				image = randomNV21(width, height);
+			}
+
+			public long run(int ops) {
+				long acc = 0;
+				for (int i = 0; i < ops; i++)
+					acc += LegacyCode.convertImage_NV21_to_RGB(image, width, height)[i % 16];
+				return acc;
+			}
+		});
+		list.add(new Benchmark("nv21.rgb.fixed_alloc." + size) {
+			byte[] image;
+
+			public void setup() {
+				image = randomNV21(width, height);
+			}
+
+			public long run(int ops) {
+				long acc = 0;
+				for (int i = 0; i < ops; i++)
+					acc += Nv21Converter.toRGB(image, width, height, null)[i % 16];
+				return acc;
+			}
+		});
+		list.add(new Benchmark("nv21.rgb.fixed_reuse." + size) {
+			byte[] image, out;
+
+			public void setup() {
+				image = randomNV21(width, height);
+				out = new byte[width * height * 3];
+			}
+
+			public long run(int ops) {
+				long acc = 0;
+				for (int i = 0; i < ops; i++)
+					acc += Nv21Converter.toRGB(image, width, height, out)[i % 16];
+				return acc;
+			}
+		});
+		list.add(new Benchmark("nv21.rgb.fixed_banded4." + size) {
+			byte[] image, out;
+			ExecutorService executor;
+
+			public void setup() {
+				image = randomNV21(width, height);
+				out = new byte[width * height * 3];
+				executor = Executors.newFixedThreadPool(3);
+			}
+
+			public void teardown() {
+				executor.shutdown();
+			}
+
+			public long run(int ops) {
+				long acc = 0;
+				for (int i = 0; i < ops; i++)
+					acc += Nv21Converter.toRGB(image, width, height, out, executor, 4)[i % 16];
+				return acc;
+			}
+		});
+	}
+
+	private static void addScaleBenchmarks(List<Benchmark> list, final int width, final int height) {
+		final String size = width + "x" + height;
+		for (final int factor : new int[] { 2, 4 }) {
+			list.add(new Benchmark("nv21.scale." + factor + "x." + size) {
+				byte[] image, out;
+
+				public void setup() {
+					image = randomNV21(width, height);
+					out = new byte[Nv21Converter.getNV21Size(Nv21Frames.getScaledSize(width, factor), Nv21Frames.getScaledSize(height, factor))];
+				}
+
+				public long run(int ops) {
+					long acc = 0;
+					for (int i = 0; i < ops; i++) {
+						Nv21Frames.cropAndScale(image, width, height, 0, 0, width, height, factor, out);
+						acc += out[i % 16];
+					}
+					return acc;
+				}
+			});
+			list.add(new Benchmark("nv21.gray." + factor + "x." + size) {
+				byte[] image, out;
+
+				public void setup() {
+					image = randomNV21(width, height);
+					out = new byte[(width / factor) * (height / factor)];
+				}
+
+				public long run(int ops) {
+					long acc = 0;
+					for (int i = 0; i < ops; i++) {
+						LumaView.of(image, width, height).downsample(factor, out, 0);
+						acc += out[i % 16];
+					}
+					return acc;
+				}
+			});
+		}
+		list.add(new Benchmark("nv21.change." + size) {
+			byte[] image;
+			FrameChangeDetector detector;
+
+			public void setup() {
+				image = randomNV21(width, height);
+				detector = new FrameChangeDetector(Float.MAX_VALUE, 0); // compares every frame, never sends
+				detector.shouldSend(randomNV21(width, height), width, height, 0);
+				detector.onSent(width, height, 0);
+			}
+
+			public long run(int ops) {
+				long acc = 0;
+				for (int i = 0; i < ops; i++)
+					acc += detector.shouldSend(image, width, height, i) ? 1 : 0;
+				return acc;
+			}
+		});
+	}
+
+	private static void addFramingBenchmarks(List<Benchmark> list) {
+		list.add(new Benchmark("framing.stt.concat_legacy") {
+			byte[] audio;
+
+			public void setup() {
+				audio = new byte[AUDIO_CHUNK_BYTES];
+			}
+
+			public long run(int ops) throws Exception {
+				long acc = 0;
+				for (int i = 0; i < ops; i++) {
+					byte[] bytes = audio.clone(); // stands in for readFileToByteArray()
+					acc += LegacyCode.combineHeaderAndData(STT_HEADER, (byte) '\n', bytes).length;
+				}
+				return acc;
+			}
+		});
+		addFramerBenchmark(list, "framing.stt.multipart_pooled", false);
+		addFramerBenchmark(list, "framing.stt.combined_pooled", true);
+	}
+
+	private static void addFramerBenchmark(List<Benchmark> list, String name, final boolean combined) {
+		list.add(new Benchmark(name) {
+			PcmRingBuffer ring;
+			MessageFramer framer;
+
+			public void setup() {
+				ring = new PcmRingBuffer(AUDIO_CHUNK_BYTES * 4);
+				ring.write(new byte[AUDIO_CHUNK_BYTES * 2], 0, AUDIO_CHUNK_BYTES * 2);
+				framer = new MessageFramer(new ByteBufferPool(8), combined, (byte) '\n');
+			}
+
+			public long run(int ops) {
+				long acc = 0;
+				for (int i = 0; i < ops; i++) {
+					FramedMessage message = framer.frame(STT_HEADER, AUDIO_CHUNK_BYTES);
+					acc += ring.read(AUDIO_CHUNK_BYTES, message.getPayloadArray(), message.getPayloadOffset(), AUDIO_CHUNK_BYTES);
+					message.release();
+				}
+				return acc;
+			}
+		});
+	}
+
+	/** Tones plus noise, so lossless coding has something to do. */
+	private static byte[] syntheticSpeech(int bytes) {
+		byte[] pcm = new byte[bytes];
+		Random random = new Random(42);
+		for (int i = 0; i < bytes / 2; i++) {
+			double t = i / 16000.0;
+			int s = (int) (8000 * Math.sin(2 * Math.PI * 220 * t) * Math.sin(2 * Math.PI * 1.5 * t) + 3000 * Math.sin(2 * Math.PI * 1330 * t) + random.nextGaussian() * 200);
+			pcm[2 * i] = (byte) s;
+			pcm[2 * i + 1] = (byte) (s >> 8);
+		}
+		return pcm;
+	}
+
+	private static void addCodecBenchmark(List<Benchmark> list, final AudioCodec codec) {
+		list.add(new Benchmark("codec.encode." + codec.getName()) {
+			byte[] audio, out;
+
+			public void setup() {
+				audio = syntheticSpeech(AUDIO_CHUNK_BYTES);
+				out = new byte[codec.getMaxEncodedSize(AUDIO_CHUNK_BYTES)];
+			}
+
+			public long run(int ops) {
+				long acc = 0;
+				for (int i = 0; i < ops; i++)
+					acc += codec.encode(audio, 0, audio.length, out, 0);
+				return acc;
+			}
+		});
+	}
+
+	private static void addReplyBenchmarks(List<Benchmark> list) {
+		addDecoderBenchmark(list, "stt.reply.decoder.transcript", TRANSCRIPT_REPLY);
+		addDecoderBenchmark(list, "stt.reply.decoder.status_only", STATUS_REPLY);
+	}
+
+	private static void addDecoderBenchmark(List<Benchmark> list, String name, final String reply) {
+		list.add(new Benchmark(name) {
+			SttReplyDecoder decoder = new SttReplyDecoder(false);
+			SttReply out = new SttReply();
+
+			public long run(int ops) {
+				long acc = 0;
+				for (int i = 0; i < ops; i++) {
+					decoder.decode(reply, out);
+					acc += out.hasTranscript() ? out.getTranscript().length() : out.getStatus();
+				}
+				return acc;
+			}
+		});
+	}
+
+	private static void addGeometryBenchmarks(List<Benchmark> list) {
+		final int n = 1024;
+		final double[] lat = new double[n], lon = new double[n];
+		final float[] headings = new float[n];
+		Random random = new Random(7);
+		for (int i = 0; i < n; i++) {
+			lat[i] = 35.77 + random.nextGaussian() * 0.01; // around Raleigh, NC
+			lon[i] = -78.67 + random.nextGaussian() * 0.01;
+			headings[i] = random.nextFloat() * 720 - 360;
+		}
+
+		list.add(new Benchmark("geo.getDistance") {
+			public long run(int ops) {
+				float acc = 0;
+				for (int i = 0; i < ops; i++) {
+					int j = i & (n - 1), k = (i + 1) & (n - 1);
+					acc += MathUtils.getDistance(lat[j], lon[j], lat[k], lon[k]);
+				}
+				return (long) acc;
+			}
+		});
+		list.add(new Benchmark("geo.getBearing") {
+			public long run(int ops) {
+				float acc = 0;
+				for (int i = 0; i < ops; i++) {
+					int j = i & (n - 1), k = (i + 1) & (n - 1);
+					acc += MathUtils.getBearing(lat[j], lon[j], lat[k], lon[k]);
+				}
+				return (long) acc;
+			}
+		});
+		list.add(new Benchmark("geo.getHalfWindIndex") {
+			public long run(int ops) {
+				long acc = 0;
+				for (int i = 0; i < ops; i++)
+					acc += MathUtils.getHalfWindIndex(headings[i & (n - 1)]);
+				return acc;
+			}
+		});
+
+		// * Distance and bearing from one point, as LocationTrail measures offered fixes from the last one kept
+		list.add(new Benchmark("geo.leg.pairwise") {
+			public long run(int ops) {
+				float acc = 0;
+				for (int i = 0; i < ops; i++) {
+					int k = i & (n - 1);
+					acc += MathUtils.getDistance(lat[0], lon[0], lat[k], lon[k]) + MathUtils.getBearing(lat[0], lon[0], lat[k], lon[k]);
+				}
+				return (long) acc;
+			}
+		});
+		list.add(new Benchmark("geo.leg.from_origin") {
+			final double[] origin = new double[MathUtils.ORIGIN_SIZE];
+			final float[] leg = new float[2];
+
+			public void setup() {
+				MathUtils.setOrigin(lat[0], lon[0], origin);
+			}
+
+			public long run(int ops) {
+				float acc = 0;
+				for (int i = 0; i < ops; i++) {
+					int k = i & (n - 1);
+					MathUtils.getLegFrom(origin, lat[k], lon[k], leg);
+					acc += leg[0] + leg[1];
+				}
+				return (long) acc;
+			}
+		});
+
+		// * A whole trail per op: n - 1 legs, one pair at a time and batched
+		final float[] legs = new float[n];
+		list.add(new Benchmark("geo.trail.distances_pairwise") {
+			public long run(int ops) {
+				float acc = 0;
+				for (int i = 0; i < ops; i++) {
+					for (int j = 1; j < n; j++)
+						legs[j - 1] = MathUtils.getDistance(lat[j - 1], lon[j - 1], lat[j], lon[j]);
+					acc += legs[i % (n - 1)];
+				}
+				return (long) acc;
+			}
+		});
+		list.add(new Benchmark("geo.trail.distances_batch") {
+			public long run(int ops) {
+				float acc = 0;
+				for (int i = 0; i < ops; i++) {
+					MathUtils.getDistances(lat, lon, 0, n, legs);
+					acc += legs[i % (n - 1)];
+				}
+				return (long) acc;
+			}
+		});
+		list.add(new Benchmark("geo.trail.bearings_pairwise") {
+			public long run(int ops) {
+				float acc = 0;
+				for (int i = 0; i < ops; i++) {
+					for (int j = 1; j < n; j++)
+						legs[j - 1] = MathUtils.getBearing(lat[j - 1], lon[j - 1], lat[j], lon[j]);
+					acc += legs[i % (n - 1)];
+				}
+				return (long) acc;
+			}
+		});
+		list.add(new Benchmark("geo.trail.bearings_batch") {
+			public long run(int ops) {
+				float acc = 0;
+				for (int i = 0; i < ops; i++) {
+					MathUtils.getBearings(lat, lon, 0, n, legs);
+					acc += legs[i % (n - 1)];
+				}
+				return (long) acc;
+			}
+		});
+	}
+
+	/** Verbatim copies of replaced client code, kept as baselines. */
+	static class LegacyCode {
+		/** CameraManager.convertImage_NV21_to_RGB before the fixed-point converter. */
+		static byte[] convertImage_NV21_to_RGB(byte[] imageNV21, int width, int height) {
+			final int imageSize = width * height;
+			final int ii = 0;
+			final int ij = 0;
+			final int di = +1;
+			final int dj = +1;
+
+			byte[] imageRGB = new byte[imageSize * 3];
+			int k = 0;
+			for (int i = 0, ci = ii; i < height; ++i, ci += di) {
+				for (int j = 0, cj = ij; j < width; ++j, cj += dj) {
+					int y = (0xff & ((int) imageNV21[ci * width + cj]));
+					int v = (0xff & ((int) imageNV21[imageSize + (ci >> 1) * width + (cj & ~1) + 0]));
+					int u = (0xff & ((int) imageNV21[imageSize + (ci >> 1) * width + (cj & ~1) + 1]));
+					y = y < 16 ? 16 : y;
+
+					int r = (int) (1.164f * (y - 16) + 1.596f * (v - 128));
+					int g = (int) (1.164f * (y - 16) - 0.813f * (v - 128) - 0.391f * (u - 128));
+					int b = (int) (1.164f * (y - 16) + 2.018f * (u - 128));
+
+					r = r < 0 ? 0 : (r > 255 ? 255 : r);
+					g = g < 0 ? 0 : (g > 255 ? 255 : g);
+					b = b < 0 ? 0 : (b > 255 ? 255 : b);
+
+					imageRGB[k++] = (byte) r;
+					imageRGB[k++] = (byte) g;
+					imageRGB[k++] = (byte) b;
+				}
+			}
+			return imageRGB;
+		}
+
+		/** Header + separator + data packet, as PostAudioSnippetThread built it. */
+		static byte[] combineHeaderAndData(byte[] header, byte separator, byte[] bytes) throws Exception {
+			ByteArrayOutputStream combinedRequestStream = new ByteArrayOutputStream( );
+			combinedRequestStream.write(header);
+			combinedRequestStream.write(separator);
+			combinedRequestStream.write(bytes);
+			return combinedRequestStream.toByteArray();
+		}
+	}
+
+	private static void addMetricsBenchmarks(List<Benchmark> list) {
+		list.add(new Benchmark("metrics.histogram.record") {
+			LatencyHistogram histogram;
+
+			public void setup() {
+				histogram = new LatencyHistogram();
+			}
+
+			public long run(int ops) {
+				for (int i = 0; i < ops; i++)
+					histogram.record((i * 37) & 0xfffff);
+				return histogram.snapshot().getCount();
+			}
+		});
+	}
+
+	/** One second of all three sensors at 100 Hz per op: recorded sample by sample, then batched. */
+	private static void addImuBenchmarks(List<Benchmark> list) {
+		list.add(new Benchmark("imu.record_and_batch.1s") {
+			ImuRecorder recorder = new ImuRecorder(128);
+			ImuBatch batch = new ImuBatch();
+
+			public long run(int ops) {
+				long acc = 0;
+				for (int i = 0; i < ops; i++) {
+					for (int j = 0; j < 100; j++) {
+						long t = (i * 100L + j) * 10000000L;
+						float bounce = (float) Math.sin(j * 0.1257); // 2 Hz
+						recorder.onSample(ImuRecorder.ACCELEROMETER, t, 0.1f * bounce, 9.81f + 1.5f * bounce, 0.3f * bounce);
+						recorder.onSample(ImuRecorder.GYROSCOPE, t, 0.01f * bounce, 0.1f, 0.05f * bounce);
+						recorder.onSample(ImuRecorder.MAGNETOMETER, t, 12 + bounce, -40, 16 - bounce);
+					}
+					batch.reset();
+					acc += recorder.drainTo(batch) + batch.getLength();
+				}
+				return acc;
+			}
+		});
+	}
+}
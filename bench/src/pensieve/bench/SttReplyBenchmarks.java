@@ -0,0 +1,61 @@
+package pensieve.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Baseline STT reply decoding through org.json, for comparison with the stt.reply.decoder
+ * benchmarks. org.json ships with Android, so on a plain JVM this needs the org.json jar on
+ * the classpath (see bench/README.md).
+ */
+public class SttReplyBenchmarks {
+	static final String TRANSCRIPT_REPLY = HotPathBenchmarks.TRANSCRIPT_REPLY;
+	static final String STATUS_REPLY = HotPathBenchmarks.STATUS_REPLY;
+
+	public static void main(String[] args) throws Exception {
+		new BenchRunner().runAll(benchmarks(), args);
+	}
+
+	public static List<Benchmark> benchmarks() {
+		List<Benchmark> list = new ArrayList<Benchmark>();
+		list.add(new Benchmark("stt.reply.jsonobject.transcript") {
+			public long run(int ops) {
+				long acc = 0;
+				for (int i = 0; i < ops; i++)
+					acc += extractTranscript(TRANSCRIPT_REPLY).length();
+				return acc;
+			}
+		});
+		list.add(new Benchmark("stt.reply.jsonobject.status_only") {
+			public long run(int ops) {
+				long acc = 0;
+				for (int i = 0; i < ops; i++)
+					acc += extractTranscript(STATUS_REPLY).length();
+				return acc;
+			}
+		});
+		return list;
+	}
+
+	/** The JSONObject walk SensorStreamActivity does per reply; "" if there is no transcript. */
+	static String extractTranscript(String reply) {
+		try {
+			JSONObject replyObj = new JSONObject(reply);
+			try {
+				JSONArray result = replyObj.getJSONArray("result");
+				JSONObject a = result.getJSONObject(0);
+				JSONArray alternative = a.getJSONArray("alternative");
+				JSONObject entry = alternative.getJSONObject(0);
+				return entry.getString("transcript");
+			} catch (JSONException e) {
+				return "status:" + replyObj.getInt("status");
+			}
+		} catch (JSONException e) {
+			return "";
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package pensieve.android;
+
+/**
+ * Picks the audio chunk length (which is also the upload cadence) from measured STT
+ * round trips, aiming for a target end-to-end transcript latency.
+ *
+ * The latency of the first word in a chunk is estimated as
+ *   chunk length + time queued behind outstanding requests + round trip,
+ * and the chunk length is steered towards target - queueing - round trip. It is never set
+ * below what the server can keep up with (one round trip per chunk, spread over the
+ * requests allowed in flight), grows while requests pile up or time out, moves at most
+ * maxStep per update, and stays within [minChunkMillis, maxChunkMillis].
+ */
+public class AdaptiveChunkScheduler {
+	private final int minChunkMillis, maxChunkMillis;
+	private int targetLatencyMillis;
+	private int concurrency = 1; // requests the transport keeps in flight
+	private float maxStep = 0.25f; // largest relative change per update
+	private float headroom = 1.2f; // keep the server below ~80% busy
+
+	private int chunkMillis;
+	private float rttEstimate = -1; // ms, smoothed
+	private int backlog = 0; // requests outstanding at the last observation
+	private long observations = 0, timeouts = 0;
+	private String decision = "initial";
+
+	public AdaptiveChunkScheduler(int initialChunkMillis, int minChunkMillis, int maxChunkMillis, int targetLatencyMillis) {
+		this.minChunkMillis = minChunkMillis;
+		this.maxChunkMillis = Math.max(minChunkMillis, maxChunkMillis);
+		this.targetLatencyMillis = targetLatencyMillis;
+		this.chunkMillis = clamp(initialChunkMillis);
+	}
+
+	public synchronized void setTargetLatencyMillis(int targetLatencyMillis) {
+		this.targetLatencyMillis = targetLatencyMillis;
+	}
+
+	/** How many requests may be in flight at once (1 for a blocking REQ socket). */
+	public synchronized void setConcurrency(int concurrency) {
+		this.concurrency = Math.max(1, concurrency);
+	}
+
+	/**
+	 * Record a completed request.
+	 *
+	 * @param rttMillis time from send to reply (ignored if timedOut)
+	 * @param outstanding requests still queued or in flight after this one
+	 * @param timedOut whether the request got no reply in time
+	 */
+	public synchronized void onRoundTrip(long rttMillis, int outstanding, boolean timedOut) {
+		observations++;
+		backlog = outstanding;
+		if (timedOut) {
+			timeouts++;
+			set((int) (chunkMillis * (1 + maxStep)), "timeout: backing off");
+			return;
+		}
+		rttEstimate = rttEstimate < 0 ? rttMillis : rttEstimate + (rttMillis - rttEstimate) / 4;
+
+		float queueDelay = backlog * rttEstimate / concurrency;
+		float desired = targetLatencyMillis - rttEstimate - queueDelay;
+		float floor = rttEstimate * headroom / concurrency;
+		if (backlog > concurrency)
+			floor = Math.max(floor, chunkMillis * (1 + maxStep)); // falling behind: fewer, longer requests
+		if (desired < floor)
+			set((int) floor, "server-bound: rtt " + (int) rttEstimate + " ms, backlog " + backlog);
+		else
+			set((int) desired, "latency-bound: rtt " + (int) rttEstimate + " ms, backlog " + backlog);
+	}
+
+	/** Current chunk length / send interval in milliseconds. */
+	public synchronized int getChunkMillis() {
+		return chunkMillis;
+	}
+
+	/** Smoothed round trip in milliseconds (-1 before the first reply). */
+	public synchronized int getRoundTripEstimate() {
+		return (int) rttEstimate;
+	}
+
+	public synchronized int getBacklog() {
+		return backlog;
+	}
+
+	/** Estimated worst-case latency from speech to transcript at the current settings. */
+	public synchronized int getEstimatedLatency() {
+		float rtt = Math.max(0, rttEstimate);
+		return (int) (chunkMillis + backlog * rtt / concurrency + rtt);
+	}
+
+	/**
+	 * How many queued chunks to pack into the next request, given the free request slots: one
+	 * (the lowest latency) while the link keeps up; more when a round trip is longer than the
+	 * audio the slots carry, so that capture rate is still met; and when chunks have backed
+	 * up, enough to spread the backlog over the free slots. Never more than queued or maxBatch.
+	 */
+	public synchronized int getBatchSize(int queued, int freeSlots, int maxBatch) {
+		int limit = Math.min(queued, maxBatch);
+		if (limit <= 1)
+			return 1;
+		int keepUp = rttEstimate > 0 ? (int) Math.ceil(rttEstimate / ((double) concurrency * chunkMillis)) : 1;
+		int spread = (queued + Math.max(1, freeSlots) - 1) / Math.max(1, freeSlots);
+		return Math.max(1, Math.min(limit, Math.max(keepUp, spread)));
+	}
+
+	/** Why the chunk length is what it is. */
+	public synchronized String getDecision() {
+		return decision;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "chunk: " + chunkMillis + " ms (" + decision + "), est. latency: " + getEstimatedLatency() + " ms, target: " + targetLatencyMillis
+				+ " ms, replies: " + observations + ", timeouts: " + timeouts;
+	}
+
+	private void set(int desired, String reason) {
+		int lower = (int) (chunkMillis * (1 - maxStep));
+		int upper = (int) (chunkMillis * (1 + maxStep));
+		chunkMillis = clamp(Math.max(lower, Math.min(upper, desired)));
+		decision = reason;
+	}
+
+	private int clamp(int millis) {
+		return Math.max(minChunkMillis, Math.min(maxChunkMillis, millis));
+	}
+}
@@ -0,0 +1,20 @@
+package pensieve.android;
+
+/** The device microphone, via a PcmCaptureThread. */
+public class AndroidAudioSource implements AudioSource {
+	private PcmCaptureThread captureThread = null;
+
+	@Override
+	public synchronized void start(PcmRingBuffer ring, int sampleRate) {
+		captureThread = new PcmCaptureThread(ring, sampleRate);
+		captureThread.start();
+	}
+
+	@Override
+	public synchronized void stop() {
+		if (captureThread != null) {
+			captureThread.stopCapture();
+			captureThread = null;
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package pensieve.android;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+/**
+ * Feeds the accelerometer, gyroscope and magnetometer into an ImuRecorder. Events are
+ * delivered on a thread of their own, so a high sampling rate doesn't load the UI thread, and
+ * are copied straight into the recorder's rings (the platform reuses its SensorEvents).
+ */
+public class AndroidImuSource implements SensorEventListener {
+	private static final String TAG = "AndroidImuSource";
+	private static final int[] SENSOR_TYPES = { Sensor.TYPE_ACCELEROMETER, Sensor.TYPE_GYROSCOPE, Sensor.TYPE_MAGNETIC_FIELD };
+
+	private final SensorManager sensorManager;
+	private final ImuRecorder recorder;
+	private HandlerThread thread = null;
+
+	public AndroidImuSource(Context context, ImuRecorder recorder) {
+		sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+		this.recorder = recorder;
+	}
+
+	/** Start sampling every sensor available, about every samplingPeriodMicros (or a SensorManager.SENSOR_DELAY_* constant). */
+	public synchronized void start(int samplingPeriodMicros) {
+		if (thread != null || sensorManager == null)
+			return;
+		thread = new HandlerThread("ImuSource");
+		thread.start();
+		Handler handler = new Handler(thread.getLooper());
+		for (int type : SENSOR_TYPES) {
+			Sensor sensor = sensorManager.getDefaultSensor(type);
+			if (sensor == null)
+				Log.w(TAG, "start(): No sensor of type " + type);
+			else
+				sensorManager.registerListener(this, sensor, samplingPeriodMicros, handler);
+		}
+		Log.d(TAG, "Sampling every " + samplingPeriodMicros + " us");
+	}
+
+	public synchronized void stop() {
+		if (thread == null)
+			return;
+		sensorManager.unregisterListener(this);
+		thread.quit();
+		thread = null;
+		Log.d(TAG, "Stopped; " + recorder);
+	}
+
+	@Override
+	public void onSensorChanged(SensorEvent event) {
+		int type = event.sensor.getType(), sensor;
+		if (type == Sensor.TYPE_ACCELEROMETER)
+			sensor = ImuRecorder.ACCELEROMETER;
+		else if (type == Sensor.TYPE_GYROSCOPE)
+			sensor = ImuRecorder.GYROSCOPE;
+		else if (type == Sensor.TYPE_MAGNETIC_FIELD)
+			sensor = ImuRecorder.MAGNETOMETER;
+		else
+			return;
+		recorder.onSample(sensor, event.timestamp, event.values[0], event.values[1], event.values[2]);
+	}
+
+	@Override
+	public void onAccuracyChanged(Sensor sensor, int accuracy) {
+	}
+}
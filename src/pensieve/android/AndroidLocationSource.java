@@ -0,0 +1,76 @@
+package pensieve.android;
+
+import java.util.List;
+
+import android.content.Context;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Bundle;
+import android.util.Log;
+
+/**
+ * Feeds location fixes from LocationManager into a LocationTrail.
+ *
+ * Updates are requested with the trail's own minimum distance and a minimum time, so the
+ * platform already holds back most fixes (and wakes us up less); the trail decimates the
+ * rest. On Glass, fixes come from the paired phone through whichever providers are listed.
+ */
+public class AndroidLocationSource implements LocationListener {
+	private static final String TAG = "AndroidLocationSource";
+
+	private final LocationManager locationManager;
+	private final LocationTrail trail;
+	private boolean started = false;
+
+	public AndroidLocationSource(Context context, LocationTrail trail) {
+		locationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+		this.trail = trail;
+	}
+
+	/** Listen on every enabled provider, at most one fix per minTimeMillis and minDistanceMeters; call on a Looper thread. */
+	public synchronized void start(long minTimeMillis, float minDistanceMeters) {
+		if (started || locationManager == null)
+			return;
+		List<String> providers = locationManager.getProviders(true);
+		if (providers == null || providers.isEmpty()) {
+			Log.w(TAG, "start(): No location provider enabled");
+			return;
+		}
+		for (String provider : providers) {
+			// * Start from the last known fix, so requests are tagged before the first update
+			Location last = locationManager.getLastKnownLocation(provider);
+			if (last != null)
+				onLocationChanged(last);
+			locationManager.requestLocationUpdates(provider, minTimeMillis, minDistanceMeters, this);
+		}
+		started = true;
+		Log.d(TAG, "Listening to " + providers + " every " + minTimeMillis + " ms / " + minDistanceMeters + " m");
+	}
+
+	public synchronized void stop() {
+		if (!started)
+			return;
+		locationManager.removeUpdates(this);
+		started = false;
+		Log.d(TAG, "Stopped; " + trail);
+	}
+
+	@Override
+	public void onLocationChanged(Location location) {
+		trail.add(location.getLatitude(), location.getLongitude(), location.hasAccuracy() ? location.getAccuracy() : 0, location.getTime());
+	}
+
+	@Override
+	public void onStatusChanged(String provider, int status, Bundle extras) {
+	}
+
+	@Override
+	public void onProviderEnabled(String provider) {
+	}
+
+	@Override
+	public void onProviderDisabled(String provider) {
+		Log.d(TAG, "Provider disabled: " + provider);
+	}
+}
@@ -0,0 +1,16 @@
+package pensieve.android;
+
+import android.util.Log;
+
+/** ClientLog's sink on a device: android.util.Log. */
+class AndroidLogSink implements ClientLog.Sink {
+	@Override
+	public boolean isLoggable(String tag, int level) {
+		return Log.isLoggable(tag, level);
+	}
+
+	@Override
+	public void log(int level, String tag, String msg) {
+		Log.println(level, tag, msg);
+	}
+}
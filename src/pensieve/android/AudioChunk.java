@@ -0,0 +1,65 @@
+package pensieve.android;
+
+/**
+ * A piece of audio waiting to be uploaded: either a window of absolute positions in a
+ * PcmRingBuffer (read out only when it is sent, so a queued chunk costs no audio memory),
+ * or the bytes of a finished recording.
+ */
+public class AudioChunk {
+	private final long start, end; // ring positions; 0 for recordings
+	private final byte[] data; // null for ring windows
+	private final long createdNanos; // System.nanoTime() when made; merged chunks keep the older one's
+
+	private AudioChunk(long start, long end, byte[] data, long createdNanos) {
+		this.start = start;
+		this.end = end;
+		this.data = data;
+		this.createdNanos = createdNanos;
+	}
+
+	/** Window [start, end) of a PcmRingBuffer. */
+	public static AudioChunk ofRing(long start, long end) {
+		return new AudioChunk(start, end, null, System.nanoTime());
+	}
+
+	/** A self-contained recording (e.g. a MediaRecorder file). */
+	public static AudioChunk ofData(byte[] data) {
+		return new AudioChunk(0, 0, data, System.nanoTime());
+	}
+
+	/**
+	 * One window spanning older and newer, if newer picks up where older ends (or overlaps it)
+	 * and the result is at most maxBytes long; null otherwise. Recordings are never merged.
+	 */
+	public static AudioChunk merge(AudioChunk older, AudioChunk newer, int maxBytes) {
+		if (older.data != null || newer.data != null)
+			return null;
+		if (newer.start > older.end || newer.end - older.start > maxBytes)
+			return null;
+		return new AudioChunk(older.start, Math.max(older.end, newer.end), null, older.createdNanos);
+	}
+
+	public boolean isRingWindow() {
+		return data == null;
+	}
+
+	public long getStart() {
+		return start;
+	}
+
+	public long getEnd() {
+		return end;
+	}
+
+	public byte[] getData() {
+		return data;
+	}
+
+	public long getCreatedNanos() {
+		return createdNanos;
+	}
+
+	public int getLength() {
+		return data != null ? data.length : (int) (end - start);
+	}
+}
@@ -0,0 +1,82 @@
+package pensieve.android;
+
+/**
+ * Picks successive windows of audio out of a PcmRingBuffer for upload.
+ *
+ * Each window covers everything captured since the previous one, extended backwards by
+ * overlapBytes when the previous window was sent, so words cut at a boundary are heard
+ * whole in one of the two chunks (TranscriptStitcher removes the duplicated words).
+ * An optional VoiceActivityDetector skips windows without speech; after a skip the window
+ * is extended by the detector's pre-roll instead.
+ */
+public class AudioChunker {
+	private final PcmRingBuffer ring;
+	private final VoiceActivityDetector vad;
+	private int overlapBytes;
+
+	private long lastEnd = 0;
+	private boolean lastSent = false;
+	private long windowStart = 0, windowEnd = 0;
+	private int windowOverlap = 0;
+
+	/** @param vad voice activity gate, or null to send every window */
+	public AudioChunker(PcmRingBuffer ring, int overlapBytes, VoiceActivityDetector vad) {
+		this.ring = ring;
+		this.vad = vad;
+		setOverlapBytes(overlapBytes);
+	}
+
+	public synchronized void setOverlapBytes(int overlapBytes) {
+		this.overlapBytes = Math.max(0, overlapBytes) & ~1; // whole samples
+	}
+
+	/**
+	 * Advance to the next window. Returns false if there is nothing to send (no new audio,
+	 * or no speech in it); the skipped audio is not offered again.
+	 */
+	public synchronized boolean next() {
+		long oldest = ring.getOldestPosition();
+		long start = Math.max(lastEnd, oldest); // skip audio lost to a stalled sender
+		long end = ring.getWritePosition();
+		if (end <= start)
+			return false;
+
+		if (vad != null && !vad.accept(ring, start, end)) {
+			lastEnd = end;
+			lastSent = false;
+			return false;
+		}
+
+		int lookBack = lastSent ? overlapBytes : 0;
+		if (vad != null)
+			lookBack = Math.max(lookBack, vad.getPreRollBytes());
+		windowStart = Math.max(oldest, start - lookBack);
+		windowEnd = end;
+		windowOverlap = lastSent ? (int) (start - windowStart) : 0;
+		lastEnd = end;
+		lastSent = true;
+		return true;
+	}
+
+	public synchronized long getWindowStart() {
+		return windowStart;
+	}
+
+	public synchronized long getWindowEnd() {
+		return windowEnd;
+	}
+
+	public synchronized int getWindowLength() {
+		return (int) (windowEnd - windowStart);
+	}
+
+	/** Bytes at the start of the current window that were also sent at the end of the previous one. */
+	public synchronized int getWindowOverlap() {
+		return windowOverlap;
+	}
+
+	/** Ring position where the next window's new audio begins. */
+	public synchronized long getLastEnd() {
+		return lastEnd;
+	}
+}
@@ -0,0 +1,16 @@
+package pensieve.android;
+
+/**
+ * Encodes a chunk of 16-bit little-endian mono PCM for upload. Each chunk is encoded on its
+ * own (no state carries over), so the server can decode every request independently.
+ */
+public interface AudioCodec {
+	/** Name used for the "format" field of STT requests and in the handshake. */
+	public String getName();
+
+	/** Largest possible encoded size for pcmBytes of input. */
+	public int getMaxEncodedSize(int pcmBytes);
+
+	/** Encode pcm[offset, offset + length) into out starting at outOffset; returns the encoded length. */
+	public int encode(byte[] pcm, int offset, int length, byte[] out, int outOffset);
+}
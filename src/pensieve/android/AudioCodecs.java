@@ -0,0 +1,49 @@
+package pensieve.android;
+
+import java.util.List;
+
+/**
+ * The audio codecs the client can send, and the choice of one the server also accepts.
+ *
+ * In the handshake the client lists the codecs it is willing to use, best first. The server
+ * answers with the one it picked ("codec") or the ones it accepts ("codecs"); a server that
+ * says neither only gets what every server understands, pcm16.
+ */
+public final class AudioCodecs {
+	private AudioCodecs() {
+	}
+
+	/** A codec by its handshake name, or null if unknown. */
+	public static AudioCodec forName(String name, int sampleRate) {
+		if (Pcm16Codec.NAME.equals(name))
+			return new Pcm16Codec();
+		if (ImaAdpcmCodec.NAME.equals(name))
+			return new ImaAdpcmCodec();
+		if (FlacCodec.NAME.equals(name))
+			return new FlacCodec(sampleRate);
+		return null;
+	}
+
+	/**
+	 * Name of the codec to use.
+	 *
+	 * @param preferred codecs the client offers, best first
+	 * @param chosen the server's pick, or null
+	 * @param accepted codecs the server accepts, or null
+	 */
+	public static String negotiate(String[] preferred, String chosen, List<String> accepted) {
+		if (chosen != null) {
+			for (String name : preferred) {
+				if (name.equals(chosen))
+					return name;
+			}
+		}
+		if (accepted != null) {
+			for (String name : preferred) {
+				if (accepted.contains(name))
+					return name;
+			}
+		}
+		return Pcm16Codec.NAME;
+	}
+}
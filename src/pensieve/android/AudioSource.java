@@ -0,0 +1,10 @@
+package pensieve.android;
+
+/** Writes 16-bit mono PCM into a ring as it is captured or read: the microphone, or a file. */
+public interface AudioSource {
+	/** Start writing audio at sampleRate into ring, on a thread of the source's own. */
+	public void start(PcmRingBuffer ring, int sampleRate);
+
+	/** Stop writing and release whatever the source holds. */
+	public void stop();
+}
@@ -0,0 +1,348 @@
+package pensieve.android;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Durable, append-only spool of requests (JSON header + payload) that couldn't be sent yet.
+ *
+ * Records are appended to memory-mapped segment files in dir, so an append is a memory copy
+ * and whatever was spooled survives the app being killed. Each record is
+ *
+ *   [magic: int][state: byte][flags: byte][header length: int][payload length: int][CRC32: int][header][payload]
+ *
+ * with the magic written last, so a torn append is ignored when the spool is reopened. The
+ * flags are the caller's own, kept with the record (e.g. how to handle its reply).
+ * Draining hands out pending records oldest first, each once: a cursor moves past them and
+ * never back, so records still in flight aren't handed out twice. ack() flips a record's
+ * state in place, and a segment is deleted once all of its records are acked; retry() gives
+ * a record back, to be handed out again ahead of those the cursor hasn't reached. When appending would exceed
+ * maxSegments segments of segmentSize bytes, the oldest segment is evicted (drop-oldest),
+ * pending records and all.
+ */
+public class AudioSpool {
+	private static final String TAG = "AudioSpool";
+	private static final int MAGIC = 0x53504C32; // "SPL2"
+	private static final byte PENDING = 1, SENT = 2;
+	private static final int RECORD_HEADER = 18;
+	private static final String PREFIX = "spool-", SUFFIX = ".seg";
+
+	/** A pending record, as handed out by nextBatch(). */
+	public static class Entry {
+		final Segment segment;
+		final int position;
+		private final byte[] header;
+		private final int payloadLength;
+		private final int flags;
+
+		Entry(Segment segment, int position, byte[] header, int payloadLength, int flags) {
+			this.segment = segment;
+			this.position = position;
+			this.header = header;
+			this.payloadLength = payloadLength;
+			this.flags = flags;
+		}
+
+		public byte[] getHeader() {
+			return header;
+		}
+
+		public int getPayloadLength() {
+			return payloadLength;
+		}
+
+		/** The flags it was appended with. */
+		public int getFlags() {
+			return flags;
+		}
+	}
+
+	static class Segment {
+		final long seq;
+		final File file;
+		final MappedByteBuffer buffer;
+		int writePosition = 0;
+		int pending = 0;
+		boolean deleted = false;
+
+		Segment(long seq, File file, MappedByteBuffer buffer) {
+			this.seq = seq;
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+
+	private final File dir;
+	private final int segmentSize;
+	private final int maxSegments;
+	private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>(); // oldest first; the last is appended to
+	private final CRC32 crc = new CRC32();
+	private Segment readSegment = null; // drain cursor; everything before it has been handed out
+	private int readPosition = 0;
+	private final List<Entry> returned = new ArrayList<Entry>(); // given back by retry(), oldest first
+
+	// Counters
+	private int pendingRecords = 0;
+	private long appended = 0, acked = 0, evicted = 0, rejected = 0;
+
+	/** Open (or create) the spool in dir, picking up records left pending by an earlier run. */
+	public AudioSpool(File dir, int segmentSize, int maxSegments) throws IOException {
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.maxSegments = Math.max(2, maxSegments);
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Can't create spool directory " + dir);
+
+		File[] files = dir.listFiles();
+		long[] seqs = new long[files != null ? files.length : 0];
+		int count = 0;
+		for (int i = 0; i < seqs.length; i++) {
+			String name = files[i].getName();
+			if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+				try {
+					seqs[count++] = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+				} catch (NumberFormatException e) {
+					// not ours
+				}
+			}
+		}
+		Arrays.sort(seqs, 0, count);
+		for (int i = 0; i < count; i++) {
+			Segment segment = map(seqs[i]);
+			recover(segment);
+			if (segment.pending == 0 && i < count - 1)
+				delete(segment);
+			else
+				segments.addLast(segment);
+		}
+		if (segments.isEmpty())
+			segments.addLast(map(0));
+		readSegment = segments.peekFirst();
+		if (pendingRecords > 0)
+			ClientLog.i(TAG, "Recovered " + pendingRecords + " pending records from " + dir);
+	}
+
+	/**
+	 * Append a record, with flags (0-255) of the caller's own; false if it can't fit in a
+	 * segment at all. May evict the oldest segment to make room.
+	 */
+	public synchronized boolean append(byte[] header, int headerLength, byte[] payload, int payloadOffset, int payloadLength, int flags) {
+		int size = RECORD_HEADER + headerLength + payloadLength;
+		if (size > segmentSize) {
+			rejected++;
+			return false;
+		}
+		Segment segment = segments.peekLast();
+		if (segment.writePosition + size > segmentSize) {
+			try {
+				segment = roll();
+			} catch (IOException e) {
+				ClientLog.e(TAG, "Failed to start a new segment: " + e);
+				rejected++;
+				return false;
+			}
+		}
+
+		crc.reset();
+		crc.update(flags);
+		crc.update(header, 0, headerLength);
+		crc.update(payload, payloadOffset, payloadLength);
+		MappedByteBuffer b = segment.buffer;
+		int p = segment.writePosition;
+		b.put(p + 4, PENDING);
+		b.put(p + 5, (byte) flags);
+		b.putInt(p + 6, headerLength);
+		b.putInt(p + 10, payloadLength);
+		b.putInt(p + 14, (int) crc.getValue());
+		b.position(p + RECORD_HEADER);
+		b.put(header, 0, headerLength);
+		b.put(payload, payloadOffset, payloadLength);
+		b.putInt(p, MAGIC); // commit
+		segment.writePosition = p + size;
+		segment.pending++;
+		pendingRecords++;
+		appended++;
+		return true;
+	}
+
+	/** Hand out up to max pending records that aren't out already, oldest first. */
+	public synchronized int nextBatch(int max, List<Entry> out) {
+		int n = 0;
+		// * Records given back, which are older than any the cursor hasn't reached
+		while (n < max && !returned.isEmpty()) {
+			Entry entry = returned.remove(0);
+			if (!entry.segment.deleted && entry.segment.buffer.get(entry.position + 4) == PENDING) {
+				out.add(entry);
+				n++;
+			}
+		}
+		// * Then onwards from the cursor
+		while (n < max && readSegment != null) {
+			if (readPosition >= readSegment.writePosition) {
+				Segment next = after(readSegment);
+				if (next == null)
+					break;
+				readSegment = next;
+				readPosition = 0;
+				continue;
+			}
+			MappedByteBuffer b = readSegment.buffer;
+			int p = readPosition;
+			int headerLength = b.getInt(p + 6);
+			int payloadLength = b.getInt(p + 10);
+			readPosition = p + RECORD_HEADER + headerLength + payloadLength;
+			if (b.get(p + 4) != PENDING)
+				continue;
+			byte[] header = new byte[headerLength];
+			b.position(p + RECORD_HEADER);
+			b.get(header);
+			out.add(new Entry(readSegment, p, header, payloadLength, b.get(p + 5) & 0xff));
+			n++;
+		}
+		return n;
+	}
+
+	/** Copy an entry's payload into dst at offset. */
+	public synchronized void readPayload(Entry entry, byte[] dst, int offset) {
+		if (entry.segment.deleted)
+			throw new IllegalStateException("Spool record was evicted");
+		MappedByteBuffer b = entry.segment.buffer;
+		b.position(entry.position + RECORD_HEADER + entry.header.length);
+		b.get(dst, offset, entry.payloadLength);
+	}
+
+	/** The entry was delivered; it won't be handed out again. */
+	public synchronized void ack(Entry entry) {
+		Segment segment = entry.segment;
+		if (segment.deleted || segment.buffer.get(entry.position + 4) != PENDING)
+			return;
+		segment.buffer.put(entry.position + 4, SENT);
+		segment.pending--;
+		pendingRecords--;
+		acked++;
+		if (segment.pending == 0 && segment != segments.peekLast())
+			delete(segment);
+	}
+
+	/**
+	 * Delivery failed (or the entry wasn't sent); hand it out again, before any record not
+	 * handed out yet. Later entries still in flight are left alone.
+	 */
+	public synchronized void retry(Entry entry) {
+		if (entry.segment.deleted)
+			return;
+		int i = returned.size();
+		while (i > 0 && isAfter(returned.get(i - 1), entry))
+			i--;
+		if (i > 0 && returned.get(i - 1).segment == entry.segment && returned.get(i - 1).position == entry.position)
+			return; // already given back
+		returned.add(i, entry);
+	}
+
+	public synchronized boolean isEmpty() {
+		return pendingRecords == 0;
+	}
+
+	public synchronized int getPendingCount() {
+		return pendingRecords;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "spool: " + pendingRecords + " pending in " + segments.size() + "/" + maxSegments + " segments, appended: " + appended + ", delivered: " + acked
+				+ ", evicted: " + evicted + ", rejected: " + rejected;
+	}
+
+	private Segment roll() throws IOException {
+		Segment last = segments.peekLast();
+		if (segments.size() >= maxSegments) {
+			Segment oldest = segments.peekFirst();
+			evicted += oldest.pending;
+			pendingRecords -= oldest.pending;
+			ClientLog.w(TAG, "Spool full; evicting " + oldest.pending + " pending records");
+			delete(oldest);
+		}
+		Segment segment = map(last.seq + 1);
+		segments.addLast(segment);
+		if (last.pending == 0 && !last.deleted)
+			delete(last);
+		return segment;
+	}
+
+	private Segment map(long seq) throws IOException {
+		File file = new File(dir, PREFIX + seq + SUFFIX);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			return new Segment(seq, file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+		} finally {
+			raf.close(); // the mapping stays valid
+		}
+	}
+
+	/** Find the end of a segment's valid records, and count the pending ones. */
+	private void recover(Segment segment) {
+		MappedByteBuffer b = segment.buffer;
+		byte[] scratch = new byte[8192];
+		int p = 0;
+		while (p + RECORD_HEADER <= segmentSize && b.getInt(p) == MAGIC) {
+			int headerLength = b.getInt(p + 6);
+			int payloadLength = b.getInt(p + 10);
+			int end = p + RECORD_HEADER + headerLength + payloadLength;
+			if (headerLength < 0 || payloadLength < 0 || end > segmentSize || end < p)
+				break;
+			crc.reset();
+			crc.update(b.get(p + 5));
+			b.position(p + RECORD_HEADER);
+			for (int i = p + RECORD_HEADER; i < end; i += scratch.length) {
+				int n = Math.min(scratch.length, end - i);
+				b.get(scratch, 0, n);
+				crc.update(scratch, 0, n);
+			}
+			if ((int) crc.getValue() != b.getInt(p + 14))
+				break; // torn or corrupt: everything from here on is unusable
+			if (b.get(p + 4) == PENDING) {
+				segment.pending++;
+				pendingRecords++;
+			}
+			p = end;
+		}
+		segment.writePosition = p;
+	}
+
+	private void delete(Segment segment) {
+		segment.deleted = true;
+		if (readSegment == segment) {
+			// On to the next segment; older ones were handed out already
+			readSegment = after(segment);
+			readPosition = 0;
+		}
+		segments.remove(segment);
+		if (readSegment == null)
+			readSegment = segments.peekFirst();
+		if (!segment.file.delete())
+			ClientLog.w(TAG, "Failed to delete " + segment.file);
+	}
+
+	/** Whether a comes after b in the spool. */
+	private static boolean isAfter(Entry a, Entry b) {
+		return a.segment.seq > b.segment.seq || (a.segment == b.segment && a.position > b.position);
+	}
+
+	private Segment after(Segment segment) {
+		Iterator<Segment> it = segments.iterator();
+		while (it.hasNext()) {
+			if (it.next() == segment)
+				return it.hasNext() ? it.next() : null;
+		}
+		return segments.peekFirst(); // segment is gone; start over from the oldest
+	}
+}
@@ -0,0 +1,53 @@
+package pensieve.android;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * A small pool of reusable heap ByteBuffers for outgoing message frames.
+ *
+ * NOTE Buffers are heap-backed on purpose: jeromq reads a message's bytes through
+ * ByteBuffer.array(), which direct buffers don't support.
+ */
+public class ByteBufferPool {
+	private static final int GRANULARITY = 4096; // round sizes up so buffers fit a range of chunk lengths
+
+	private final int maxPooled;
+	private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+	private int allocated = 0;
+
+	public ByteBufferPool(int maxPooled) {
+		this.maxPooled = maxPooled;
+	}
+
+	/** Get a cleared buffer with position 0 and limit set to the requested capacity. */
+	public synchronized ByteBuffer acquire(int capacity) {
+		Iterator<ByteBuffer> it = free.iterator();
+		while (it.hasNext()) {
+			ByteBuffer buffer = it.next();
+			if (buffer.capacity() >= capacity) {
+				it.remove();
+				buffer.clear();
+				buffer.limit(capacity);
+				return buffer;
+			}
+		}
+		allocated++;
+		ByteBuffer buffer = ByteBuffer.allocate((capacity + GRANULARITY - 1) / GRANULARITY * GRANULARITY);
+		buffer.limit(capacity);
+		return buffer;
+	}
+
+	/** Return a buffer to the pool; it must not be touched afterwards. */
+	public synchronized void release(ByteBuffer buffer) {
+		if (buffer == null || free.size() >= maxPooled)
+			return;
+		free.addFirst(buffer); // most recently used first; likely still in cache
+	}
+
+	/** Number of buffers allocated since the pool was created (a steady value means no per-message garbage). */
+	public synchronized int getAllocatedCount() {
+		return allocated;
+	}
+}
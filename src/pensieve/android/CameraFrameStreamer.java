@@ -0,0 +1,199 @@
+package pensieve.android;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.util.Log;
+
+/**
+ * Streams camera preview frames at a target rate without allocating per frame.
+ *
+ * Frames are encoded by a FrameEncoder, which reuses its output buffer and can crop and
+ * downscale: a JpegEncoder (which also picks each frame's quality to fit a byte budget),
+ * or a RawFrameEncoder for grayscale or NV21 pixels. An optional FrameChangeDetector drops
+ * frames that show nothing new before they are encoded.
+ *
+ * A small pool of preview buffers circulates between the camera and one encoder task
+ * (which holds a thread of the given executor while streaming) through a single latest-frame-wins slot: a newer frame replaces one that is still waiting
+ * (its buffer goes straight back to the camera), so under load stale frames are dropped
+ * instead of queued and latency stays at about one encode. If every buffer is busy the
+ * camera skips frames on its own.
+ */
+public class CameraFrameStreamer implements Camera.PreviewCallback {
+	private static final String TAG = "CameraFrameStreamer";
+
+	/**
+	 * Where encoded frames go; return false to drop a frame (e.g. the link is backed up). The
+	 * frame is length bytes of data at offset, in the given format ("jpeg", "gray8", "nv21");
+	 * the array is reused once this returns.
+	 */
+	public interface FrameSink {
+		public boolean sendFrame(byte[] data, int offset, int length, int width, int height, String format);
+	}
+
+	private final FrameSink sink;
+	private final ExecutorService encoder;
+	private final int numBuffers;
+	private volatile long minFrameInterval; // ms between frames we accept
+	private final FrameEncoder frameEncoder;
+	private volatile FrameChangeDetector changeDetector = null;
+
+	private Camera camera = null;
+	private int width, height;
+	private final AtomicReference<byte[]> latestFrame = new AtomicReference<byte[]>();
+	private final Semaphore frameReady = new Semaphore(0);
+	private volatile boolean running = false;
+	private Future<?> encoderTask = null;
+	private long lastAccepted = 0;
+
+	// Counters
+	private volatile long framesReceived = 0, framesSkipped = 0, framesStale = 0, framesRefused = 0, framesUnchanged = 0, framesSent = 0, bytesSent = 0;
+
+	public CameraFrameStreamer(FrameSink sink, ExecutorService encoder, float targetFps, FrameEncoder frameEncoder, int numBuffers) {
+		this.sink = sink;
+		this.encoder = encoder;
+		this.numBuffers = Math.max(2, numBuffers);
+		this.frameEncoder = frameEncoder;
+		setTargetFps(targetFps);
+	}
+
+	public void setTargetFps(float targetFps) {
+		minFrameInterval = targetFps > 0 ? (long) (1000 / targetFps) : 0;
+	}
+
+	/** For the region of interest and downscaling (and a JpegEncoder's byte budget). */
+	public FrameEncoder getFrameEncoder() {
+		return frameEncoder;
+	}
+
+	/** Only send frames that differ from the last one sent (null to send them all). */
+	public void setChangeDetector(FrameChangeDetector changeDetector) {
+		this.changeDetector = changeDetector;
+	}
+
+	/** Start receiving frames from a camera whose preview is (or is about to be) running at width x height NV21. */
+	public synchronized void attach(Camera camera, int width, int height) {
+		stop();
+		this.camera = camera;
+		this.width = width;
+		this.height = height;
+
+		int bufferSize = width * height * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+		for (int i = 0; i < numBuffers; i++)
+			camera.addCallbackBuffer(new byte[bufferSize]);
+		camera.setPreviewCallbackWithBuffer(this);
+
+		running = true;
+		encoderTask = encoder.submit(new Runnable() {
+			@Override
+			public void run() {
+				encodeLoop();
+			}
+		});
+		Log.d(TAG, "Streaming " + width + "x" + height + " frames with " + numBuffers + " buffers, one every " + minFrameInterval + " ms");
+	}
+
+	/** Stop streaming; the camera's buffers are dropped along with the callback. */
+	public synchronized void stop() {
+		if (!running)
+			return;
+		running = false;
+		if (camera != null) {
+			try {
+				camera.setPreviewCallbackWithBuffer(null);
+			} catch (RuntimeException e) {
+				Log.w(TAG, "Camera already released: " + e);
+			}
+		}
+		frameReady.release();
+		try {
+			encoderTask.get(1000, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			Log.e(TAG, "Encoder failed: " + e.getCause());
+		} catch (TimeoutException e) {
+			Log.w(TAG, "Encoder still busy; it exits after the current frame");
+		}
+		encoderTask = null;
+		latestFrame.set(null);
+		camera = null;
+		Log.d(TAG, "Stopped; " + getStats());
+	}
+
+	@Override
+	public void onPreviewFrame(byte[] data, Camera camera) {
+		framesReceived++;
+		long now = System.currentTimeMillis();
+		if (!running || now - lastAccepted < minFrameInterval) {
+			framesSkipped++;
+			camera.addCallbackBuffer(data);
+			return;
+		}
+		lastAccepted = now;
+
+		byte[] stale = latestFrame.getAndSet(data);
+		if (stale != null) {
+			framesStale++;
+			camera.addCallbackBuffer(stale);
+		}
+		frameReady.release();
+	}
+
+	private void encodeLoop() {
+		while (running) {
+			try {
+				frameReady.acquire();
+			} catch (InterruptedException e) {
+				break;
+			}
+			frameReady.drainPermits();
+			byte[] frame = latestFrame.getAndSet(null);
+			if (frame == null)
+				continue;
+
+			try {
+				// * Skip frames that show nothing new, before spending an encode on them
+				FrameChangeDetector detector = changeDetector;
+				long now = System.currentTimeMillis();
+				if (detector != null && !detector.shouldSend(frame, width, height, now)) {
+					framesUnchanged++;
+					continue;
+				}
+
+				if (frameEncoder.encode(frame, width, height, System.nanoTime())) {
+					boolean sent = sink.sendFrame(frameEncoder.getData(), frameEncoder.getOffset(), frameEncoder.getLength(), frameEncoder.getWidth(), frameEncoder.getHeight(),
+							frameEncoder.getFormat());
+					frameEncoder.onSent(sent);
+					if (sent) {
+						framesSent++;
+						bytesSent += frameEncoder.getLength();
+						if (detector != null)
+							detector.onSent(width, height, now);
+					}
+					else {
+						framesRefused++;
+					}
+				}
+			} catch (Exception e) {
+				Log.e(TAG, "Failed to encode/send frame: " + e);
+			} finally {
+				Camera c = camera;
+				if (running && c != null)
+					c.addCallbackBuffer(frame); // back into circulation
+			}
+		}
+	}
+
+	public String getStats() {
+		return "frames received: " + framesReceived + ", sent: " + framesSent + ", skipped (rate): " + framesSkipped + ", dropped (stale): " + framesStale + ", dropped (sink busy): " + framesRefused
+				+ ", dropped (unchanged): " + framesUnchanged + ", bytes sent: " + bytesSent + "; " + frameEncoder + (changeDetector != null ? "; " + changeDetector : "");
+	}
+}
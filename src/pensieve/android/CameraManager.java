@@ -3,6 +3,7 @@ package pensieve.android;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 import android.content.Context;
 import android.content.pm.PackageManager;
@@ -26,6 +27,7 @@ public class CameraManager {
 	private Camera mCamera = null;
 	private CameraPreview mPreview = null;
 	private Size cameraSize = null; // can only be created with an enclosing Camera instance (WHAT?!)
+	private CameraFrameStreamer frameStreamer = null;
 
 	/**
 	 * A simple camera preview class, based on:
@@ -125,7 +127,12 @@ public class CameraManager {
 				mCamera.startPreview();
 			} catch (IOException e) {
 				Log.e(TAG, "Unable to start camera preview: " + e);
+				return;
 			}
+			
+			// Start streaming frames, if asked to (preview frames are NV21 by default)
+			if (frameStreamer != null)
+				frameStreamer.attach(mCamera, mPreviewSize.width, mPreviewSize.height);
 		}
 
 		@Override
@@ -171,41 +178,27 @@ public class CameraManager {
 	
 	/** Convert an image in Android's native YUV NV21 format to RGB. */
 	public static byte[] convertImage_NV21_to_RGB(byte[] imageNV21, int imageFormat, int width, int height) {
+		return convertImage_NV21_to_RGB(imageNV21, imageFormat, width, height, null);
+	}
+	
+	/** Convert an image in Android's native YUV NV21 format to RGB, reusing imageRGB if it is large enough (returns the array written to). */
+	public static byte[] convertImage_NV21_to_RGB(byte[] imageNV21, int imageFormat, int width, int height, byte[] imageRGB) {
 		final int imageSize = width * height;
 		if (imageFormat != ImageFormat.NV21 || imageNV21.length != (int) (1.5 * imageSize)) {
 			Log.e(TAG, "[NV21 to RGB] Incompatible image format or invalid YUV image; format: " + imageFormat + ", size: (" + width + ", " + height + "), pixels: " + imageSize + ", num_bytes: " + imageNV21.length);
 			return null;
 		}
-
-		final int ii = 0;
-		final int ij = 0;
-		final int di = +1;
-		final int dj = +1;
-
-		byte[] imageRGB = new byte[imageSize * 3];
-		int k = 0;
-		for (int i = 0, ci = ii; i < height; ++i, ci += di) {
-			for (int j = 0, cj = ij; j < width; ++j, cj += dj) {
-				int y = (0xff & ((int) imageNV21[ci * width + cj]));
-				int v = (0xff & ((int) imageNV21[imageSize + (ci >> 1) * width + (cj & ~1) + 0]));
-				int u = (0xff & ((int) imageNV21[imageSize + (ci >> 1) * width + (cj & ~1) + 1]));
-				y = y < 16 ? 16 : y;
-
-				int r = (int) (1.164f * (y - 16) + 1.596f * (v - 128));
-				int g = (int) (1.164f * (y - 16) - 0.813f * (v - 128) - 0.391f * (u - 128));
-				int b = (int) (1.164f * (y - 16) + 2.018f * (u - 128));
-
-				r = r < 0 ? 0 : (r > 255 ? 255 : r);
-				g = g < 0 ? 0 : (g > 255 ? 255 : g);
-				b = b < 0 ? 0 : (b > 255 ? 255 : b);
-
-				imageRGB[k++] = (byte) r;
-				imageRGB[k++] = (byte) g;
-				imageRGB[k++] = (byte) b;
-			}
+		return Nv21Converter.toRGB(imageNV21, width, height, imageRGB);
+	}
+	
+	/** Convert an image in Android's native YUV NV21 format to RGB, in row bands spread over executor. */
+	public static byte[] convertImage_NV21_to_RGB(byte[] imageNV21, int imageFormat, int width, int height, byte[] imageRGB, ExecutorService executor, int bands) {
+		final int imageSize = width * height;
+		if (imageFormat != ImageFormat.NV21 || imageNV21.length != (int) (1.5 * imageSize)) {
+			Log.e(TAG, "[NV21 to RGB] Incompatible image format or invalid YUV image; format: " + imageFormat + ", size: (" + width + ", " + height + "), pixels: " + imageSize + ", num_bytes: " + imageNV21.length);
+			return null;
 		}
-		
-		return imageRGB;
+		return Nv21Converter.toRGB(imageNV21, width, height, imageRGB, executor, bands);
 	}
 	
 	public CameraManager(Context context) {
@@ -240,7 +233,14 @@ public class CameraManager {
 		return mPreview;
 	}
 	
+	/** Stream preview frames through streamer once the preview starts (set before the preview surface is shown). */
+	public void setFrameStreamer(CameraFrameStreamer streamer) {
+		frameStreamer = streamer;
+	}
+	
 	public void release() {
+		if (frameStreamer != null)
+			frameStreamer.stop();
 		if (mCamera != null) {
 			mCamera.stopPreview();
 			mCamera.release();
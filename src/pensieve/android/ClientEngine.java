@@ -0,0 +1,979 @@
+package pensieve.android;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The client's audio pipeline, without anything Android-specific, so it runs (and can be
+ * profiled) on a plain JVM as well as on the device:
+ *
+ *   AudioSource -> PcmRingBuffer -> AudioChunker -> UploadQueue -> AudioUploader
+ *     -> ConnectionManager -> SttReplyDecoder -> TranscriptStitcher -> TextReceivedListener
+ *
+ * The source is the microphone on a device (AndroidAudioSource) or a file (FileAudioSource).
+ * The older MediaRecorder capture hands over whole recordings instead, see RecordingSource.
+ * Threads come from the caller's TaskRuntime; transcripts are passed to the listener on the
+ * network or transport thread.
+ *
+ * Setters configure the engine and only take effect if called before start().
+ */
+public class ClientEngine {
+	private static final String TAG = "ClientEngine";
+	private static final boolean LOG_VERBOSE = ClientLog.isLoggable(TAG, ClientLog.VERBOSE); // keeps per-request log strings off the hot path
+
+	/** Capture that hands over whole encoded recordings (e.g. MediaRecorder files) rather than filling the ring. */
+	public interface RecordingSource {
+		/** The audio recorded since the last call; empty if there is none. */
+		public byte[] nextRecording() throws IOException;
+	}
+
+	private final TaskRuntime runtime;
+	private final TextReceivedListener listener;
+
+	private byte imageHeaderDataSep = '\n'; // used to separate image header from data in combined packet mode; must be byte or byte[]
+	private boolean combinedPacketMode = false; // send header + data as one frame joined by imageHeaderDataSep (older servers); otherwise as separate multipart frames
+	private final ByteBufferPool bufferPool = new ByteBufferPool(16);
+	private final MessageFramer framer = new MessageFramer(bufferPool, combinedPacketMode, imageHeaderDataSep);
+
+	// ZMQ components
+	private final String serverAddress; // any endpoint e.g.: "tcp://192.168.1.106:61445"; for emulator to host: "tcp://10.0.2.2:61445"
+	private boolean pipelinedTransport = true; // keep several requests in flight on a DEALER socket; set false for the old blocking REQ socket
+	private int maxRequestsInFlight = 4;
+	private volatile ConnectionManager connection = null; // heartbeats, reconnects, and says when the server is usable
+	private int maxPendingFrames = 1; // drop a new camera frame while this many requests are still waiting to go out
+
+	// audio stuff
+	private AudioSource audioSource = null;
+	private RecordingSource recordingSource = null;
+	private String recordingFormat = "mpeg4";
+	private volatile boolean running = false;
+	private double audioClockRate = 1; // audio seconds captured per wall-clock second (above 1 when replaying a file faster)
+	private PcmRingBuffer audioRing = null;
+	private int audioRingSeconds = 30; // how much audio the ring holds before overwriting
+	private AudioChunker chunker = null;
+	private int chunkOverlapMillis = 500; // audio repeated at the start of each chunk, so words cut at a boundary are heard whole
+	private final TranscriptStitcher stitcher = new TranscriptStitcher(12);
+	private final SttReplyDecoder sttDecoder = new SttReplyDecoder(false);
+	private UploadQueue<AudioChunk> uploadQueue = null; // chunks waiting for the uploader; bounded, see UploadQueue.Policy
+	private int uploadQueueCapacity = 4;
+	private UploadQueue.Policy uploadQueuePolicy = UploadQueue.Policy.MERGE;
+	private int maxMergedSeconds = 10; // longest chunk the MERGE policy builds
+	private AudioUploader uploader = null;
+	private long lastUploadDrops = 0;
+	private File spoolDir = null; // null to drop audio while disconnected
+	private volatile AudioSpool spool = null; // audio that couldn't be sent, kept on disk until the server is back
+	private int spoolSegmentBytes = 4 * 1024 * 1024;
+	private int spoolMaxSegments = 8; // oldest audio is dropped beyond this many segments
+	private int maxBatchChunks = 8; // most chunks packed into one "stt_batch" request
+	private int maxBatchBytes = 1024 * 1024;
+	private volatile int serverMaxBatch = 1; // as the handshake reply allows; 1 = no batching
+	private boolean voiceGate = true; // skip chunks without speech (streaming capture only)
+	private VoiceActivityDetector vad = null;
+	private int sampleRate = 16000;
+	private String[] audioCodecPreference = { FlacCodec.NAME, ImaAdpcmCodec.NAME, Pcm16Codec.NAME }; // offered in the handshake, best first
+	private volatile AudioCodec audioCodec = new Pcm16Codec(); // until the server agrees to something better
+	private byte[] pcmScratch = new byte[0], encodedScratch = new byte[0]; // network thread only
+
+	// the audio timer's chunk length follows the measured round trip, see AdaptiveChunkScheduler
+	private final PipelineMetrics metrics = new PipelineMetrics();
+	private int metricsIntervalSeconds = 60; // how often metrics are logged
+	private boolean sendMetrics = false; // also report them to the server as "metrics" requests
+	private final AdaptiveChunkScheduler chunkScheduler = new AdaptiveChunkScheduler(2000, 500, 5000, 3000);
+	private int lastChunkMillis = 0;
+
+	// location stuff
+	private volatile LocationTrail locationTrail = null; // fixes to tag requests with; null for none
+	private long locationRefreshMillis = 60000; // repeat an unchanged location this often
+	private final Object locationLock = new Object();
+	private final LocationTag sttLocationTag = new LocationTag(), imageLocationTag = new LocationTag(), imuLocationTag = new LocationTag(); // guarded by locationLock
+	private final double[] locationFix = new double[5]; // guarded by locationLock
+
+	// IMU stuff
+	private volatile ImuRecorder imuRecorder = null; // samples to send as "imu" batches; null for none
+	private long imuBatchMillis = 1000;
+	private final ImuBatch imuBatch = new ImuBatch(); // timer thread only
+
+	public ClientEngine(String serverAddress, TaskRuntime runtime, TextReceivedListener listener) {
+		this.serverAddress = serverAddress;
+		this.runtime = runtime;
+		this.listener = listener;
+	}
+
+	public void setSampleRate(int sampleRate) {
+		this.sampleRate = sampleRate;
+	}
+
+	public void setPipelined(boolean pipelined) {
+		pipelinedTransport = pipelined;
+	}
+
+	public void setMaxRequestsInFlight(int maxRequestsInFlight) {
+		this.maxRequestsInFlight = Math.max(1, maxRequestsInFlight);
+	}
+
+	/** Codecs offered in the handshake, best first. */
+	public void setCodecPreference(String[] names) {
+		audioCodecPreference = names.clone();
+	}
+
+	public void setVoiceGate(boolean voiceGate) {
+		this.voiceGate = voiceGate;
+	}
+
+	/** Where audio is spooled while the server is unreachable; null (the default) to drop it. */
+	public void setSpoolDirectory(File dir) {
+		spoolDir = dir;
+	}
+
+	/**
+	 * Tag STT, image and IMU requests with the latest fix of this trail (a "location" header
+	 * field), when it has changed since the last request of that type was tagged, or every
+	 * refreshMillis; null for none.
+	 */
+	public void setLocationTrail(LocationTrail trail, long refreshMillis) {
+		locationTrail = trail;
+		locationRefreshMillis = refreshMillis;
+	}
+
+	/**
+	 * Send the samples this recorder collects as an "imu" request (see ImuBatch) every
+	 * batchMillis, with the heading derived from them; null for none.
+	 */
+	public void setImuRecorder(ImuRecorder recorder, long batchMillis) {
+		imuRecorder = recorder;
+		imuBatchMillis = batchMillis;
+	}
+
+	/** Audio seconds per wall-clock second, for sources that run faster than real time; chunks are timed in audio time. */
+	public void setAudioClockRate(double rate) {
+		audioClockRate = rate > 0 ? rate : 1;
+	}
+
+	public void setMetricsInterval(int seconds, boolean sendToServer) {
+		metricsIntervalSeconds = seconds;
+		sendMetrics = sendToServer;
+	}
+
+	public PipelineMetrics getMetrics() {
+		return metrics;
+	}
+
+	public boolean isConnected() {
+		ConnectionManager c = connection;
+		return c != null && c.isHealthy();
+	}
+
+	/** Start streaming: the source fills the ring, which is cut into chunks and uploaded. */
+	public void start(AudioSource source) {
+		audioSource = source;
+		audioRing = new PcmRingBuffer(sampleRate * 2 * audioRingSeconds);
+		if (voiceGate)
+			vad = new VoiceActivityDetector(sampleRate);
+		chunker = new AudioChunker(audioRing, sampleRate * 2 * chunkOverlapMillis / 1000, vad);
+		startPipeline();
+		source.start(audioRing, sampleRate);
+	}
+
+	/** Start uploading whole recordings in the given format (e.g. "mpeg4"), one per chunk tick. */
+	public void start(RecordingSource source, String format) {
+		recordingSource = source;
+		recordingFormat = format;
+		startPipeline();
+	}
+
+	private void startPipeline() {
+		uploadQueue = new UploadQueue<AudioChunk>(uploadQueueCapacity, uploadQueuePolicy, new UploadQueue.Merger<AudioChunk>() {
+			@Override
+			public AudioChunk merge(AudioChunk older, AudioChunk newer) {
+				return AudioChunk.merge(older, newer, sampleRate * 2 * maxMergedSeconds);
+			}
+		});
+		uploader = new AudioUploader();
+		if (spoolDir != null) {
+			runtime.execute(runtime.getNetworkExecutor(), "openSpool", new Runnable() {
+				public void run() {
+					try {
+						spool = new AudioSpool(spoolDir, spoolSegmentBytes, spoolMaxSegments);
+						ClientLog.i(TAG, "[STT] Opened " + spool);
+					} catch (IOException e) {
+						ClientLog.e(TAG, "[STT] Failed to open spool; audio is dropped while disconnected: " + e);
+					}
+				}
+			});
+		}
+
+		//schedule the first audio chunk; each tick schedules the next at the scheduler's current interval
+		running = true;
+		chunkScheduler.setConcurrency(pipelinedTransport ? maxRequestsInFlight : 1);
+		scheduleNextChunk(chunkScheduler.getChunkMillis());
+		runtime.scheduleWithFixedDelay("metrics", new Runnable() {
+			public void run() {
+				reportMetrics();
+			}
+		}, metricsIntervalSeconds * 1000L, metricsIntervalSeconds * 1000L);
+		if (imuRecorder != null) {
+			runtime.scheduleWithFixedDelay("imuBatch", new Runnable() {
+				public void run() {
+					postImuBatch();
+				}
+			}, imuBatchMillis, imuBatchMillis);
+		}
+	}
+
+	/** Stop the source and the chunk ticks; queued chunks are still sent. The runtime is the caller's to shut down. */
+	public void stop() {
+		running = false;
+		if (audioSource != null) {
+			audioSource.stop();
+			audioSource = null;
+		}
+	}
+
+	/** Open the server connection (on the network thread, since this can take time); after start(), as the handshake offers its codecs. */
+	public void connect() {
+		runtime.execute(runtime.getNetworkExecutor(), "openZMQ", new Runnable() {
+			public void run() {
+				openZMQ(); // handshakes with the server, then keeps checking the link
+			};
+		});
+	}
+
+	/** Close the server connection (also on the network thread, after anything already queued there). */
+	public void disconnect() {
+		runtime.execute(runtime.getNetworkExecutor(), "closeZMQ", new Runnable() {
+			public void run() {
+				closeZMQ();
+			}
+		});
+	}
+
+	/** Cut whatever audio is in the ring into a chunk now, e.g. at the end of a file, rather than at the next tick. */
+	public void flush() {
+		Future<?> f = runtime.schedule("flushChunk", new Runnable() {
+			public void run() {
+				enqueueNextChunk(); // on the timer thread, like the ticks
+			}
+		}, 0);
+		try {
+			if (f != null)
+				f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			ClientLog.e(TAG, "[STT] Flush failed: " + e);
+		}
+	}
+
+	/** Wait until nothing is queued, spooled or in flight; false on timeout. */
+	public boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (!isIdle()) {
+			if (System.currentTimeMillis() >= deadline)
+				return false;
+			Thread.sleep(20);
+		}
+		return true;
+	}
+
+	private boolean isIdle() {
+		AudioSpool sp = spool;
+		return uploadQueue.getDepth() == 0 && uploader.permits.availablePermits() == maxRequestsInFlight && (sp == null || sp.isEmpty());
+	}
+
+	private void openZMQ() {
+		// NOTE Should run this from non-UI thread
+		ConnectionManager c = new ConnectionManager(serverAddress, framer, pipelinedTransport, maxRequestsInFlight, 10000, 1500, runtime.getIoExecutor()); // TODO fix hardcoded values
+		c.setHeartbeatRequest(buildHandshake());
+		c.setListener(new ConnectionManager.Listener() {
+			@Override
+			public void onStateChanged(ConnectionManager.State state) {
+				ClientLog.d(TAG, "Server connection: " + state);
+				if (state == ConnectionManager.State.CONNECTED)
+					requestUpload(); // send what queued up while it was down
+			}
+
+			@Override
+			public void onHeartbeatReply(String reply) {
+				handlePingReply(reply);
+			}
+		});
+		ClientLog.v(TAG, "openZMQ(): Connecting to " + serverAddress + "..."); // useful for debugging, in case connect() fails
+		c.start();
+		connection = c;
+	}
+
+	private void closeZMQ() {
+		ConnectionManager c = connection;
+		connection = null;
+		if (c != null)
+			c.stop();
+	}
+
+	/** Feed a round trip to the chunk scheduler, in audio time, so a faster source still gets chunks sized to the link. */
+	private void onSttRoundTrip(long rttMillis, int backlog, boolean timedOut) {
+		chunkScheduler.onRoundTrip((long) (rttMillis * audioClockRate), backlog, timedOut);
+		metrics.record(PipelineMetrics.Stage.ROUND_TRIP, rttMillis * 1000);
+		if (timedOut)
+			metrics.increment(PipelineMetrics.Counter.TIMEOUTS);
+	}
+
+	/** Handshake / heartbeat request; also offers our audio codecs. */
+	private byte[] buildHandshake() {
+		JSONObject requestObj = new JSONObject();
+		try {
+			requestObj.put("type", "handshake");
+			requestObj.put("value", "ping");
+			requestObj.put("batch", maxBatchChunks); // "stt_batch" requests we'd send
+			if (audioRing != null) {
+				JSONArray codecs = new JSONArray();
+				for (String name : audioCodecPreference)
+					codecs.put(name);
+				requestObj.put("codecs", codecs);
+				requestObj.put("sample_rate", sampleRate);
+			}
+		} catch (JSONException e) {
+			ClientLog.e(TAG, "buildHandshake(): Failed to prepare JSON request: " + e);
+		}
+		return requestObj.toString().getBytes();
+	}
+
+	/** Switch to the best codec the server accepts, per its handshake reply. */
+	private void selectAudioCodec(JSONObject replyObj) throws JSONException {
+		List<String> accepted = null;
+		JSONArray codecs = replyObj.optJSONArray("codecs");
+		if (codecs != null) {
+			accepted = new ArrayList<String>(codecs.length());
+			for (int i = 0; i < codecs.length(); i++)
+				accepted.add(codecs.getString(i));
+		}
+		String name = AudioCodecs.negotiate(audioCodecPreference, replyObj.optString("codec", null), accepted);
+		if (!name.equals(audioCodec.getName())) {
+			ClientLog.i(TAG, "[STT] Sending audio as " + name + " (was " + audioCodec.getName() + ")");
+			audioCodec = AudioCodecs.forName(name, sampleRate);
+		}
+	}
+
+	private void handlePingReply(String reply) {
+		ClientLog.v(TAG, "handlePingReply(): Received (raw): " + reply);
+		try {
+			JSONObject replyObj = new JSONObject(reply);
+			ClientLog.v(TAG, "handlePingReply(): Reply status: " + replyObj.getString("status"));
+			if (audioRing != null)
+				selectAudioCodec(replyObj);
+			serverMaxBatch = Math.max(1, Math.min(maxBatchChunks, replyObj.optInt("batch", 1))); // older servers don't batch
+		} catch (JSONException e) {
+			ClientLog.e(TAG, "handlePingReply(): Failed to decode JSON reply: " + e);
+		}
+	}
+
+	/**
+	 * Queue length bytes of image data at offset as an "image" request in the given format
+	 * ("jpeg", "gray8" or "nv21"); the data is copied, so the array can be reused. False if the
+	 * frame should be dropped instead.
+	 */
+	public boolean postImage(byte[] data, int offset, int length, int width, int height, String format) {
+		ConnectionManager c = connection;
+		if (c == null || !c.isPipelined() || !c.isHealthy() || c.getPendingCount() >= maxPendingFrames)
+			return false;
+		try {
+			JSONObject requestObj = new JSONObject();
+			requestObj.put("type", "image");
+			requestObj.put("format", format);
+			requestObj.put("width", width);
+			requestObj.put("height", height);
+			requestObj.put("num_bytes", length);
+			putLocation(requestObj, imageLocationTag);
+			final FramedMessage message = framer.frame(requestObj.toString().getBytes(), length);
+			System.arraycopy(data, offset, message.getPayloadArray(), message.getPayloadOffset(), length);
+			c.submit(message, new PipelinedTransport.ReplyListener() {
+				@Override
+				public void onReply(long seq, String reply) {
+					ClientLog.v(TAG, "[Image] Received reply (raw): " + reply);
+					if (reply != null)
+						message.release(); // pooled; on failure the transport may still hold it
+				}
+			});
+			return true;
+		} catch (JSONException e) {
+			ClientLog.e(TAG, "[Image] Failed to prepare JSON header: " + e);
+			return false;
+		}
+	}
+
+	/**
+	 * Send the IMU samples recorded since the last batch. While the server can't take them,
+	 * they stay in the recorder's rings, which keep the latest.
+	 */
+	private void postImuBatch() {
+		ImuRecorder recorder = imuRecorder;
+		ConnectionManager c = connection;
+		if (recorder == null || c == null || !c.isPipelined() || !c.isHealthy())
+			return;
+		imuBatch.reset();
+		int samples = recorder.drainTo(imuBatch);
+		if (samples == 0)
+			return;
+		try {
+			JSONObject requestObj = new JSONObject();
+			requestObj.put("type", "imu");
+			requestObj.put("format", ImuBatch.FORMAT);
+			requestObj.put("samples", samples);
+			requestObj.put("num_bytes", imuBatch.getLength());
+			float heading = recorder.getHeading().getHeading();
+			if (!Float.isNaN(heading)) {
+				requestObj.put("heading", Math.round(heading * 10) / 10.0);
+				requestObj.put("heading_index", MathUtils.getHalfWindIndex(heading));
+			}
+			putLocation(requestObj, imuLocationTag);
+			final FramedMessage message = framer.frame(requestObj.toString().getBytes(), imuBatch.getLength());
+			System.arraycopy(imuBatch.getData(), 0, message.getPayloadArray(), message.getPayloadOffset(), imuBatch.getLength());
+			c.submit(message, new PipelinedTransport.ReplyListener() {
+				@Override
+				public void onReply(long seq, String reply) {
+					if (LOG_VERBOSE)
+						ClientLog.v(TAG, "[IMU] Received reply (raw): " + reply);
+					if (reply != null)
+						message.release(); // pooled; on failure the transport may still hold it
+				}
+			});
+		} catch (JSONException e) {
+			ClientLog.e(TAG, "[IMU] Failed to prepare JSON header: " + e);
+		}
+	}
+
+	private void scheduleNextChunk(long chunkMillis) {
+		runtime.schedule("audioChunk", new Runnable() {
+			public void run() {
+				try {
+					enqueueNextChunk();
+					logChunkSchedule();
+				} finally {
+					if (running && !runtime.isShutdown())
+						scheduleNextChunk(chunkScheduler.getChunkMillis()); // even if this tick failed
+				}
+			}
+		}, (long) (chunkMillis / audioClockRate));
+	}
+
+	private void logChunkSchedule() {
+		int chunkMillis = chunkScheduler.getChunkMillis();
+		if (chunkMillis != lastChunkMillis) {
+			ClientLog.d(TAG, "[STT] " + chunkScheduler);
+			lastChunkMillis = chunkMillis;
+		}
+	}
+
+	/** Cut the audio captured since the last tick into a chunk and queue it for upload (audio timer thread). */
+	private void enqueueNextChunk() {
+		long startedAt = PipelineMetrics.now();
+		AudioChunk chunk;
+		if (recordingSource == null) {
+			if (!chunker.next()) {
+				if (vad != null && LOG_VERBOSE)
+					ClientLog.v(TAG, "[STT] Nothing to send; " + vad);
+				return;
+			}
+			chunk = AudioChunk.ofRing(chunker.getWindowStart(), chunker.getWindowEnd());
+		}
+		else {
+			try {
+				byte[] bytes = recordingSource.nextRecording();
+				if (bytes.length == 0) {
+					ClientLog.w(TAG, "[STT] No audio captured since last chunk");
+					return;
+				}
+				chunk = AudioChunk.ofData(bytes);
+			} catch (IOException e) {
+				ClientLog.e(TAG, "[STT] Failed to read audio chunk: " + e);
+				return;
+			}
+		}
+		metrics.recordSince(PipelineMetrics.Stage.CAPTURE, startedAt);
+		uploadQueue.offer(chunk);
+		metrics.increment(PipelineMetrics.Counter.CHUNKS_QUEUED);
+		requestUpload();
+		long drops = uploadQueue.getDropped();
+		if (drops != lastUploadDrops) {
+			ClientLog.w(TAG, "[STT] Uploads falling behind; " + uploadQueue);
+			metrics.add(PipelineMetrics.Counter.CHUNKS_DROPPED, drops - lastUploadDrops);
+			lastUploadDrops = drops;
+		}
+	}
+
+	/** Log a metrics snapshot and, if sendMetrics, report it to the server (on the timer thread). */
+	private void reportMetrics() {
+		PipelineMetrics.Snapshot snapshot = metrics.snapshot();
+		ClientLog.i(TAG, snapshot.toString());
+		final ConnectionManager c = connection;
+		if (!sendMetrics || c == null || !c.isHealthy())
+			return;
+		final byte[] header;
+		try {
+			JSONObject requestObj = new JSONObject();
+			requestObj.put("type", "metrics");
+			requestObj.put("metrics", snapshot.toJson());
+			header = requestObj.toString().getBytes();
+		} catch (JSONException e) {
+			ClientLog.e(TAG, "reportMetrics(): Failed to prepare JSON request: " + e);
+			return;
+		}
+		runtime.execute(runtime.getNetworkExecutor(), "metrics", new Runnable() {
+			public void run() {
+				final FramedMessage message = framer.frame(header);
+				if (c.isPipelined()) {
+					c.submit(message, new PipelinedTransport.ReplyListener() {
+						@Override
+						public void onReply(long seq, String reply) {
+							if (reply != null)
+								message.release();
+						}
+					});
+				}
+				else if (c.request(message) != null) {
+					message.release();
+				}
+			}
+		});
+	}
+
+	/** Have the uploader send whatever it can (on the network thread). */
+	private void requestUpload() {
+		AudioUploader u = uploader;
+		if (u != null)
+			runtime.execute(runtime.getNetworkExecutor(), "upload", u);
+	}
+
+	/**
+	 * Sends queued chunks on the network thread while the server is healthy, keeping at most
+	 * maxRequestsInFlight requests outstanding, so a slow server backs up into the bounded
+	 * queue rather than into threads or the transport. Runs whenever a chunk is queued, a
+	 * reply comes in, or the connection comes back.
+	 *
+	 * While the server is unreachable, chunks are framed and appended to the spool instead, as
+	 * are chunks whose request failed. Once the server is back the spool is drained first and
+	 * live chunks go behind it, so the transcript stays in order. Each record keeps whether its
+	 * chunk overlaps the one before (SPOOLED_OVERLAPPED), for stitching its transcript. The
+	 * exception is a live chunk whose request failed while later ones were still outstanding:
+	 * their transcripts may come in before it is sent again, so its words arrive out of order.
+	 * It is spooled as not overlapped, so the stitcher doesn't trim it against a transcript it
+	 * doesn't follow.
+	 *
+	 * If the server takes "stt_batch" requests, several chunks share a request when the round
+	 * trip or the backlog calls for it (see AdaptiveChunkScheduler.getBatchSize()), so a slow
+	 * link is limited by its bandwidth rather than by one round trip per chunk.
+	 */
+	class AudioUploader implements Runnable {
+		private static final int SPOOLED_OVERLAPPED = 1; // spool record flag: the chunk overlaps the one before
+		private final Semaphore permits = new Semaphore(maxRequestsInFlight);
+		private final List<AudioSpool.Entry> spooled = new ArrayList<AudioSpool.Entry>();
+		private final AtomicInteger inFlight = new AtomicInteger(); // requests sent and not yet complete
+		private long lastSentEnd = -1; // ring position the last uploaded window reached
+		// Only STT requests are timed: heartbeats, images and the like don't say how long audio takes
+		private final PipelinedTransport.RoundTripListener roundTrips = new PipelinedTransport.RoundTripListener() {
+			@Override
+			public void onRoundTrip(long seq, long rttMillis, int outstanding, boolean timedOut) {
+				onSttRoundTrip(rttMillis, outstanding + uploadQueue.getDepth(), timedOut);
+			}
+		};
+
+		public void run() {
+			ConnectionManager c = connection;
+			AudioSpool sp = spool;
+			if (c == null || !c.isHealthy()) {
+				// Without a spool, chunks wait in the queue (audio in the ring) until the server is back
+				if (sp != null)
+					spoolQueued(sp);
+				return;
+			}
+
+			int n = permits.drainPermits();
+			int maxBatch = serverMaxBatch;
+			try {
+				// * Spooled audio first, oldest first
+				if (sp != null && n > 0) {
+					int batchSize = chunkScheduler.getBatchSize(sp.getPendingCount(), n, maxBatch);
+					spooled.clear();
+					sp.nextBatch(n * batchSize, spooled);
+					if (!spooled.isEmpty()) {
+						ClientLog.i(TAG, "[STT] Draining " + spooled.size() + " spooled chunks, up to " + batchSize + " per request; " + sp);
+						spoolQueued(sp); // live chunks wait behind the spool
+					}
+					UploadRequest request = null;
+					for (AudioSpool.Entry entry : spooled) {
+						if (n == 0) {
+							sp.retry(entry); // the byte cap closed requests early; the rest go out with the next run
+							continue;
+						}
+						FramedMessage part = readSpooled(sp, entry);
+						if (part == null)
+							continue;
+						if (request == null)
+							request = new UploadRequest(sp, batchSize);
+						request.add(part, (entry.getFlags() & SPOOLED_OVERLAPPED) != 0, entry);
+						if (request.isFull()) {
+							send(c, request);
+							request = null;
+							n--;
+						}
+					}
+					if (request != null) {
+						send(c, request);
+						n--;
+					}
+					spooled.clear();
+				}
+
+				// * Then live chunks
+				while (n > 0) {
+					UploadRequest request = new UploadRequest(sp, chunkScheduler.getBatchSize(uploadQueue.getDepth(), n, maxBatch));
+					while (!request.isFull()) {
+						AudioChunk chunk = uploadQueue.poll();
+						if (chunk == null)
+							break;
+						metrics.recordSince(PipelineMetrics.Stage.QUEUE_WAIT, chunk.getCreatedNanos());
+						FramedMessage part = frame(chunk);
+						if (part == null)
+							continue;
+						boolean overlapped = chunk.isRingWindow() && chunk.getStart() < lastSentEnd;
+						if (chunk.isRingWindow())
+							lastSentEnd = chunk.getEnd();
+						request.add(part, overlapped, null);
+					}
+					if (request.count == 0)
+						break;
+					send(c, request);
+					n--;
+				}
+			} finally {
+				permits.release(n);
+			}
+		}
+
+		/** Send a request, taking one permit that is returned once the reply (or failure) is in. */
+		private void send(ConnectionManager c, final UploadRequest request) {
+			final FramedMessage message = request.frame();
+			if (LOG_VERBOSE)
+				ClientLog.v(TAG, "[STT] Sending " + message.getPayloadLength() + " bytes of audio in " + request.count + " chunks (" + uploadQueue.getDepth() + " chunks queued)");
+			metrics.increment(PipelineMetrics.Counter.REQUESTS_SENT);
+			metrics.add(PipelineMetrics.Counter.CHUNKS_SENT, request.count);
+			metrics.add(PipelineMetrics.Counter.BYTES_SENT, message.getPayloadLength());
+			inFlight.incrementAndGet();
+
+			if (c.isPipelined()) {
+				long submittedAt = PipelineMetrics.now();
+				c.submit(message, new PipelinedTransport.ReplyListener() {
+					@Override
+					public void onReply(long seq, String reply) {
+						complete(request, reply); // on the transport thread; the spool is synchronized
+						permits.release();
+						requestUpload();
+					}
+				}, roundTrips);
+				metrics.recordSince(PipelineMetrics.Stage.SEND, submittedAt);
+				return;
+			}
+
+			// Send over ZMQ (header as JSON-encoded string and raw audio data, as separate frames or concatenated with a separator)
+			long sentAt = System.currentTimeMillis();
+			String reply = c.request(message); // null on failure; the socket is reset for the next chunk
+			onSttRoundTrip(System.currentTimeMillis() - sentAt, uploadQueue.getDepth(), reply == null);
+			complete(request, reply);
+			permits.release();
+		}
+
+		/**
+		 * Pass on the transcripts, and settle the chunks with the spool: spooled ones are acked on
+		 * a reply and handed out again on failure, live ones are spooled on failure.
+		 */
+		private void complete(UploadRequest request, String reply) {
+			AudioSpool sp = request.spool;
+			FramedMessage message = request.message;
+			if (reply == null) {
+				metrics.increment(PipelineMetrics.Counter.REQUESTS_FAILED);
+				metrics.add(PipelineMetrics.Counter.RETRIES, request.count);
+				// The buffers aren't reused, as the transport may still hold them
+				boolean inOrder = inFlight.decrementAndGet() == 0; // replies come in order, so nothing sent after it is outstanding
+				for (int i = 0; i < request.count; i++) {
+					boolean overlapped = request.overlapped[i] && (i > 0 || inOrder);
+					if (request.entries[i] != null)
+						sp.retry(request.entries[i]);
+					else if (sp != null && request.batch == null)
+						spool(sp, message.getHeaderArray(), message.getHeaderLength(), message.getPayloadArray(), message.getPayloadOffset(), message.getPayloadLength(), overlapped);
+					else if (sp != null)
+						spool(sp, request.batch.getHeader(i), request.batch.getHeader(i).length, message.getPayloadArray(), message.getPayloadOffset() + request.batch.getPayloadOffset(i), request.batch.getPayloadLength(i), overlapped);
+				}
+				handleSttReply(null, false);
+				return;
+			}
+
+			inFlight.decrementAndGet();
+			message.release();
+			for (int i = 0; i < request.count; i++) {
+				if (request.entries[i] != null)
+					sp.ack(request.entries[i]);
+			}
+			if (request.batch == null)
+				handleSttReply(reply, request.overlapped[0]);
+			else
+				handleSttBatchReply(reply, request.overlapped, request.count);
+		}
+
+		/** A spooled chunk as a request; null if it was evicted before it could be sent. */
+		private FramedMessage readSpooled(AudioSpool sp, AudioSpool.Entry entry) {
+			FramedMessage message = framer.frame(entry.getHeader(), entry.getPayloadLength());
+			try {
+				sp.readPayload(entry, message.getPayloadArray(), message.getPayloadOffset());
+				return message;
+			} catch (IllegalStateException e) {
+				ClientLog.w(TAG, "[STT] Spooled chunk was evicted before it could be sent");
+				message.release();
+				return null;
+			}
+		}
+
+		/** Move everything waiting in the queue into the spool. */
+		private void spoolQueued(AudioSpool sp) {
+			AudioChunk chunk;
+			while ((chunk = uploadQueue.poll()) != null) {
+				FramedMessage message = frame(chunk);
+				if (message == null)
+					continue;
+				boolean overlapped = chunk.isRingWindow() && chunk.getStart() < lastSentEnd;
+				if (chunk.isRingWindow())
+					lastSentEnd = chunk.getEnd();
+				spool(sp, message.getHeaderArray(), message.getHeaderLength(), message.getPayloadArray(), message.getPayloadOffset(), message.getPayloadLength(), overlapped);
+				message.release();
+			}
+		}
+
+		private void spool(AudioSpool sp, byte[] header, int headerLength, byte[] payload, int payloadOffset, int payloadLength, boolean overlapped) {
+			if (!sp.append(header, headerLength, payload, payloadOffset, payloadLength, overlapped ? SPOOLED_OVERLAPPED : 0))
+				ClientLog.e(TAG, "[STT] Failed to spool " + payloadLength + " bytes of audio; " + sp);
+		}
+
+		private FramedMessage frame(AudioChunk chunk) {
+			long startedAt = PipelineMetrics.now();
+			try {
+				return frameChunk(chunk);
+			} catch (JSONException e) {
+				ClientLog.e(TAG, "[STT] Failed to prepare JSON header: " + e);
+				return null;
+			} finally {
+				metrics.recordSince(PipelineMetrics.Stage.ENCODE, startedAt);
+			}
+		}
+	}
+
+	/** The fix a request type was last tagged with, and when; one per type, so each type sees every new fix. */
+	private static class LocationTag {
+		long seq = 0, at = 0;
+	}
+
+	/** The chunks sent in one request: a single STT request, or an SttBatch of them. */
+	private class UploadRequest {
+		final AudioSpool spool;
+		final FramedMessage[] parts;
+		final boolean[] overlapped;
+		final AudioSpool.Entry[] entries; // null for live chunks
+		int count = 0;
+		int payloadBytes = 0;
+		SttBatch batch = null; // set once framed, if more than one chunk
+		FramedMessage message = null; // what was sent
+
+		UploadRequest(AudioSpool spool, int maxChunks) {
+			this.spool = spool;
+			parts = new FramedMessage[maxChunks];
+			overlapped = new boolean[maxChunks];
+			entries = new AudioSpool.Entry[maxChunks];
+		}
+
+		void add(FramedMessage part, boolean overlapped, AudioSpool.Entry entry) {
+			parts[count] = part;
+			this.overlapped[count] = overlapped;
+			entries[count] = entry;
+			payloadBytes += part.getPayloadLength();
+			count++;
+		}
+
+		boolean isFull() {
+			return count == parts.length || payloadBytes >= maxBatchBytes;
+		}
+
+		FramedMessage frame() {
+			if (count == 1) {
+				message = parts[0];
+			}
+			else {
+				batch = new SttBatch(count);
+				for (int i = 0; i < count; i++)
+					batch.add(parts[i]);
+				message = batch.frame(framer);
+			}
+			Arrays.fill(parts, null);
+			return message;
+		}
+	}
+
+	/**
+	 * Frame a queued chunk in the negotiated codec; null if its audio is gone. Raw PCM is copied
+	 * straight from the ring into the outgoing frame, anything else is encoded via scratch buffers.
+	 */
+	private FramedMessage frameChunk(AudioChunk chunk) throws JSONException {
+		if (!chunk.isRingWindow())
+			return framer.frame(buildSttHeader(chunk.getLength(), recordingFormat), chunk.getData());
+
+		long start = Math.max(chunk.getStart(), audioRing.getOldestPosition());
+		int length = (int) (chunk.getEnd() - start);
+		if (length <= 0) {
+			ClientLog.w(TAG, "[STT] Chunk was overwritten in the ring before it could be sent");
+			return null;
+		}
+		if (start > chunk.getStart())
+			ClientLog.w(TAG, "[STT] Capture overran the ring while queued; " + (start - chunk.getStart()) + " bytes lost");
+		AudioCodec codec = audioCodec;
+		if (codec instanceof Pcm16Codec) {
+			FramedMessage message = framer.frame(buildSttHeader(length, codec.getName()), length);
+			int n = audioRing.read(start, message.getPayloadArray(), message.getPayloadOffset(), length);
+			if (n < length)
+				ClientLog.w(TAG, "[STT] Capture overran the ring while slicing; " + (length - n) + " bytes lost");
+			return message;
+		}
+
+		if (pcmScratch.length < length)
+			pcmScratch = new byte[length];
+		int n = audioRing.read(start, pcmScratch, 0, length);
+		if (n < length)
+			ClientLog.w(TAG, "[STT] Capture overran the ring while slicing; " + (length - n) + " bytes lost");
+		int maxEncoded = codec.getMaxEncodedSize(n);
+		if (encodedScratch.length < maxEncoded)
+			encodedScratch = new byte[maxEncoded];
+		int encoded = codec.encode(pcmScratch, 0, n, encodedScratch, 0);
+		FramedMessage message = framer.frame(buildSttHeader(encoded, codec.getName()), encoded);
+		System.arraycopy(encodedScratch, 0, message.getPayloadArray(), message.getPayloadOffset(), encoded);
+		return message;
+	}
+
+	/** Build the JSON header for an STT request carrying numBytes of audio in the given format. */
+	private byte[] buildSttHeader(int numBytes, String format) throws JSONException {
+		JSONObject requestObj = new JSONObject();
+		requestObj.put("type", "stt"); //speech to text
+		requestObj.put("num_bytes", numBytes);
+		requestObj.put("sample_rate", sampleRate);
+		requestObj.put("format", format);
+		if (audioRing != null)
+			requestObj.put("channels", 1);
+		putLocation(requestObj, sttLocationTag);
+		String request = requestObj.toString();
+		if (LOG_VERBOSE)
+			ClientLog.v(TAG, "[STT] Request: " + request);
+		return request.getBytes();
+	}
+
+	/**
+	 * Add the latest location fix to a request header, if it is new to requests of this type or
+	 * due to be repeated: {"lat", "lon", "acc" (m), "time_ms" (ms since the epoch), "seq"}. The
+	 * time is the fix's own, so a request sent late (e.g. from the spool) still places it right.
+	 */
+	private void putLocation(JSONObject requestObj, LocationTag tag) throws JSONException {
+		LocationTrail trail = locationTrail;
+		if (trail == null)
+			return;
+		long now = System.currentTimeMillis();
+		synchronized (locationLock) {
+			if (!trail.getLatest(locationFix))
+				return;
+			long seq = (long) locationFix[4];
+			if (seq == tag.seq && now - tag.at < locationRefreshMillis)
+				return;
+			JSONObject location = new JSONObject();
+			location.put("lat", locationFix[0]);
+			location.put("lon", locationFix[1]);
+			location.put("acc", Math.round(locationFix[2]));
+			location.put("time_ms", (long) locationFix[3]);
+			location.put("seq", seq);
+			requestObj.put("location", location);
+			tag.seq = seq;
+			tag.at = now;
+		}
+	}
+
+	/** Decode an STT reply and pass any new words of the transcript on to the listener. */
+	private void handleSttReply(String reply, boolean overlapped) {
+		if (LOG_VERBOSE)
+			ClientLog.v(TAG, "[STT] Received reply (raw): " + reply);
+		if(reply != null) {
+			SttReply sttReply = new SttReply();
+			long startedAt = PipelineMetrics.now();
+			boolean decoded = sttDecoder.decode(reply, sttReply);
+			metrics.recordSince(PipelineMetrics.Stage.PARSE, startedAt);
+			if (!decoded) {
+				ClientLog.e(TAG, "[STT] Failed to decode JSON reply: " + reply);
+				stitcher.reset();
+			}
+			else {
+				handleSttResult(sttReply, overlapped);
+			}
+		} else {
+			ClientLog.e(TAG, "[STT] Null reply (no response?)");
+			stitcher.reset();
+		}
+	}
+
+	/** Decode an "stt_batch" reply and handle each chunk's result in order. */
+	private void handleSttBatchReply(String reply, boolean[] overlapped, int count) {
+		if (LOG_VERBOSE)
+			ClientLog.v(TAG, "[STT] Received batch reply (raw): " + reply);
+		SttReply[] results = new SttReply[count];
+		for (int i = 0; i < count; i++)
+			results[i] = new SttReply();
+		long startedAt = PipelineMetrics.now();
+		int decoded = sttDecoder.decodeBatch(reply, results);
+		metrics.recordSince(PipelineMetrics.Stage.PARSE, startedAt);
+		if (decoded < 0) {
+			ClientLog.e(TAG, "[STT] Failed to decode JSON batch reply: " + reply);
+			stitcher.reset();
+			return;
+		}
+		for (int i = 0; i < count; i++) {
+			if (i < decoded) {
+				handleSttResult(results[i], overlapped[i]);
+			}
+			else {
+				ClientLog.w(TAG, "[STT] No result for chunk " + i + " of " + count + " in batch");
+				stitcher.reset();
+			}
+		}
+	}
+
+	/** Pass any new words of a decoded STT reply on to the listener. */
+	private void handleSttResult(SttReply sttReply, boolean overlapped) {
+		if (sttReply.hasTranscript()) {
+			String transcript = sttReply.getTranscript();
+			String newText = stitcher.stitch(transcript, overlapped);
+			if (LOG_VERBOSE)
+				ClientLog.v(TAG, "[STT] Adding text '" + newText + "' (transcript: '" + transcript + "', confidence: " + sttReply.getConfidence() + ").");
+			if (newText.length() > 0)
+				listener.onTextReceived(newText);
+		}
+		else {
+			stitcher.reset();
+			int status = sttReply.getStatus();
+			if (status == 200) {
+				ClientLog.d(TAG, "[STT] Reply status OK: " + status);
+			} else {
+				ClientLog.w(TAG, "[STT] Reply status not favorable: " + status);
+			}
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package pensieve.android;
+
+/**
+ * Logging for the classes that also run off-device (ClientEngine and what it uses). On
+ * Android it goes to android.util.Log, via AndroidLogSink; on a plain JVM, where that class
+ * doesn't exist, it goes to stderr. The call sites read like android.util.Log's.
+ */
+public final class ClientLog {
+	public static final int VERBOSE = 2, DEBUG = 3, INFO = 4, WARN = 5, ERROR = 6; // as android.util.Log
+
+	/** Where log lines go. */
+	public interface Sink {
+		public boolean isLoggable(String tag, int level);
+		public void log(int level, String tag, String msg);
+	}
+
+	/** Writes lines at or above a level to stderr. */
+	public static class ConsoleSink implements Sink {
+		private static final char[] LEVELS = { 'V', 'V', 'V', 'D', 'I', 'W', 'E' };
+		private final int minLevel;
+
+		public ConsoleSink(int minLevel) {
+			this.minLevel = minLevel;
+		}
+
+		@Override
+		public boolean isLoggable(String tag, int level) {
+			return level >= minLevel;
+		}
+
+		@Override
+		public void log(int level, String tag, String msg) {
+			if (level >= minLevel)
+				System.err.println(LEVELS[Math.min(level, ERROR)] + "/" + tag + ": " + msg);
+		}
+	}
+
+	private static volatile Sink sink = defaultSink();
+
+	private ClientLog() {
+	}
+
+	public static void setSink(Sink s) {
+		sink = s;
+	}
+
+	public static boolean isLoggable(String tag, int level) {
+		return sink.isLoggable(tag, level);
+	}
+
+	public static void v(String tag, String msg) {
+		sink.log(VERBOSE, tag, msg);
+	}
+
+	public static void d(String tag, String msg) {
+		sink.log(DEBUG, tag, msg);
+	}
+
+	public static void i(String tag, String msg) {
+		sink.log(INFO, tag, msg);
+	}
+
+	public static void w(String tag, String msg) {
+		sink.log(WARN, tag, msg);
+	}
+
+	public static void e(String tag, String msg) {
+		sink.log(ERROR, tag, msg);
+	}
+
+	/** AndroidLogSink if android.util.Log is there; it's loaded by name so a JVM never links it. */
+	private static Sink defaultSink() {
+		try {
+			Class.forName("android.util.Log");
+			return (Sink) Class.forName("pensieve.android.AndroidLogSink").newInstance();
+		} catch (Exception e) {
+			return new ConsoleSink(INFO);
+		}
+	}
+}
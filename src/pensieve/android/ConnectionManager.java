@@ -0,0 +1,418 @@
+package pensieve.android;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.zeromq.ZMQ;
+
+/**
+ * Keeps the link to the server alive and says whether it is usable.
+ *
+ * Owns either a PipelinedTransport (DEALER) or a blocking REQ socket. A supervisor task,
+ * which like the transport's I/O loop runs on the executor given (see
+ * TaskRuntime.getIoExecutor()), sends a heartbeat (the handshake request) whenever the link
+ * has been idle for a heartbeat interval, and right away after a failure. While pipelined
+ * requests are outstanding on a connected link there is no heartbeat: it would only queue
+ * behind them (and time out behind a slow one), and their own replies or timeouts tell as
+ * much. Requests on the REQ socket follow the lazy-pirate pattern: a send or reply timeout
+ * closes and reopens the socket, since a REQ socket that missed its reply can't send again.
+ * After maxFailures failures in a row the link is marked RECONNECTING, the transport is
+ * rebuilt, and heartbeats are retried with exponential backoff until one is answered.
+ *
+ * Callers check isHealthy() before uploading and hold their data while it is false.
+ */
+public class ConnectionManager {
+	private static final String TAG = "ConnectionManager";
+
+	public enum State {
+		DISCONNECTED, CONNECTING, CONNECTED, RECONNECTING
+	}
+
+	/** Told about state changes and handshake/heartbeat replies (on the supervisor or I/O thread). */
+	public interface Listener {
+		public void onStateChanged(State state);
+		public void onHeartbeatReply(String reply);
+	}
+
+	private final String address;
+	private final MessageFramer framer;
+	private final boolean pipelined;
+	private final int window;
+	private final int replyTimeout;
+	private final int sendTimeout;
+	private final ExecutorService executor;
+
+	private int heartbeatInterval = 5000; // ms of idle link between heartbeats
+	private int heartbeatTimeout = 3000;
+	private int initialBackoff = 500, maxBackoff = 30000;
+	private int maxFailures = 2; // failures in a row before the link is rebuilt
+	private byte[] heartbeatRequest = "{\"type\":\"handshake\",\"value\":\"ping\"}".getBytes();
+	private volatile Listener listener = null;
+
+	// Connection (pipelined)
+	private volatile PipelinedTransport transport = null;
+	private volatile int generation = 0; // bumped on every rebuild, so stale replies are ignored
+	// Connection (REQ)
+	private final Object socketLock = new Object();
+	private ZMQ.Context context = null;
+	private ZMQ.Socket socket = null;
+
+	// Health, guarded by this
+	private State state = State.DISCONNECTED;
+	private int failures = 0;
+	private int backoff;
+	private long lastSuccess = 0;
+	private long nextHeartbeat = 0;
+	private boolean heartbeatPending = false;
+	private int outstanding = 0; // pipelined requests awaiting their reply
+	private long reconnects = 0, totalFailures = 0;
+
+	private volatile boolean running = false;
+	private Future<?> supervisor = null;
+
+	/**
+	 * @param pipelined use a PipelinedTransport with window requests in flight, else a blocking REQ socket
+	 * @param replyTimeout milliseconds to wait for a reply to a request
+	 * @param sendTimeout milliseconds a send may block
+	 * @param executor runs the supervisor and the transport's I/O loop, each holding a thread until stop()
+	 */
+	public ConnectionManager(String address, MessageFramer framer, boolean pipelined, int window, int replyTimeout, int sendTimeout, ExecutorService executor) {
+		this.address = address;
+		this.framer = framer;
+		this.pipelined = pipelined;
+		this.window = window;
+		this.replyTimeout = replyTimeout;
+		this.sendTimeout = sendTimeout;
+		this.executor = executor;
+		this.backoff = initialBackoff;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/** Request sent as the heartbeat; its reply goes to Listener.onHeartbeatReply(). */
+	public synchronized void setHeartbeatRequest(byte[] heartbeatRequest) {
+		this.heartbeatRequest = heartbeatRequest;
+	}
+
+	public synchronized void setHeartbeatInterval(int heartbeatInterval, int heartbeatTimeout) {
+		this.heartbeatInterval = heartbeatInterval;
+		this.heartbeatTimeout = heartbeatTimeout;
+	}
+
+	public synchronized void setBackoff(int initialBackoff, int maxBackoff) {
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = maxBackoff;
+		this.backoff = initialBackoff;
+	}
+
+	public synchronized void start() {
+		if (running)
+			return;
+		running = true;
+		connect();
+		setState(State.CONNECTING);
+		nextHeartbeat = 0; // handshake right away
+		try {
+			supervisor = executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					supervise();
+				}
+			});
+		} catch (RejectedExecutionException e) { // the runtime is shutting down
+			ClientLog.w(TAG, "Can't start the supervisor: " + e);
+		}
+	}
+
+	public void stop() {
+		Future<?> f;
+		synchronized(this) {
+			if (!running)
+				return;
+			running = false;
+			notifyAll();
+			f = supervisor;
+			supervisor = null;
+		}
+		if (f != null) {
+			try {
+				f.get(heartbeatTimeout + 1000, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				ClientLog.e(TAG, "Supervisor failed: " + e.getCause());
+			} catch (TimeoutException e) {
+				ClientLog.w(TAG, "Supervisor still busy; it exits after the current heartbeat");
+			}
+		}
+		disconnect();
+		setState(State.DISCONNECTED);
+		ClientLog.d(TAG, "Stopped; " + this);
+	}
+
+	/** Whether the last exchange with the server succeeded; hold uploads while false. */
+	public synchronized boolean isHealthy() {
+		return state == State.CONNECTED;
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	public boolean isPipelined() {
+		return pipelined;
+	}
+
+	/** Requests waiting to go out on the pipelined transport (0 in REQ mode). */
+	public int getPendingCount() {
+		PipelinedTransport t = transport;
+		return t != null ? t.getPendingCount() : 0;
+	}
+
+	/**
+	 * Queue a request on the pipelined transport. The listener gets a null reply if the request
+	 * fails or there is no transport. Returns the sequence id, or -1 if it wasn't queued.
+	 */
+	public long submit(FramedMessage request, final PipelinedTransport.ReplyListener listener) {
+		return submit(request, listener, null, replyTimeout);
+	}
+
+	/** Like submit(request, listener), and tells roundTripListener how long the request took (see PipelinedTransport). */
+	public long submit(FramedMessage request, final PipelinedTransport.ReplyListener listener, PipelinedTransport.RoundTripListener roundTripListener) {
+		return submit(request, listener, roundTripListener, replyTimeout);
+	}
+
+	private long submit(FramedMessage request, final PipelinedTransport.ReplyListener listener, PipelinedTransport.RoundTripListener roundTripListener, int timeout) {
+		PipelinedTransport t = transport;
+		if (t == null || !t.isRunning()) {
+			if (listener != null)
+				listener.onReply(-1, null);
+			return -1;
+		}
+		final int submittedGeneration = generation;
+		synchronized(this) {
+			outstanding++;
+		}
+		return t.submit(request, new PipelinedTransport.ReplyListener() {
+			@Override
+			public void onReply(long seq, String reply) {
+				synchronized(ConnectionManager.this) {
+					if (--outstanding == 0)
+						ConnectionManager.this.notifyAll(); // a heartbeat may be due
+				}
+				if (submittedGeneration == generation)
+					recordResult(reply != null);
+				if (listener != null)
+					listener.onReply(seq, reply);
+			}
+		}, timeout, roundTripListener);
+	}
+
+	/**
+	 * Send a request on the REQ socket and wait for its reply; null on failure. A socket that
+	 * failed is replaced right away (lazy pirate), so the next request starts clean.
+	 */
+	public String request(FramedMessage request) {
+		return request(request, replyTimeout);
+	}
+
+	private String request(FramedMessage request, int timeout) {
+		String reply = null;
+		synchronized(socketLock) {
+			if (socket == null)
+				return null;
+			socket.setReceiveTimeOut(timeout);
+			if (request.send(socket, 0))
+				reply = socket.recvStr();
+			if (reply == null) {
+				ClientLog.w(TAG, "No reply within " + timeout + " ms; reopening socket");
+				closeSocket();
+				openSocket();
+			}
+		}
+		if (reply == null) {
+			synchronized(this) {
+				reconnects++;
+			}
+		}
+		recordResult(reply != null);
+		return reply;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "state: " + state + ", failures in a row: " + failures + ", total failures: " + totalFailures + ", reconnects: " + reconnects;
+	}
+
+	private void supervise() {
+		while (running) {
+			boolean rebuild;
+			synchronized(this) {
+				long now = System.currentTimeMillis();
+				if (heartbeatPending || now < nextHeartbeat) {
+					try {
+						wait(heartbeatPending ? heartbeatTimeout : nextHeartbeat - now);
+					} catch (InterruptedException e) {
+						break;
+					}
+					continue;
+				}
+				if (state == State.CONNECTED && now - lastSuccess < heartbeatInterval) {
+					nextHeartbeat = lastSuccess + heartbeatInterval; // traffic is proof enough
+					continue;
+				}
+				if (state == State.CONNECTED && outstanding > 0) {
+					// Those requests will be answered or time out; a heartbeat would just wait behind them
+					try {
+						wait(heartbeatInterval);
+					} catch (InterruptedException e) {
+						break;
+					}
+					continue;
+				}
+				rebuild = state == State.RECONNECTING && pipelined;
+				heartbeatPending = true;
+			}
+
+			if (rebuild) {
+				// A DEALER reconnects by itself, but a fresh socket also drops whatever the old one had queued
+				disconnect();
+				connect();
+				synchronized(this) {
+					reconnects++;
+				}
+			}
+			heartbeat();
+		}
+	}
+
+	private void heartbeat() {
+		byte[] request;
+		synchronized(this) {
+			request = heartbeatRequest;
+		}
+		if (pipelined) {
+			submit(framer.frame(request), new PipelinedTransport.ReplyListener() {
+				@Override
+				public void onReply(long seq, String reply) {
+					onHeartbeatDone(reply);
+				}
+			}, null, heartbeatTimeout);
+		}
+		else {
+			FramedMessage message = framer.frame(request);
+			String reply = request(message, heartbeatTimeout);
+			if (reply != null)
+				message.release();
+			onHeartbeatDone(reply);
+		}
+	}
+
+	private void onHeartbeatDone(String reply) {
+		synchronized(this) {
+			heartbeatPending = false;
+			long now = System.currentTimeMillis();
+			if (reply != null) {
+				nextHeartbeat = now + heartbeatInterval;
+			}
+			else {
+				nextHeartbeat = now + backoff;
+				ClientLog.d(TAG, "Heartbeat failed; next attempt in " + backoff + " ms");
+				backoff = Math.min(backoff * 2, maxBackoff);
+			}
+			notifyAll();
+		}
+		Listener l = listener;
+		if (reply != null && l != null)
+			l.onHeartbeatReply(reply);
+	}
+
+	private void recordResult(boolean ok) {
+		State newState = null;
+		synchronized(this) {
+			if (ok) {
+				failures = 0;
+				lastSuccess = System.currentTimeMillis();
+				backoff = initialBackoff;
+				if (state != State.CONNECTED)
+					newState = State.CONNECTED;
+			}
+			else {
+				failures++;
+				totalFailures++;
+				if (failures >= maxFailures && state != State.RECONNECTING)
+					newState = State.RECONNECTING;
+				if (state == State.CONNECTED)
+					nextHeartbeat = 0; // check the link now rather than at the next interval
+				notifyAll();
+			}
+		}
+		if (newState != null)
+			setState(newState);
+	}
+
+	private void setState(State newState) {
+		synchronized(this) {
+			if (state == newState)
+				return;
+			ClientLog.i(TAG, state + " -> " + newState + " (" + address + ")");
+			state = newState;
+		}
+		Listener l = listener;
+		if (l != null)
+			l.onStateChanged(newState);
+	}
+
+	private void connect() {
+		if (pipelined) {
+			PipelinedTransport t = new PipelinedTransport(address, window, replyTimeout, sendTimeout, executor);
+			generation++;
+			transport = t;
+			t.start();
+		}
+		else {
+			synchronized(socketLock) {
+				context = ZMQ.context(1);
+				openSocket();
+			}
+		}
+	}
+
+	private void disconnect() {
+		PipelinedTransport t = transport;
+		if (t != null) {
+			generation++; // whatever it fails on the way down isn't news
+			transport = null;
+			t.stop();
+		}
+		synchronized(socketLock) {
+			closeSocket();
+			if (context != null) {
+				context.term();
+				context = null;
+			}
+		}
+	}
+
+	private void openSocket() {
+		socket = context.socket(ZMQ.REQ);
+		socket.setLinger(0);
+		socket.setSendTimeOut(sendTimeout);
+		socket.setReceiveTimeOut(replyTimeout);
+		socket.connect(address);
+		ClientLog.d(TAG, "Connected to " + address);
+	}
+
+	private void closeSocket() {
+		if (socket != null) {
+			socket.close();
+			socket = null;
+		}
+	}
+}
@@ -0,0 +1,243 @@
+package pensieve.android;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Replays a WAV file (16-bit PCM, any channel count, downmixed to mono) or a raw 16-bit
+ * little-endian mono PCM file into the ring, paced like a microphone at `speed` times real
+ * time, so the rest of the pipeline can't tell it from live capture.
+ */
+public class FileAudioSource implements AudioSource {
+	private static final String TAG = "FileAudioSource";
+	private static final int FRAME_MILLIS = 20; // written in frames like PcmCaptureThread's
+
+	private final File file;
+	private final double speed;
+	private final InputStream in;
+	private final int fileSampleRate;
+	private final int channels;
+	private long dataBytes; // left to read; Long.MAX_VALUE for raw PCM
+	private Thread thread = null;
+	private volatile boolean running = false;
+	private boolean finished = false; // guarded by this
+	private long samplesWritten = 0;
+
+	/** A WAV file; its header gives the sample rate. */
+	public FileAudioSource(File file, double speed) throws IOException {
+		this.file = file;
+		this.speed = speed;
+		in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+		try {
+			// * RIFF header, then chunks until "data"; "fmt " has to come first
+			if (!readTag().equals("RIFF"))
+				throw new IOException(file + " is not a WAV file");
+			readIntLE();
+			if (!readTag().equals("WAVE"))
+				throw new IOException(file + " is not a WAV file");
+			int rate = 0, ch = 0;
+			while (true) {
+				String tag = readTag();
+				long size = readIntLE() & 0xffffffffL;
+				if (tag.equals("fmt ")) {
+					int format = readShortLE();
+					ch = readShortLE();
+					rate = readIntLE();
+					readIntLE(); // byte rate
+					readShortLE(); // block align
+					int bits = readShortLE();
+					if ((format != 1 && format != 0xfffe) || bits != 16 || ch < 1)
+						throw new IOException(file + ": only 16-bit PCM is supported (format " + format + ", " + bits + " bits)");
+					skip(size - 16 + (size & 1));
+				}
+				else if (tag.equals("data")) {
+					if (rate == 0)
+						throw new IOException(file + ": no fmt chunk before data");
+					dataBytes = size;
+					break;
+				}
+				else {
+					skip(size + (size & 1)); // chunks are padded to even sizes
+				}
+			}
+			fileSampleRate = rate;
+			channels = ch;
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/** A raw 16-bit little-endian mono PCM file at sampleRate. */
+	public FileAudioSource(File file, int sampleRate, double speed) throws IOException {
+		this.file = file;
+		this.speed = speed;
+		in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+		fileSampleRate = sampleRate;
+		channels = 1;
+		dataBytes = Long.MAX_VALUE;
+	}
+
+	public int getSampleRate() {
+		return fileSampleRate;
+	}
+
+	/** Seconds of audio written so far. */
+	public synchronized double getPosition() {
+		return (double) samplesWritten / fileSampleRate;
+	}
+
+	@Override
+	public synchronized void start(final PcmRingBuffer ring, int sampleRate) {
+		if (sampleRate != fileSampleRate)
+			throw new IllegalArgumentException(file + " is at " + fileSampleRate + " Hz, not " + sampleRate);
+		running = true;
+		thread = new Thread("FileAudioSource") {
+			@Override
+			public void run() {
+				try {
+					replay(ring);
+				} catch (IOException e) {
+					ClientLog.e(TAG, "Failed to read " + file + ": " + e);
+				} finally {
+					close();
+					synchronized (FileAudioSource.this) {
+						finished = true;
+						FileAudioSource.this.notifyAll();
+					}
+				}
+			}
+		};
+		thread.start();
+	}
+
+	@Override
+	public void stop() {
+		running = false;
+		Thread t;
+		synchronized (this) {
+			t = thread;
+		}
+		if (t != null) {
+			try {
+				t.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/** Wait until the whole file has been written (or the source stopped). */
+	public synchronized void awaitEnd() throws InterruptedException {
+		while (!finished)
+			wait();
+	}
+
+	private void replay(PcmRingBuffer ring) throws IOException {
+		int frameSamples = Math.max(1, fileSampleRate * FRAME_MILLIS / 1000);
+		byte[] input = new byte[frameSamples * channels * 2];
+		byte[] frame = new byte[frameSamples * 2];
+		long startedAt = System.nanoTime();
+		ClientLog.i(TAG, "Replaying " + file + " (" + fileSampleRate + " Hz, " + channels + " channels) at " + speed + "x");
+		while (running && dataBytes > 0) {
+			// * Read a frame's worth, dropping a trailing partial sample
+			int want = (int) Math.min(input.length, dataBytes);
+			int n = 0;
+			while (n < want) {
+				int r = in.read(input, n, want - n);
+				if (r < 0)
+					break;
+				n += r;
+			}
+			dataBytes -= n;
+			int samples = n / (2 * channels);
+			if (samples == 0)
+				break;
+
+			// * Downmix to mono
+			if (channels == 1) {
+				System.arraycopy(input, 0, frame, 0, samples * 2);
+			}
+			else {
+				for (int i = 0, p = 0; i < samples; i++) {
+					int sum = 0;
+					for (int c = 0; c < channels; c++, p += 2)
+						sum += (short) ((input[p] & 0xff) | (input[p + 1] << 8));
+					int mono = sum / channels;
+					frame[2 * i] = (byte) mono;
+					frame[2 * i + 1] = (byte) (mono >> 8);
+				}
+			}
+
+			// * Pace: this frame is due once the audio before it has "played"
+			long dueAt = startedAt + (long) (samplesWritten * 1e9 / fileSampleRate / speed);
+			long wait = dueAt - System.nanoTime();
+			if (wait > 0) {
+				try {
+					Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+			ring.write(frame, 0, samples * 2);
+			synchronized (this) {
+				samplesWritten += samples;
+			}
+			if (n < want)
+				break; // end of file
+		}
+		ClientLog.i(TAG, "Replayed " + String.format("%.1f", getPosition()) + " s of " + file);
+	}
+
+	private void close() {
+		try {
+			in.close();
+		} catch (IOException e) {
+			// nothing left to read anyway
+		}
+	}
+
+	private String readTag() throws IOException {
+		byte[] b = new byte[4];
+		readFully(b);
+		return new String(b, "US-ASCII");
+	}
+
+	private int readIntLE() throws IOException {
+		byte[] b = new byte[4];
+		readFully(b);
+		return (b[0] & 0xff) | (b[1] & 0xff) << 8 | (b[2] & 0xff) << 16 | (b[3] & 0xff) << 24;
+	}
+
+	private int readShortLE() throws IOException {
+		byte[] b = new byte[2];
+		readFully(b);
+		return (b[0] & 0xff) | (b[1] & 0xff) << 8;
+	}
+
+	private void readFully(byte[] b) throws IOException {
+		int n = 0;
+		while (n < b.length) {
+			int r = in.read(b, n, b.length - n);
+			if (r < 0)
+				throw new EOFException(file + " ends early");
+			n += r;
+		}
+	}
+
+	private void skip(long n) throws IOException {
+		while (n > 0) {
+			long s = in.skip(n);
+			if (s <= 0) {
+				if (in.read() < 0)
+					throw new EOFException(file + " ends early");
+				s = 1;
+			}
+			n -= s;
+		}
+	}
+}
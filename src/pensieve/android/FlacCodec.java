@@ -0,0 +1,324 @@
+package pensieve.android;
+
+/**
+ * Minimal lossless FLAC encoder for 16-bit mono PCM; each chunk becomes a complete FLAC
+ * stream ("fLaC", STREAMINFO, frames) that any FLAC decoder can read.
+ *
+ * Frames of blockSize samples use whichever of the fixed polynomial predictors (orders 0-4)
+ * leaves the smallest residual, Rice coded with the best partition order up to 4; digital
+ * silence becomes a CONSTANT subframe and incompressible blocks VERBATIM. No LPC, so it
+ * compresses a little less than libFLAC's defaults at a fraction of the CPU.
+ */
+public class FlacCodec implements AudioCodec {
+	public static final String NAME = "flac";
+
+	private static final int MAX_ORDER = 4;
+	private static final int MAX_PARTITION_ORDER = 4;
+	private static final int MAX_RICE_PARAM = 14; // 15 is the escape code
+	private static final int[] CRC16_TABLE = new int[256]; // polynomial 0x8005
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i << 8;
+			for (int j = 0; j < 8; j++)
+				crc = (crc & 0x8000) != 0 ? ((crc << 1) ^ 0x8005) & 0xffff : (crc << 1) & 0xffff;
+			CRC16_TABLE[i] = crc;
+		}
+	}
+
+	private final int sampleRate;
+	private final int blockSize;
+
+	// Scratch, sized for one block
+	private final int[] samples;
+	private final int[] residual;
+	private final long[] partitionSums = new long[1 << MAX_PARTITION_ORDER];
+	private final int[][] riceParams = new int[MAX_PARTITION_ORDER + 1][1 << MAX_PARTITION_ORDER];
+	private final BitWriter writer = new BitWriter();
+
+	public FlacCodec(int sampleRate) {
+		this(sampleRate, 4096);
+	}
+
+	public FlacCodec(int sampleRate, int blockSize) {
+		this.sampleRate = sampleRate;
+		this.blockSize = blockSize;
+		samples = new int[blockSize];
+		residual = new int[blockSize];
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public int getMaxEncodedSize(int pcmBytes) {
+		int frames = (pcmBytes / 2 + blockSize - 1) / blockSize;
+		return 42 + pcmBytes + frames * 24; // stream header, then at worst verbatim frames with header and CRC
+	}
+
+	@Override
+	public synchronized int encode(byte[] pcm, int offset, int length, byte[] out, int outOffset) {
+		int total = length / 2;
+		BitWriter w = writer;
+		w.reset(out, outOffset);
+
+		// * Stream header: marker and the (only, hence last) metadata block, STREAMINFO
+		w.write(0x664C6143, 32); // "fLaC"
+		w.write(1, 1);
+		w.write(0, 7);
+		w.write(34, 24);
+		w.write(Math.min(blockSize, Math.max(16, total)), 16); // min block size (the last block may be shorter, which FLAC allows)
+		w.write(Math.min(blockSize, Math.max(16, total)), 16); // max block size
+		w.write(0, 24); // min frame size: unknown
+		w.write(0, 24); // max frame size: unknown
+		w.write(sampleRate, 20);
+		w.write(0, 3); // channels - 1
+		w.write(15, 5); // bits per sample - 1
+		w.write(0, 4); // total samples, upper 4 of 36 bits
+		w.write(total, 32);
+		for (int i = 0; i < 4; i++)
+			w.write(0, 32); // MD5: not computed
+
+		// * Frames
+		long frameNumber = 0;
+		for (int start = 0; start < total; start += blockSize, frameNumber++) {
+			int n = Math.min(blockSize, total - start);
+			int p = offset + start * 2;
+			for (int i = 0; i < n; i++, p += 2)
+				samples[i] = (short) ((pcm[p] & 0xff) | (pcm[p + 1] << 8));
+			writeFrame(w, frameNumber, n);
+		}
+		return w.finish() - outOffset;
+	}
+
+	private void writeFrame(BitWriter w, long frameNumber, int n) {
+		int frameStart = w.getBytePosition();
+
+		// * Header
+		w.write(0xFFF8, 16); // sync, reserved, fixed block size
+		w.write(7, 4); // block size: 16 bits at end of header
+		w.write(0, 4); // sample rate: from STREAMINFO
+		w.write(0, 4); // mono
+		w.write(4, 3); // 16 bits per sample
+		w.write(0, 1);
+		writeUtf8(w, frameNumber);
+		w.write(n - 1, 16);
+		w.write(crc8(w.getBuffer(), frameStart, w.getBytePosition()), 8);
+
+		// * Subframe
+		writeSubframe(w, n);
+
+		// * Footer
+		w.alignToByte();
+		w.write(crc16(w.getBuffer(), frameStart, w.getBytePosition()), 16);
+	}
+
+	private void writeSubframe(BitWriter w, int n) {
+		int[] s = samples;
+		boolean constant = true;
+		for (int i = 1; i < n && constant; i++)
+			constant = s[i] == s[0];
+		if (constant) {
+			w.write(0, 8); // pad, CONSTANT, no wasted bits
+			w.write(s[0], 16);
+			return;
+		}
+
+		// * Pick the fixed predictor with the smallest total residual (all orders in one pass;
+		//   the first few samples are left out, as in libFLAC)
+		long e0 = 0, e1 = 0, e2 = 0, e3 = 0, e4 = 0;
+		for (int i = MAX_ORDER; i < n; i++) {
+			int r0 = s[i];
+			int r1 = r0 - s[i - 1];
+			int r2 = r1 - (s[i - 1] - s[i - 2]);
+			int r3 = r2 - (s[i - 1] - 2 * s[i - 2] + s[i - 3]);
+			int r4 = r3 - (s[i - 1] - 3 * s[i - 2] + 3 * s[i - 3] - s[i - 4]);
+			e0 += Math.abs(r0);
+			e1 += Math.abs(r1);
+			e2 += Math.abs(r2);
+			e3 += Math.abs(r3);
+			e4 += Math.abs(r4);
+		}
+		int order = n <= MAX_ORDER ? 0 : e0 <= e1 && e0 <= e2 && e0 <= e3 && e0 <= e4 ? 0 : e1 <= e2 && e1 <= e3 && e1 <= e4 ? 1 : e2 <= e3 && e2 <= e4 ? 2 : e3 <= e4 ? 3 : 4;
+		for (int i = order; i < n; i++)
+			residual[i] = predictResidual(order, i);
+
+		// * Folded residual sums for the finest partitioning; coarser ones add up neighbours
+		int maxPo = 0;
+		while (maxPo < MAX_PARTITION_ORDER && (n & ((2 << maxPo) - 1)) == 0 && (n >> (maxPo + 1)) > order)
+			maxPo++;
+		long[] sums = partitionSums;
+		for (int part = 0; part < 1 << maxPo; part++) {
+			long sum = 0;
+			int end = partitionEnd(part, n, maxPo);
+			for (int i = partitionStart(part, n, maxPo, order); i < end; i++)
+				sum += fold(residual[i]);
+			sums[part] = sum;
+		}
+
+		// * Best partition order, estimating each partition's Rice cost from its sum
+		int bestPo = maxPo;
+		long bestBits = Long.MAX_VALUE;
+		for (int po = maxPo; po >= 0; po--) {
+			if (po < maxPo) {
+				for (int part = 0; part < 1 << po; part++)
+					sums[part] = sums[2 * part] + sums[2 * part + 1];
+			}
+			long bits = 0;
+			for (int part = 0; part < 1 << po; part++) {
+				int count = partitionEnd(part, n, po) - partitionStart(part, n, po, order);
+				int k = riceParam(sums[part], count);
+				riceParams[po][part] = k;
+				bits += 4 + (long) count * (k + 1) + (sums[part] >>> k);
+			}
+			if (bits <= bestBits) {
+				bestBits = bits;
+				bestPo = po;
+			}
+		}
+
+		long fixedBits = 8 + 16L * order + 6 + bestBits;
+		if (fixedBits >= 8 + 16L * n) {
+			w.write(1 << 1, 8); // VERBATIM
+			for (int i = 0; i < n; i++)
+				w.write(s[i], 16);
+			return;
+		}
+
+		w.write((8 | order) << 1, 8); // FIXED, order
+		for (int i = 0; i < order; i++)
+			w.write(s[i], 16); // warm-up samples
+		w.write(0, 2); // Rice coding with 4-bit parameters
+		w.write(bestPo, 4);
+		for (int part = 0; part < 1 << bestPo; part++) {
+			int k = riceParams[bestPo][part];
+			w.write(k, 4);
+			int end = partitionEnd(part, n, bestPo);
+			for (int i = partitionStart(part, n, bestPo, order); i < end; i++)
+				w.writeRice(residual[i], k);
+		}
+	}
+
+	private int predictResidual(int order, int i) {
+		int[] s = samples;
+		switch (order) {
+		case 0:
+			return s[i];
+		case 1:
+			return s[i] - s[i - 1];
+		case 2:
+			return s[i] - 2 * s[i - 1] + s[i - 2];
+		case 3:
+			return s[i] - 3 * s[i - 1] + 3 * s[i - 2] - s[i - 3];
+		default:
+			return s[i] - 4 * s[i - 1] + 6 * s[i - 2] - 4 * s[i - 3] + s[i - 4];
+		}
+	}
+
+	private static int partitionStart(int part, int n, int po, int order) {
+		return part == 0 ? order : part * (n >> po);
+	}
+
+	private static int partitionEnd(int part, int n, int po) {
+		return (part + 1) * (n >> po);
+	}
+
+	/** Rice parameter for count folded residuals adding up to sum (about log2 of their mean). */
+	private static int riceParam(long sum, int count) {
+		int k = 0;
+		while (k < MAX_RICE_PARAM && ((long) Math.max(1, count) << (k + 1)) < sum)
+			k++;
+		return k;
+	}
+
+	private static long fold(int r) {
+		return ((long) r << 1) ^ (r >> 31);
+	}
+
+	private static void writeUtf8(BitWriter w, long value) {
+		if (value < 0x80) {
+			w.write((int) value, 8);
+			return;
+		}
+		int extra = value < 0x800 ? 1 : value < 0x10000 ? 2 : value < 0x200000 ? 3 : value < 0x4000000 ? 4 : 5;
+		int lead = (0xFF00 >> (extra + 1)) & 0xFF;
+		w.write(lead | (int) (value >>> (6 * extra)), 8);
+		for (int i = extra - 1; i >= 0; i--)
+			w.write(0x80 | (int) ((value >>> (6 * i)) & 0x3F), 8);
+	}
+
+	private static int crc8(byte[] b, int from, int to) {
+		int crc = 0;
+		for (int i = from; i < to; i++) {
+			crc ^= b[i] & 0xff;
+			for (int j = 0; j < 8; j++)
+				crc = (crc & 0x80) != 0 ? ((crc << 1) ^ 0x07) & 0xff : (crc << 1) & 0xff;
+		}
+		return crc;
+	}
+
+	private static int crc16(byte[] b, int from, int to) {
+		int crc = 0;
+		for (int i = from; i < to; i++)
+			crc = ((crc << 8) ^ CRC16_TABLE[(crc >>> 8) ^ (b[i] & 0xff)]) & 0xffff;
+		return crc;
+	}
+
+	/** MSB-first bit writer over a caller's byte array. */
+	private static class BitWriter {
+		private byte[] buf;
+		private int pos; // next byte to fill
+		private long acc; // pending bits, right-aligned
+		private int bits; // number of pending bits (< 8 between calls)
+
+		void reset(byte[] buf, int offset) {
+			this.buf = buf;
+			pos = offset;
+			acc = 0;
+			bits = 0;
+		}
+
+		/** Write the low n (<= 32) bits of value. */
+		void write(int value, int n) {
+			acc = (acc << n) | (value & ((1L << n) - 1));
+			bits += n;
+			while (bits >= 8) {
+				bits -= 8;
+				buf[pos++] = (byte) (acc >>> bits);
+			}
+		}
+
+		void writeRice(int value, int k) {
+			long u = fold(value);
+			long q = u >>> k;
+			while (q >= 32) {
+				write(0, 32);
+				q -= 32;
+			}
+			write(1, (int) q + 1); // q zeros, then a one
+			if (k > 0)
+				write((int) (u & ((1L << k) - 1)), k);
+		}
+
+		void alignToByte() {
+			if (bits > 0)
+				write(0, 8 - bits);
+		}
+
+		int getBytePosition() {
+			return pos;
+		}
+
+		byte[] getBuffer() {
+			return buf;
+		}
+
+		/** Flush the last partial byte; returns the position after it. */
+		int finish() {
+			alignToByte();
+			return pos;
+		}
+	}
+}
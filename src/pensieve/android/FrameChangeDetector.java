@@ -0,0 +1,127 @@
+package pensieve.android;
+
+/**
+ * Decides whether a camera frame shows enough that is new to be worth sending.
+ *
+ * Each frame is reduced to a GRID_WIDTH x GRID_HEIGHT thumbnail of mean luma, read straight
+ * from the Y plane of the NV21 buffer on a sparse grid of samples (about 64 per cell), and
+ * compared with the thumbnail of the last frame sent. The score is the mean absolute
+ * difference per cell in luma levels (0-255), after taking out the mean difference, so
+ * auto-exposure drifting the whole image brighter or darker doesn't count as change.
+ *
+ * A frame is sent if its score reaches the threshold, or as a keyframe if nothing has been
+ * sent for keyframeMillis. The reference only moves on onSent(), so a scene that changes
+ * slowly still adds up to a send.
+ */
+public class FrameChangeDetector {
+	public static final int GRID_WIDTH = 16, GRID_HEIGHT = 12;
+	private static final int SAMPLES_PER_CELL_SIDE = 8;
+
+	private volatile float threshold;
+	private volatile long keyframeMillis;
+
+	private final int[] current = new int[GRID_WIDTH * GRID_HEIGHT];
+	private final int[] reference = new int[GRID_WIDTH * GRID_HEIGHT];
+	private boolean hasReference = false;
+	private int referenceWidth = 0, referenceHeight = 0;
+	private long lastSentAt = 0;
+	private float score = 0;
+
+	// Counters
+	private long framesChecked = 0, framesUnchanged = 0, keyframes = 0;
+
+	/**
+	 * @param threshold score (mean luma levels of change per cell) at which a frame is sent; 0 sends every frame
+	 * @param keyframeMillis send a frame anyway after this long without one; 0 for never
+	 */
+	public FrameChangeDetector(float threshold, long keyframeMillis) {
+		this.threshold = threshold;
+		this.keyframeMillis = keyframeMillis;
+	}
+
+	public void setThreshold(float threshold) {
+		this.threshold = threshold;
+	}
+
+	public void setKeyframeInterval(long keyframeMillis) {
+		this.keyframeMillis = keyframeMillis;
+	}
+
+	/** Whether the width x height NV21 frame at nowMillis should be sent; call onSent() if it was. */
+	public synchronized boolean shouldSend(byte[] imageNV21, int width, int height, long nowMillis) {
+		framesChecked++;
+		if (threshold <= 0)
+			return true;
+		computeThumbnail(imageNV21, width, height, current);
+
+		// * First frame, or the preview size changed: nothing to compare with
+		if (!hasReference || width != referenceWidth || height != referenceHeight) {
+			score = Float.MAX_VALUE;
+			return true;
+		}
+
+		score = getScore(current, reference);
+		if (score >= threshold)
+			return true;
+		if (keyframeMillis > 0 && nowMillis - lastSentAt >= keyframeMillis) {
+			keyframes++;
+			return true;
+		}
+		framesUnchanged++;
+		return false;
+	}
+
+	/** The frame last passed to shouldSend() was sent: it becomes the reference. */
+	public synchronized void onSent(int width, int height, long nowMillis) {
+		System.arraycopy(current, 0, reference, 0, current.length);
+		hasReference = threshold > 0;
+		referenceWidth = width;
+		referenceHeight = height;
+		lastSentAt = nowMillis;
+	}
+
+	/** Score of the frame last passed to shouldSend() (Float.MAX_VALUE if there was nothing to compare with). */
+	public synchronized float getScore() {
+		return score;
+	}
+
+	public synchronized long getFramesUnchanged() {
+		return framesUnchanged;
+	}
+
+	/** Mean luma of each grid cell of the Y plane, sampled every few pixels. */
+	static void computeThumbnail(byte[] imageNV21, int width, int height, int[] thumbnail) {
+		int cellWidth = width / GRID_WIDTH, cellHeight = height / GRID_HEIGHT;
+		int stepX = Math.max(1, cellWidth / SAMPLES_PER_CELL_SIDE), stepY = Math.max(1, cellHeight / SAMPLES_PER_CELL_SIDE);
+		int samplesX = (cellWidth + stepX - 1) / stepX, samplesY = (cellHeight + stepY - 1) / stepY;
+		int samples = Math.max(1, samplesX * samplesY);
+		for (int cy = 0, i = 0; cy < GRID_HEIGHT; cy++) {
+			for (int cx = 0; cx < GRID_WIDTH; cx++, i++) {
+				int sum = 0;
+				for (int y = cy * cellHeight, yEnd = y + cellHeight; y < yEnd; y += stepY) {
+					int p = y * width + cx * cellWidth;
+					for (int pEnd = p + cellWidth; p < pEnd; p += stepX)
+						sum += imageNV21[p] & 0xff;
+				}
+				thumbnail[i] = sum / samples;
+			}
+		}
+	}
+
+	/** Mean absolute difference per cell, less the mean (signed) difference. */
+	static float getScore(int[] a, int[] b) {
+		int shift = 0;
+		for (int i = 0; i < a.length; i++)
+			shift += a[i] - b[i];
+		float meanShift = (float) shift / a.length;
+		float sum = 0;
+		for (int i = 0; i < a.length; i++)
+			sum += Math.abs(a[i] - b[i] - meanShift);
+		return sum / a.length;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return framesUnchanged + " of " + framesChecked + " frames unchanged (threshold " + threshold + "), " + keyframes + " keyframes";
+	}
+}
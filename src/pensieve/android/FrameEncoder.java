@@ -0,0 +1,66 @@
+package pensieve.android;
+
+/**
+ * Turns NV21 camera frames into what is sent as an "image" request, optionally cropped to a
+ * region of interest and downscaled 2x or 4x first. The result is read with getData(),
+ * getOffset() and getLength(), and is only valid until the next encode(): encoders reuse
+ * their buffers, and may point into the frame itself.
+ *
+ * One encoder thread at a time; the setters may be called from any thread.
+ */
+public abstract class FrameEncoder {
+	// Region of interest (0 width = whole frame) and downscale factor, guarded by this
+	private int roiLeft = 0, roiTop = 0, roiWidth = 0, roiHeight = 0;
+	private int downscale = 1;
+
+	/** Encode only this part of the frame (clipped to it, and snapped to even coordinates). */
+	public synchronized void setRegionOfInterest(int left, int top, int width, int height) {
+		roiLeft = Math.max(0, left);
+		roiTop = Math.max(0, top);
+		roiWidth = Math.max(0, width);
+		roiHeight = Math.max(0, height);
+	}
+
+	public synchronized void clearRegionOfInterest() {
+		roiWidth = roiHeight = 0;
+	}
+
+	/** Shrink frames by 1 (not at all), 2 or 4 in each direction before encoding. */
+	public synchronized void setDownscale(int factor) {
+		if (factor != 1 && factor != 2 && factor != 4)
+			throw new IllegalArgumentException("Downscale factor must be 1, 2 or 4: " + factor);
+		downscale = factor;
+	}
+
+	public synchronized int getDownscale() {
+		return downscale;
+	}
+
+	/** The region of interest within a frame of this size, as { left, top, width, height }. */
+	protected synchronized void getRegion(int frameWidth, int frameHeight, int[] region) {
+		Nv21Frames.clipRegion(roiLeft, roiTop, roiWidth, roiHeight, frameWidth, frameHeight, region);
+	}
+
+	/**
+	 * Encode a width x height NV21 frame captured at nowNanos. Returns false if there is
+	 * nothing to send for this frame (e.g. it would go over a byte budget, or failed).
+	 */
+	public abstract boolean encode(byte[] imageNV21, int frameWidth, int frameHeight, long nowNanos);
+
+	/** The request's "format". */
+	public abstract String getFormat();
+
+	public abstract byte[] getData();
+
+	public abstract int getOffset();
+
+	public abstract int getLength();
+
+	public abstract int getWidth();
+
+	public abstract int getHeight();
+
+	/** Told whether the last encoded frame was sent. */
+	public void onSent(boolean sent) {
+	}
+}
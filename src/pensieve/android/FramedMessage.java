@@ -0,0 +1,93 @@
+package pensieve.android;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.zeromq.ZMQ;
+
+/**
+ * An outgoing request: a JSON header frame and an optional binary payload frame, or a single
+ * combined frame (header, separator, payload) for servers that expect the old packet format.
+ *
+ * Buffers come from a ByteBufferPool. jeromq keeps referencing them until the I/O thread has
+ * written them out, so release() only once a reply has arrived (or not at all on failure).
+ */
+public class FramedMessage {
+	private static final int ZERO_COPY_THRESHOLD = 8192; // jeromq's output batch size; larger frames are written from their own array
+
+	private final ByteBufferPool pool;
+	private final ByteBuffer header; // or the whole combined packet
+	private final int headerLength; // bytes of JSON header at the start of header
+	private final ByteBuffer payload; // null for header-only or combined messages
+	private final int payloadOffset; // where payload bytes start in payloadArray
+	private final int payloadLength;
+	private final boolean pooledPayload;
+	private boolean released = false;
+
+	FramedMessage(ByteBufferPool pool, ByteBuffer header, int headerLength, ByteBuffer payload, int payloadOffset, int payloadLength, boolean pooledPayload) {
+		this.pool = pool;
+		this.header = header;
+		this.headerLength = headerLength;
+		this.payload = payload;
+		this.payloadOffset = payloadOffset;
+		this.payloadLength = payloadLength;
+		this.pooledPayload = pooledPayload;
+	}
+
+	/** Backing array of the JSON header, which starts at index 0 (see getHeaderLength()). */
+	public byte[] getHeaderArray() {
+		return header.array();
+	}
+
+	public int getHeaderLength() {
+		return headerLength;
+	}
+
+	/** Backing array to write payload bytes into (see getPayloadOffset()). */
+	public byte[] getPayloadArray() {
+		return payload != null ? payload.array() : header.array();
+	}
+
+	public int getPayloadOffset() {
+		return payloadOffset;
+	}
+
+	public int getPayloadLength() {
+		return payloadLength;
+	}
+
+	/** Total bytes on the wire, excluding envelope frames. */
+	public int getSize() {
+		return header.limit() + (payload != null ? payload.limit() : 0);
+	}
+
+	/** Send all frames; flags apply to the last one (e.g. 0 or ZMQ.DONTWAIT). */
+	public boolean send(ZMQ.Socket socket, int flags) {
+		if (payload == null)
+			return sendFrame(socket, header, flags);
+		return sendFrame(socket, header, flags | ZMQ.SNDMORE) && sendFrame(socket, payload, flags);
+	}
+
+	/**
+	 * jeromq 0.3.0 writes a frame of ZERO_COPY_THRESHOLD bytes or more straight from its
+	 * buffer's backing array, the whole array, whatever the buffer's limit; a pooled buffer
+	 * bigger than its frame would put trailing garbage on the wire. Such frames go out as an
+	 * exact copy instead.
+	 */
+	private static boolean sendFrame(ZMQ.Socket socket, ByteBuffer buffer, int flags) {
+		int length = buffer.limit();
+		if (length < ZERO_COPY_THRESHOLD || length == buffer.array().length)
+			return socket.sendByteBuffer(buffer, flags);
+		return socket.send(Arrays.copyOf(buffer.array(), length), flags);
+	}
+
+	/** Hand buffers back to the pool, once the message is known to have been written out. */
+	public synchronized void release() {
+		if (released)
+			return;
+		released = true;
+		pool.release(header);
+		if (pooledPayload)
+			pool.release(payload);
+	}
+}
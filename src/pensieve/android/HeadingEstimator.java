@@ -0,0 +1,82 @@
+package pensieve.android;
+
+/**
+ * Compass heading from the accelerometer and magnetometer, computed on the device so requests
+ * can carry it without the raw samples.
+ *
+ * Both vectors are low-pass filtered, then turned into a rotation matrix the way
+ * SensorManager.getRotationMatrix() does (east = magnetic x gravity, north = gravity x east).
+ * As in the GDK compass, the matrix is remapped with the device's Z axis as Y, so the heading
+ * is where the wearer of Glass faces rather than where the top of the display points. The
+ * heading is magnetic; setDeclination() corrects it to true north.
+ */
+public class HeadingEstimator {
+	private final float smoothing; // weight of each new sample, (0, 1]
+	private final float[] gravity = new float[3], geomagnetic = new float[3];
+	private boolean hasGravity = false, hasGeomagnetic = false;
+	private float declination = 0;
+
+	/** @param smoothing weight of each new sample in the filtered vectors, (0, 1]; 1 for none */
+	public HeadingEstimator(float smoothing) {
+		this.smoothing = Math.max(0.01f, Math.min(1, smoothing));
+	}
+
+	/** Degrees east of magnetic north that true north lies, e.g. from GeomagneticField. */
+	public synchronized void setDeclination(float degrees) {
+		declination = degrees;
+	}
+
+	public synchronized void onAccelerometer(float x, float y, float z) {
+		hasGravity = filter(gravity, hasGravity, x, y, z);
+	}
+
+	public synchronized void onMagnetometer(float x, float y, float z) {
+		hasGeomagnetic = filter(geomagnetic, hasGeomagnetic, x, y, z);
+	}
+
+	/** Heading in degrees [0, 360), or NaN before both sensors have reported or in free fall. */
+	public synchronized float getHeading() {
+		if (!hasGravity || !hasGeomagnetic)
+			return Float.NaN;
+		float ax = gravity[0], ay = gravity[1], az = gravity[2];
+		float ex = geomagnetic[0], ey = geomagnetic[1], ez = geomagnetic[2];
+
+		// * East: magnetic field x gravity; too short means free fall or the field along gravity
+		float hx = ey * az - ez * ay, hy = ez * ax - ex * az, hz = ex * ay - ey * ax;
+		float normH = (float) Math.sqrt(hx * hx + hy * hy + hz * hz);
+		float normA = (float) Math.sqrt(ax * ax + ay * ay + az * az);
+		if (normH < 0.1f || normA < 0.1f)
+			return Float.NaN;
+		hx /= normH;
+		hy /= normH;
+		hz /= normH;
+		ax /= normA;
+		ay /= normA;
+		az /= normA;
+
+		// * North: gravity x east; only the Z components are needed with Z remapped as Y
+		float mz = ax * hy - ay * hx;
+		double azimuth = Math.atan2(hz, mz);
+		return MathUtils.mod((float) Math.toDegrees(azimuth) + declination, 360.0f);
+	}
+
+	/** Index of the heading's compass point (0 = N, 4 = E, ..., see MathUtils.getHalfWindIndex()); -1 if there is no heading. */
+	public int getHalfWindIndex() {
+		float heading = getHeading();
+		return Float.isNaN(heading) ? -1 : MathUtils.getHalfWindIndex(heading);
+	}
+
+	private boolean filter(float[] v, boolean primed, float x, float y, float z) {
+		if (!primed) {
+			v[0] = x;
+			v[1] = y;
+			v[2] = z;
+		}
+		else {
+			v[0] += smoothing * (x - v[0]);
+			v[1] += smoothing * (y - v[1]);
+			v[2] += smoothing * (z - v[2]);
+		}
+		return true;
+	}
+}
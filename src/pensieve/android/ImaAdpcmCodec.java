@@ -0,0 +1,92 @@
+package pensieve.android;
+
+/**
+ * IMA ADPCM (4 bits per sample, ~4:1), coded as one block per chunk in the same layout as a
+ * mono WAV IMA ADPCM block:
+ *
+ *   [first sample: int16 LE][step index: uint8][0]
+ *   then one nibble per remaining sample, low nibble first
+ *
+ * so a chunk of n samples takes 4 + n / 2 bytes.
+ */
+public class ImaAdpcmCodec implements AudioCodec {
+	public static final String NAME = "ima_adpcm";
+
+	private static final int[] INDEX_TABLE = { -1, -1, -1, -1, 2, 4, 6, 8, -1, -1, -1, -1, 2, 4, 6, 8 };
+	private static final int[] STEP_TABLE = { 7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45, 50, 55, 60,
+			66, 73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230, 253, 279, 307, 337, 371, 408, 449, 494, 544, 598, 658,
+			724, 796, 876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066, 2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871,
+			5358, 5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899, 15289, 16818, 18500, 20350, 22385, 24623, 27086,
+			29794, 32767 };
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public int getMaxEncodedSize(int pcmBytes) {
+		return 4 + pcmBytes / 4;
+	}
+
+	@Override
+	public int encode(byte[] pcm, int offset, int length, byte[] out, int outOffset) {
+		int samples = length / 2;
+		if (samples == 0)
+			return 0;
+
+		int predictor = (short) ((pcm[offset] & 0xff) | (pcm[offset + 1] << 8));
+		int index = 0;
+		int o = outOffset;
+		out[o++] = (byte) predictor;
+		out[o++] = (byte) (predictor >> 8);
+		out[o++] = (byte) index;
+		out[o++] = 0;
+
+		boolean high = false;
+		for (int i = offset + 2; i < offset + samples * 2; i += 2) {
+			int sample = (short) ((pcm[i] & 0xff) | (pcm[i + 1] << 8));
+			int step = STEP_TABLE[index];
+
+			// * Quantize the difference to 3 bits plus sign
+			int diff = sample - predictor;
+			int nibble = 0;
+			if (diff < 0) {
+				nibble = 8;
+				diff = -diff;
+			}
+			if (diff >= step) {
+				nibble |= 4;
+				diff -= step;
+			}
+			if (diff >= step >> 1) {
+				nibble |= 2;
+				diff -= step >> 1;
+			}
+			if (diff >= step >> 2)
+				nibble |= 1;
+
+			// * Track the decoder's reconstruction, so errors don't accumulate
+			int delta = step >> 3;
+			if ((nibble & 4) != 0)
+				delta += step;
+			if ((nibble & 2) != 0)
+				delta += step >> 1;
+			if ((nibble & 1) != 0)
+				delta += step >> 2;
+			predictor += (nibble & 8) != 0 ? -delta : delta;
+			predictor = predictor < -32768 ? -32768 : (predictor > 32767 ? 32767 : predictor);
+			index += INDEX_TABLE[nibble];
+			index = index < 0 ? 0 : (index > 88 ? 88 : index);
+
+			if (high)
+				out[o++] |= (byte) (nibble << 4);
+			else
+				out[o] = (byte) nibble;
+			high = !high;
+		}
+		if (high)
+			o++;
+		return o - outOffset;
+	}
+}
@@ -0,0 +1,175 @@
+package pensieve.android;
+
+/**
+ * Packs runs of three-axis sensor samples into one binary "imu" request payload, and
+ * unpacks them again (for the server side and tests). The output buffer is kept and reused
+ * from batch to batch.
+ *
+ * Values are quantized to a fixed step per sensor and delta-encoded, so a sample of a
+ * slowly changing signal takes a few bytes rather than a JSON object:
+ *
+ *   byte    version (1)
+ *   byte    number of sensors
+ *   per sensor:
+ *     byte    sensor type (ImuRecorder.ACCELEROMETER, GYROSCOPE or MAGNETOMETER)
+ *     varint  number of samples
+ *     float   quantum: the value of one step, big-endian
+ *     long    timestamp of the first sample, ns, big-endian
+ *     per sample:
+ *       varint  microseconds since the first sample, less the previous sample's
+ *       3 x zigzag varint  x, y and z in steps, less the previous sample's (0 before the first)
+ */
+public class ImuBatch {
+	public static final String FORMAT = "imu_delta1";
+	private static final int VERSION = 1;
+
+	/** Receives decoded samples. */
+	public interface Listener {
+		public void onSample(int sensor, long timestampNanos, float x, float y, float z);
+	}
+
+	private byte[] buf = new byte[4096];
+	private int length = 0;
+	private int sensors = 0, samples = 0;
+
+	public ImuBatch() {
+		reset();
+	}
+
+	/** Start a new batch, keeping the buffer. */
+	public void reset() {
+		buf[0] = VERSION;
+		buf[1] = 0;
+		length = 2;
+		sensors = samples = 0;
+	}
+
+	/** Append count samples of one sensor: timestamps (ns) and values (x, y, z per sample), quantized to quantum. */
+	public void addSensor(int sensor, float quantum, long[] timestamps, float[] values, int count) {
+		if (count <= 0)
+			return;
+		ensureCapacity(length + 1 + 5 + 4 + 8 + count * (5 + 3 * 5));
+
+		// * Sensor header
+		buf[length++] = (byte) sensor;
+		writeVarint(count);
+		writeInt(Float.floatToIntBits(quantum));
+		long first = timestamps[0];
+		writeInt((int) (first >>> 32));
+		writeInt((int) first);
+
+		// * Samples, as deltas from the previous one
+		double scale = 1.0 / quantum; // in float, a value a million steps out can round the wrong way
+		long lastMicros = 0;
+		int lastX = 0, lastY = 0, lastZ = 0;
+		for (int i = 0; i < count; i++) {
+			long micros = Math.max(lastMicros, (timestamps[i] - first) / 1000); // never backwards
+			writeVarint((int) (micros - lastMicros));
+			int x = (int) Math.round(values[3 * i] * scale), y = (int) Math.round(values[3 * i + 1] * scale), z = (int) Math.round(values[3 * i + 2] * scale);
+			writeVarint(zigzag(x - lastX));
+			writeVarint(zigzag(y - lastY));
+			writeVarint(zigzag(z - lastZ));
+			lastMicros = micros;
+			lastX = x;
+			lastY = y;
+			lastZ = z;
+		}
+		buf[1] = (byte) ++sensors;
+		samples += count;
+	}
+
+	/** The encoded batch; valid until the next reset() or addSensor(). */
+	public byte[] getData() {
+		return buf;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public int getSampleCount() {
+		return samples;
+	}
+
+	/** Decode a batch, passing each sample to listener; returns the number of samples. Throws IllegalArgumentException if it is malformed or truncated. */
+	public static int decode(byte[] data, int offset, int length, Listener listener) {
+		int[] pos = { offset };
+		int end = offset + length;
+		if (length < 2 || data[offset] != VERSION)
+			throw new IllegalArgumentException("Not an " + FORMAT + " batch");
+		int sensors = data[offset + 1] & 0xff;
+		pos[0] += 2;
+		int total = 0;
+		for (int s = 0; s < sensors; s++) {
+			if (pos[0] >= end)
+				throw new IllegalArgumentException("Truncated " + FORMAT + " batch");
+			int sensor = data[pos[0]++] & 0xff;
+			int count = readVarint(data, pos, end);
+			float quantum = Float.intBitsToFloat(readInt(data, pos, end));
+			long first = ((long) readInt(data, pos, end) << 32) | (readInt(data, pos, end) & 0xffffffffL);
+			long micros = 0;
+			int x = 0, y = 0, z = 0;
+			for (int i = 0; i < count; i++) {
+				micros += readVarint(data, pos, end) & 0xffffffffL;
+				x += unzigzag(readVarint(data, pos, end));
+				y += unzigzag(readVarint(data, pos, end));
+				z += unzigzag(readVarint(data, pos, end));
+				listener.onSample(sensor, first + micros * 1000, x * quantum, y * quantum, z * quantum);
+			}
+			total += count;
+		}
+		return total;
+	}
+
+	private void ensureCapacity(int needed) {
+		if (needed > buf.length) {
+			byte[] bigger = new byte[Math.max(needed, 2 * buf.length)];
+			System.arraycopy(buf, 0, bigger, 0, length);
+			buf = bigger;
+		}
+	}
+
+	private void writeVarint(int v) {
+		while ((v & ~0x7f) != 0) {
+			buf[length++] = (byte) ((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		buf[length++] = (byte) v;
+	}
+
+	private void writeInt(int v) {
+		buf[length++] = (byte) (v >>> 24);
+		buf[length++] = (byte) (v >>> 16);
+		buf[length++] = (byte) (v >>> 8);
+		buf[length++] = (byte) v;
+	}
+
+	private static int zigzag(int v) {
+		return (v << 1) ^ (v >> 31);
+	}
+
+	private static int unzigzag(int v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	private static int readVarint(byte[] data, int[] pos, int end) {
+		int v = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			if (pos[0] >= end)
+				throw new IllegalArgumentException("Truncated " + FORMAT + " batch");
+			int b = data[pos[0]++];
+			v |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return v;
+		}
+		throw new IllegalArgumentException("Bad varint in " + FORMAT + " batch");
+	}
+
+	private static int readInt(byte[] data, int[] pos, int end) {
+		if (pos[0] + 4 > end)
+			throw new IllegalArgumentException("Truncated " + FORMAT + " batch");
+		int p = pos[0];
+		pos[0] += 4;
+		return (data[p] & 0xff) << 24 | (data[p + 1] & 0xff) << 16 | (data[p + 2] & 0xff) << 8 | (data[p + 3] & 0xff);
+	}
+}
@@ -0,0 +1,66 @@
+package pensieve.android;
+
+/**
+ * Records accelerometer, gyroscope and magnetometer samples into one SensorRing each, keeps a
+ * HeadingEstimator up to date from them, and drains the rings into ImuBatches to be sent.
+ * Nothing is allocated per sample.
+ *
+ * Samples are quantized when batched, to steps well below each sensor's noise: 0.001 m/s^2,
+ * 0.0001 rad/s and 0.01 uT.
+ */
+public class ImuRecorder {
+	public static final int ACCELEROMETER = 0, GYROSCOPE = 1, MAGNETOMETER = 2;
+	private static final String[] NAMES = { "accelerometer", "gyroscope", "magnetometer" };
+	private static final float[] QUANTA = { 0.001f, 0.0001f, 0.01f };
+
+	private final SensorRing[] rings = new SensorRing[3];
+	private final HeadingEstimator heading = new HeadingEstimator(0.2f);
+
+	// Drained samples; the batching thread's only
+	private final long[] timestamps;
+	private final float[] values;
+
+	/** @param capacity samples held per sensor between batches; the oldest are dropped beyond this */
+	public ImuRecorder(int capacity) {
+		for (int i = 0; i < rings.length; i++)
+			rings[i] = new SensorRing(capacity);
+		timestamps = new long[capacity];
+		values = new float[3 * capacity];
+	}
+
+	/** Record a sample of sensor (ACCELEROMETER, GYROSCOPE or MAGNETOMETER) taken at timestampNanos. */
+	public void onSample(int sensor, long timestampNanos, float x, float y, float z) {
+		rings[sensor].write(timestampNanos, x, y, z);
+		if (sensor == ACCELEROMETER)
+			heading.onAccelerometer(x, y, z);
+		else if (sensor == MAGNETOMETER)
+			heading.onMagnetometer(x, y, z);
+	}
+
+	public HeadingEstimator getHeading() {
+		return heading;
+	}
+
+	/** Move every sample recorded since the last call into batch (after batch.reset()); returns how many there were. One thread at a time. */
+	public synchronized int drainTo(ImuBatch batch) {
+		int total = 0;
+		for (int sensor = 0; sensor < rings.length; sensor++) {
+			int n = rings[sensor].drain(timestamps, values);
+			batch.addSensor(sensor, QUANTA[sensor], timestamps, values, n);
+			total += n;
+		}
+		return total;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int sensor = 0; sensor < rings.length; sensor++) {
+			sb.append(sensor > 0 ? ", " : "").append(NAMES[sensor]).append(": ").append(rings[sensor].getWritten()).append(" samples");
+			long dropped = rings[sensor].getDropped();
+			if (dropped > 0)
+				sb.append(" (").append(dropped).append(" dropped)");
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,161 @@
+package pensieve.android;
+
+import java.io.ByteArrayOutputStream;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+
+/**
+ * Encodes NV21 frames to JPEG without a fresh output array per frame.
+ *
+ * The JPEG goes into one growing buffer that is kept from frame to frame (read it with
+ * getData()/getLength() before the next encode). Before compressing, the frame can be
+ * cropped to a region of interest (passed to YuvImage as-is, so no copy) and/or downscaled
+ * 2x or 4x (into a reused NV21 buffer, see Nv21Frames). The YuvImages are kept too: one per
+ * camera buffer that comes by, and one for the scaled frames. The quality comes from a
+ * JpegRateController, so the frames sent stay within its byte budget.
+ */
+public class JpegEncoder extends FrameEncoder {
+	/** A ByteArrayOutputStream whose array is read in place rather than copied out. */
+	private static class ReusableOutputStream extends ByteArrayOutputStream {
+		ReusableOutputStream(int size) {
+			super(size);
+		}
+
+		byte[] getBuffer() {
+			return buf;
+		}
+	}
+
+	private final JpegRateController rate;
+	private final ReusableOutputStream out = new ReusableOutputStream(64 * 1024);
+	private final Rect rect = new Rect();
+	private final int[] region = new int[4];
+
+	// Full frames: a YuvImage per preview buffer in circulation, reused while its array and size are
+	private final YuvImage[] frameImages = new YuvImage[4];
+	private int nextFrameImage = 0;
+
+	// Scaled frames
+	private byte[] scaled = null;
+	private YuvImage scaledImage = null; // wraps scaled, without copying it
+	private int scaledWidth = 0, scaledHeight = 0;
+
+	// Last frame
+	private int width = 0, height = 0, quality = 0;
+	private long framesOverBudget = 0;
+
+	public JpegEncoder(JpegRateController rate) {
+		this.rate = rate;
+	}
+
+	public JpegRateController getRateController() {
+		return rate;
+	}
+
+	@Override
+	public String getFormat() {
+		return "jpeg";
+	}
+
+	/** False if the frame should be skipped to stay within the byte budget, or if compression failed. */
+	@Override
+	public synchronized boolean encode(byte[] imageNV21, int frameWidth, int frameHeight, long nowNanos) {
+		int q = rate.getQuality(nowNanos);
+		if (rate.isOverBudget()) {
+			framesOverBudget++;
+			return false;
+		}
+
+		// * Region, snapped to even coordinates and clipped to the frame
+		getRegion(frameWidth, frameHeight, region);
+		int left = region[0], top = region[1], w = region[2], h = region[3];
+		int downscale = getDownscale();
+
+		// * Source: the frame itself (YuvImage crops for free), or a downscaled copy
+		YuvImage image;
+		if (downscale == 1) {
+			image = getFrameImage(imageNV21, frameWidth, frameHeight);
+			rect.set(left, top, left + w, top + h);
+			width = w;
+			height = h;
+		}
+		else {
+			width = Nv21Frames.getScaledSize(w, downscale);
+			height = Nv21Frames.getScaledSize(h, downscale);
+			if (width == 0 || height == 0)
+				return false;
+			if (scaledImage == null || width != scaledWidth || height != scaledHeight) {
+				scaled = new byte[Nv21Converter.getNV21Size(width, height)];
+				scaledImage = new YuvImage(scaled, ImageFormat.NV21, width, height, null);
+				scaledWidth = width;
+				scaledHeight = height;
+			}
+			Nv21Frames.cropAndScale(imageNV21, frameWidth, frameHeight, left, top, w, h, downscale, scaled);
+			image = scaledImage;
+			rect.set(0, 0, width, height);
+		}
+
+		out.reset(); // keeps the array
+		quality = q;
+		return image.compressToJpeg(rect, q, out);
+	}
+
+	/** A YuvImage wrapping data, made only the first time this array comes by at this size. */
+	private YuvImage getFrameImage(byte[] data, int frameWidth, int frameHeight) {
+		for (YuvImage image : frameImages) {
+			if (image != null && image.getYuvData() == data && image.getWidth() == frameWidth && image.getHeight() == frameHeight)
+				return image;
+		}
+		YuvImage image = new YuvImage(data, ImageFormat.NV21, frameWidth, frameHeight, null);
+		frameImages[nextFrameImage] = image; // replaces the oldest, e.g. a buffer from before a resize
+		nextFrameImage = (nextFrameImage + 1) % frameImages.length;
+		return image;
+	}
+
+	/** The last JPEG; valid until the next encode(). */
+	@Override
+	public synchronized byte[] getData() {
+		return out.getBuffer();
+	}
+
+	@Override
+	public int getOffset() {
+		return 0;
+	}
+
+	@Override
+	public synchronized int getLength() {
+		return out.size();
+	}
+
+	@Override
+	public synchronized int getWidth() {
+		return width;
+	}
+
+	@Override
+	public synchronized int getHeight() {
+		return height;
+	}
+
+	public synchronized int getQuality() {
+		return quality;
+	}
+
+	/** Tells the rate controller. */
+	@Override
+	public synchronized void onSent(boolean sent) {
+		rate.onFrame(quality, out.size(), sent);
+	}
+
+	public synchronized long getFramesOverBudget() {
+		return framesOverBudget;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return framesOverBudget + " frames skipped over budget; " + rate;
+	}
+}
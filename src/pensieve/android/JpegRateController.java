@@ -0,0 +1,92 @@
+package pensieve.android;
+
+/**
+ * Picks the JPEG quality of each frame so the frames sent stay within a bytes-per-second
+ * budget.
+ *
+ * The budget accrues as credit over time (up to burstSeconds' worth) and each frame sent
+ * spends its size. The target for the next frame is one frame interval's worth of budget,
+ * plus a share of any credit saved up (or minus a share of any overdraft). JPEG size grows
+ * roughly exponentially with quality in the useful range, so the quality is moved by
+ * QUALITY_PER_DOUBLING points per doubling of target / last size, damped by GAIN, within
+ * [minQuality, maxQuality]. If the budget is overdrawn even at minQuality, isOverBudget()
+ * says to skip frames until credit comes back.
+ */
+public class JpegRateController {
+	private static final float QUALITY_PER_DOUBLING = 12; // JPEG quality points that roughly double the size
+	private static final float GAIN = 0.5f;
+	private static final float CREDIT_SHARE = 0.25f; // of the saved-up credit (or overdraft) spent per frame
+
+	private final int minQuality, maxQuality;
+	private final float burstSeconds;
+	private int bytesPerSecond;
+
+	private float quality;
+	private float credit; // bytes; starts with a full burst
+	private float frameInterval = -1; // seconds, smoothed
+	private long lastFrameAt = 0;
+	private long frames = 0, bytesSent = 0;
+
+	/** @param bytesPerSecond budget; 0 or less keeps the quality at initialQuality */
+	public JpegRateController(int bytesPerSecond, int initialQuality, int minQuality, int maxQuality, float burstSeconds) {
+		this.minQuality = Math.max(1, minQuality);
+		this.maxQuality = Math.min(100, Math.max(this.minQuality, maxQuality));
+		this.burstSeconds = burstSeconds;
+		this.bytesPerSecond = bytesPerSecond;
+		quality = clamp(initialQuality);
+		credit = Math.max(0, bytesPerSecond * burstSeconds);
+	}
+
+	public synchronized void setBytesPerSecond(int bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	public synchronized int getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	/** Quality for a frame captured at nowNanos (System.nanoTime()); also accrues the budget since the last frame. */
+	public synchronized int getQuality(long nowNanos) {
+		if (lastFrameAt != 0) {
+			float elapsed = Math.min((nowNanos - lastFrameAt) / 1e9f, burstSeconds);
+			if (elapsed > 0) {
+				frameInterval = frameInterval < 0 ? elapsed : frameInterval + (elapsed - frameInterval) / 4;
+				credit = Math.min(credit + bytesPerSecond * elapsed, bytesPerSecond * burstSeconds);
+			}
+		}
+		lastFrameAt = nowNanos;
+		return Math.round(quality);
+	}
+
+	/** True while the budget is overdrawn at minQuality; skip the frame (getQuality() still accrues credit). */
+	public synchronized boolean isOverBudget() {
+		return bytesPerSecond > 0 && credit < 0 && Math.round(quality) <= minQuality;
+	}
+
+	/**
+	 * Record a frame encoded at usedQuality into size bytes, and whether it was sent (only
+	 * sent frames spend the budget, but every frame says how size follows quality).
+	 */
+	public synchronized void onFrame(int usedQuality, int size, boolean sent) {
+		frames++;
+		if (sent) {
+			credit -= size;
+			bytesSent += size;
+		}
+		if (bytesPerSecond <= 0 || size <= 0 || frameInterval < 0)
+			return;
+		float target = Math.max(bytesPerSecond * frameInterval + CREDIT_SHARE * credit, 1);
+		double doublings = Math.log(target / size) / Math.log(2);
+		quality = clamp((float) (usedQuality + GAIN * QUALITY_PER_DOUBLING * doublings));
+	}
+
+	private float clamp(float q) {
+		return Math.max(minQuality, Math.min(maxQuality, q));
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "JPEG quality " + Math.round(quality) + " for " + bytesPerSecond + " B/s (credit " + (int) credit + " B, frame every " + (int) (frameInterval * 1000) + " ms; " + bytesSent
+				+ " bytes in " + frames + " frames)";
+	}
+}
@@ -0,0 +1,139 @@
+package pensieve.android;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free, allocation-free histogram of durations in microseconds, for recording from any
+ * thread on a hot path.
+ *
+ * Buckets are log-linear: values below 8 get a bucket each, and every power of two above
+ * that is split into 8 equal buckets, so a percentile is reported to within 12.5% of the
+ * value recorded. Values of an hour and more all land in the last bucket (max is exact).
+ */
+public class LatencyHistogram {
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int MAX_EXPONENT = 32; // 2^32 us: ~71 minutes
+	private static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/** An immutable copy of a histogram's counts. */
+	public static class Snapshot {
+		private final long[] counts;
+		private final long count, sum, max;
+
+		Snapshot(long[] counts, long count, long sum, long max) {
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		/** Mean in microseconds; 0 if empty. */
+		public long getMean() {
+			return count > 0 ? sum / count : 0;
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		/** Upper bound (in microseconds) of the bucket holding the p-th percentile, p in [0, 100]; 0 if empty. */
+		public long getPercentile(double p) {
+			long total = 0;
+			for (long c : counts)
+				total += c;
+			if (total == 0)
+				return 0;
+			long rank = Math.max(1, (long) Math.ceil(total * p / 100));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank)
+					return Math.min(upperBound(i), max);
+			}
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return "n=" + count + " mean=" + formatMicros(getMean()) + " p50=" + formatMicros(getPercentile(50)) + " p90=" + formatMicros(getPercentile(90))
+					+ " p99=" + formatMicros(getPercentile(99)) + " max=" + formatMicros(max);
+		}
+	}
+
+	/** Record a duration in microseconds (negative values count as 0). */
+	public void record(long micros) {
+		if (micros < 0)
+			micros = 0;
+		counts.incrementAndGet(bucket(micros));
+		count.incrementAndGet();
+		sum.addAndGet(micros);
+		long m;
+		while (micros > (m = max.get()) && !max.compareAndSet(m, micros)) {
+			// lost a race with a larger or concurrent update; retry
+		}
+	}
+
+	/** Record the time since startNanos, a System.nanoTime() reading. */
+	public void recordSince(long startNanos) {
+		record((System.nanoTime() - startNanos) / 1000);
+	}
+
+	/**
+	 * Copy the current counts. Recording carries on meanwhile, so count, sum and the buckets
+	 * may be a few records apart.
+	 */
+	public Snapshot snapshot() {
+		long[] copy = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			copy[i] = counts.get(i);
+		return new Snapshot(copy, count.get(), sum.get(), max.get());
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			counts.set(i, 0);
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	static int bucket(long micros) {
+		if (micros < SUB_BUCKETS)
+			return (int) micros;
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		if (exponent >= MAX_EXPONENT)
+			return BUCKETS - 1;
+		int mantissa = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return SUB_BUCKETS + (exponent - SUB_BITS) * SUB_BUCKETS + mantissa;
+	}
+
+	/** Largest value that falls in bucket i. */
+	static long upperBound(int i) {
+		if (i < SUB_BUCKETS)
+			return i;
+		int exponent = (i - SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS;
+		int mantissa = (i - SUB_BUCKETS) % SUB_BUCKETS;
+		if (i == BUCKETS - 1)
+			return Long.MAX_VALUE;
+		return ((long) (SUB_BUCKETS + mantissa + 1) << (exponent - SUB_BITS)) - 1;
+	}
+
+	static String formatMicros(long micros) {
+		if (micros < 10000)
+			return micros + "us";
+		if (micros < 10000000)
+			return (micros / 1000) + "ms";
+		return (micros / 1000000) + "s";
+	}
+}
@@ -0,0 +1,178 @@
+package pensieve.android;
+
+/**
+ * The wearer's recent path, as a ring of location fixes in primitive arrays, decimated as
+ * they come in: a fix is kept only once the wearer has moved minDistanceMeters (and further
+ * than the fix's accuracy) from the last fix kept, or has turned by minTurnDegrees over at
+ * least a quarter of that, or maxIntervalMillis has passed. Standing still or walking
+ * straight keeps few points, and requests only carry a location when it has changed (see
+ * ClientEngine).
+ *
+ * A fix offered is measured from the latest one kept, whose trig terms are worked out once
+ * when it is kept (see MathUtils.setOrigin()), so most fixes, which are dropped, cost one
+ * conversion. The trail's length and turns come from MathUtils' batch functions.
+ */
+public class LocationTrail {
+	private final double[] latitudes, longitudes;
+	private final float[] accuracies; // meters; 0 if unknown
+	private final long[] times; // ms since the epoch
+	private final float minDistanceMeters, minTurnDegrees;
+	private final long maxIntervalMillis;
+
+	private int start = 0, size = 0;
+	private long kept = 0, offered = 0; // kept doubles as a sequence number for the latest fix
+	private float heading = Float.NaN; // bearing of the last leg kept, degrees
+	private final double[] origin = new double[MathUtils.ORIGIN_SIZE]; // the latest fix, for MathUtils.getLegFrom()
+	private final float[] leg = new float[2];
+
+	/** A trail that keeps every fix, e.g. on the server side. */
+	public LocationTrail(int capacity) {
+		this(capacity, 0, 0, 0);
+	}
+
+	/**
+	 * @param capacity fixes kept; the oldest are dropped beyond this
+	 * @param minDistanceMeters keep a fix once this far from the last one kept
+	 * @param minTurnDegrees or once the heading has changed this much
+	 * @param maxIntervalMillis or once this long has passed since the last one kept (0 for never)
+	 */
+	public LocationTrail(int capacity, float minDistanceMeters, float minTurnDegrees, long maxIntervalMillis) {
+		latitudes = new double[capacity];
+		longitudes = new double[capacity];
+		accuracies = new float[capacity];
+		times = new long[capacity];
+		this.minDistanceMeters = minDistanceMeters;
+		this.minTurnDegrees = minTurnDegrees;
+		this.maxIntervalMillis = maxIntervalMillis;
+	}
+
+	/** Offer a fix; true if it was kept. */
+	public synchronized boolean add(double latitude, double longitude, float accuracy, long timeMillis) {
+		offered++;
+		if (size > 0) {
+			int last = index(size - 1);
+			if (timeMillis < times[last])
+				return false; // out of order
+			boolean due = maxIntervalMillis > 0 && timeMillis - times[last] >= maxIntervalMillis;
+			MathUtils.getLegFrom(origin, latitude, longitude, leg);
+			float meters = leg[0] * 1000;
+			float bearing = meters > 0 ? leg[1] : heading;
+
+			// * Moved far enough (and further than the fix could be off by), or turned
+			boolean moved = meters >= minDistanceMeters && meters > accuracy;
+			boolean turned = minTurnDegrees > 0 && !Float.isNaN(heading) && meters >= minDistanceMeters / 4 && meters > accuracy
+					&& Math.abs(MathUtils.mod(bearing - heading + 180, 360.0f) - 180) >= minTurnDegrees;
+			if (!moved && !turned && !due)
+				return false;
+			if (meters > accuracy)
+				heading = bearing; // a leg shorter than the error has no meaningful direction
+		}
+
+		// * Append, dropping the oldest fix if full
+		int i;
+		if (size < latitudes.length) {
+			i = index(size++);
+		}
+		else {
+			i = start;
+			start = index(1);
+		}
+		latitudes[i] = latitude;
+		longitudes[i] = longitude;
+		accuracies[i] = accuracy;
+		times[i] = timeMillis;
+		MathUtils.setOrigin(latitude, longitude, origin); // the fixes offered next are measured from here
+		kept++;
+		return true;
+	}
+
+	/** Fixes kept so far; changes whenever a new latest fix is kept. */
+	public synchronized long getSequence() {
+		return kept;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	/** Total length of the trail held, in meters. */
+	public synchronized double getLengthMeters() {
+		if (size < 2)
+			return 0;
+		// * The ring is at most two runs, joined by one leg across the wrap
+		int firstRun = Math.min(size, latitudes.length - start);
+		double km = MathUtils.getTrailLength(latitudes, longitudes, start, firstRun);
+		if (firstRun < size) {
+			km += MathUtils.getTrailLength(latitudes, longitudes, 0, size - firstRun);
+			km += MathUtils.getDistance(latitudes[latitudes.length - 1], longitudes[longitudes.length - 1], latitudes[0], longitudes[0]);
+		}
+		return km * 1000;
+	}
+
+	/**
+	 * Total change of direction along the trail held, in degrees: the turn between each pair of
+	 * consecutive legs, left or right. Legs shorter than minLegMeters are skipped, as their
+	 * direction is mostly noise.
+	 */
+	public synchronized double getTurnDegrees(float minLegMeters) {
+		if (size < 3)
+			return 0;
+		double[] lats = new double[size], lons = new double[size];
+		getPoints(lats, lons, null);
+		float[] distances = new float[size - 1], bearings = new float[size - 1];
+		MathUtils.getDistances(lats, lons, 0, size, distances);
+		MathUtils.getBearings(lats, lons, 0, size, bearings);
+		double degrees = 0;
+		float last = Float.NaN;
+		for (int i = 0; i < size - 1; i++) {
+			if (distances[i] * 1000 < minLegMeters)
+				continue;
+			if (!Float.isNaN(last))
+				degrees += Math.abs(MathUtils.mod(bearings[i] - last + 180, 360.0f) - 180);
+			last = bearings[i];
+		}
+		return degrees;
+	}
+
+	/**
+	 * Copy the fixes held, oldest first, into the given arrays (any may be null); returns how
+	 * many there were.
+	 */
+	public synchronized int getPoints(double[] latitudesOut, double[] longitudesOut, long[] timesOut) {
+		for (int n = 0; n < size; n++) {
+			int i = index(n);
+			if (latitudesOut != null)
+				latitudesOut[n] = latitudes[i];
+			if (longitudesOut != null)
+				longitudesOut[n] = longitudes[i];
+			if (timesOut != null)
+				timesOut[n] = times[i];
+		}
+		return size;
+	}
+
+	/**
+	 * The latest fix, into fix as { latitude, longitude, accuracy (m), time (ms since the
+	 * epoch), sequence }; false if there is none.
+	 */
+	public synchronized boolean getLatest(double[] fix) {
+		if (size == 0)
+			return false;
+		int i = index(size - 1);
+		fix[0] = latitudes[i];
+		fix[1] = longitudes[i];
+		fix[2] = accuracies[i];
+		fix[3] = times[i];
+		fix[4] = kept;
+		return true;
+	}
+
+	private int index(int n) {
+		return (start + n) % latitudes.length;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return kept + " of " + offered + " fixes kept, " + size + " held over " + Math.round(getLengthMeters()) + " m";
+	}
+}
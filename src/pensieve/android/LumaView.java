@@ -0,0 +1,101 @@
+package pensieve.android;
+
+/**
+ * A window onto the Y (luma) plane of an NV21 frame, which is already an 8-bit grayscale
+ * image: width x height pixels starting at offset, rows stride bytes apart. Cropping makes
+ * a new view of the same array; nothing is copied until copyTo() or downsample() packs
+ * the pixels into a buffer of the caller's. The view is only good while the frame's buffer
+ * is (i.e. until it goes back to the camera).
+ */
+public final class LumaView {
+	private final byte[] data;
+	private final int offset, stride, width, height;
+
+	private LumaView(byte[] data, int offset, int stride, int width, int height) {
+		this.data = data;
+		this.offset = offset;
+		this.stride = stride;
+		this.width = width;
+		this.height = height;
+	}
+
+	/** The whole Y plane of a width x height NV21 frame. */
+	public static LumaView of(byte[] imageNV21, int width, int height) {
+		if (imageNV21.length < width * height)
+			throw new IllegalArgumentException("A " + width + "x" + height + " frame needs at least " + (width * height) + " bytes, not " + imageNV21.length);
+		return new LumaView(imageNV21, 0, width, width, height);
+	}
+
+	/** The cropWidth x cropHeight part at (left, top) of this view, clipped to it. */
+	public LumaView crop(int left, int top, int cropWidth, int cropHeight) {
+		left = Math.max(0, Math.min(left, width));
+		top = Math.max(0, Math.min(top, height));
+		return new LumaView(data, offset + top * stride + left, stride, Math.min(cropWidth, width - left), Math.min(cropHeight, height - top));
+	}
+
+	public byte[] getArray() {
+		return data;
+	}
+
+	/** Index of the top-left pixel in getArray(). */
+	public int getOffset() {
+		return offset;
+	}
+
+	public int getStride() {
+		return stride;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/** Whether the rows follow each other in the array, so the pixels can be sent as they are. */
+	public boolean isPacked() {
+		return stride == width || height <= 1;
+	}
+
+	/** Luma (0..255) of the pixel at (x, y). */
+	public int get(int x, int y) {
+		return data[offset + y * stride + x] & 0xff;
+	}
+
+	/** Pack the pixels into dst at dstOffset, row after row (width * height bytes). */
+	public void copyTo(byte[] dst, int dstOffset) {
+		if (isPacked()) {
+			System.arraycopy(data, offset, dst, dstOffset, width * height);
+			return;
+		}
+		for (int y = 0; y < height; y++)
+			System.arraycopy(data, offset + y * stride, dst, dstOffset + y * width, width);
+	}
+
+	/** Width (or height) after downsample() by factor. */
+	public static int getDownsampledSize(int length, int factor) {
+		return length / factor;
+	}
+
+	/**
+	 * Box-filter by factor (1, 2 or 4) into dst at dstOffset as packed grayscale,
+	 * getDownsampledSize(width) x getDownsampledSize(height) bytes; any leftover edge
+	 * pixels are dropped.
+	 */
+	public void downsample(int factor, byte[] dst, int dstOffset) {
+		if (factor != 1 && factor != 2 && factor != 4)
+			throw new IllegalArgumentException("Downsample factor must be 1, 2 or 4: " + factor);
+		if (factor == 1) {
+			copyTo(dst, dstOffset);
+			return;
+		}
+		Nv21Frames.scalePlane(data, offset, stride, 0, 0, width / factor, height / factor, factor, 1, dst, dstOffset);
+	}
+
+	@Override
+	public String toString() {
+		return width + "x" + height + " luma at " + offset + " (stride " + stride + ")";
+	}
+}
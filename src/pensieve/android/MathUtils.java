@@ -27,6 +27,12 @@ public class MathUtils {
     /** The Earth's radius, in kilometers. */
     private static final double EARTH_RADIUS_KM = 6371.0;
 
+    /** The length of the array {@link #setOrigin} fills. */
+    public static final int ORIGIN_SIZE = 12;
+
+    /** Half chord (of the unit sphere) below which getChordAngle() avoids asin(); about 13 km. */
+    private static final double SMALL_CHORD = 1e-3;
+
     /**
      * Calculates {@code a mod b} in a way that respects negative values (for example,
      * {@code mod(-1, 5) == 4}, rather than {@code -1}).
@@ -116,4 +122,192 @@ public class MathUtils {
 
         return (float) (EARTH_RADIUS_KM * c);
     }
+
+    /**
+     * Gets the great circle distance in kilometers of each leg of a trail of points. Each
+     * point is converted once to a unit vector (rather than twice to radians and cosines, once
+     * for each leg it is part of), and each leg's central angle comes from the chord between
+     * its ends, which is exact on the sphere like {@link #getDistance}'s haversine formula.
+     *
+     * @param latitudes the latitudes of the points
+     * @param longitudes the longitudes of the points
+     * @param offset the index of the first point
+     * @param count the number of points
+     * @param distances receives the distance from point {@code offset + i} to the next at
+     *        index {@code i}, for the {@code count - 1} legs
+     */
+    public static void getDistances(double[] latitudes, double[] longitudes, int offset,
+            int count, float[] distances) {
+        if (count < 2) {
+            return;
+        }
+        double[] p = new double[6]; // this point's vector, then the previous point's
+        toUnitVector(latitudes[offset], longitudes[offset], p, 3);
+        for (int i = 1; i < count; i++) {
+            toUnitVector(latitudes[offset + i], longitudes[offset + i], p, 0);
+            distances[i - 1] = (float) (EARTH_RADIUS_KM * getChordAngle(p));
+            p[3] = p[0];
+            p[4] = p[1];
+            p[5] = p[2];
+        }
+    }
+
+    /**
+     * Gets the great circle distance in kilometers from one point to each of many, as
+     * {@link #getDistances} does, converting the origin once.
+     *
+     * @param latitude the latitude of the origin
+     * @param longitude the longitude of the origin
+     * @param latitudes the latitudes of the other points
+     * @param longitudes the longitudes of the other points
+     * @param offset the index of the first of the other points
+     * @param count the number of other points
+     * @param distances receives the distance to point {@code offset + i} at index {@code i}
+     */
+    public static void getDistancesFrom(double latitude, double longitude, double[] latitudes,
+            double[] longitudes, int offset, int count, float[] distances) {
+        double[] p = new double[6];
+        toUnitVector(latitude, longitude, p, 3);
+        for (int i = 0; i < count; i++) {
+            toUnitVector(latitudes[offset + i], longitudes[offset + i], p, 0);
+            distances[i] = (float) (EARTH_RADIUS_KM * getChordAngle(p));
+        }
+    }
+
+    /**
+     * Gets the total great circle length in kilometers of a trail of points, as
+     * {@link #getDistances} does.
+     *
+     * @param latitudes the latitudes of the points
+     * @param longitudes the longitudes of the points
+     * @param offset the index of the first point
+     * @param count the number of points
+     * @return the sum of the distances between consecutive points; 0 for fewer than two
+     */
+    public static double getTrailLength(double[] latitudes, double[] longitudes, int offset,
+            int count) {
+        double angle = 0;
+        if (count < 2) {
+            return angle;
+        }
+        double[] p = new double[6];
+        toUnitVector(latitudes[offset], longitudes[offset], p, 3);
+        for (int i = 1; i < count; i++) {
+            toUnitVector(latitudes[offset + i], longitudes[offset + i], p, 0);
+            angle += getChordAngle(p);
+            p[3] = p[0];
+            p[4] = p[1];
+            p[5] = p[2];
+        }
+        return EARTH_RADIUS_KM * angle;
+    }
+
+    /**
+     * Gets the bearing of each leg of a trail of points, as {@link #getBearing} would, but
+     * taking the sine and cosine of each point's latitude once rather than once per leg.
+     *
+     * @param latitudes the latitudes of the points
+     * @param longitudes the longitudes of the points
+     * @param offset the index of the first point
+     * @param count the number of points
+     * @param bearings receives the bearing from point {@code offset + i} to the next at index
+     *        {@code i}, in degrees in the range 0-360, for the {@code count - 1} legs
+     */
+    public static void getBearings(double[] latitudes, double[] longitudes, int offset,
+            int count, float[] bearings) {
+        if (count < 2) {
+            return;
+        }
+        double lat1 = Math.toRadians(latitudes[offset]);
+        double lon1 = Math.toRadians(longitudes[offset]);
+        double sinLat1 = Math.sin(lat1);
+        double cosLat1 = Math.cos(lat1);
+        for (int i = 1; i < count; i++) {
+            double lon2 = Math.toRadians(longitudes[offset + i]);
+            double lat2 = Math.toRadians(latitudes[offset + i]);
+            double sinLat2 = Math.sin(lat2);
+            double cosLat2 = Math.cos(lat2);
+            double dLon = lon2 - lon1;
+
+            double y = Math.sin(dLon) * cosLat2;
+            double x = cosLat1 * sinLat2 - sinLat1 * cosLat2 * Math.cos(dLon);
+            bearings[i - 1] = mod((float) Math.toDegrees(Math.atan2(y, x)), 360.0f);
+            lon1 = lon2;
+            sinLat1 = sinLat2;
+            cosLat1 = cosLat2;
+        }
+    }
+
+    /**
+     * Stores the terms of a point that {@link #getLegFrom} needs, so a point that many others
+     * are measured from is converted once: its unit vector, and the unit vectors pointing east
+     * and north from it.
+     *
+     * @param latitude the latitude of the point
+     * @param longitude the longitude of the point
+     * @param origin receives the terms; at least {@link #ORIGIN_SIZE} long. It is also scratch
+     *        space for {@link #getLegFrom}, so use one per thread
+     */
+    public static void setOrigin(double latitude, double longitude, double[] origin) {
+        double sinLat = Math.sin(Math.toRadians(latitude));
+        double cosLat = Math.sqrt(1 - sinLat * sinLat);
+        double lon = Math.toRadians(longitude);
+        double sinLon = Math.sin(lon);
+        double cosLon = Math.cos(lon);
+        // origin[0..2] is left for the destination's unit vector, see getChordAngle()
+        origin[3] = cosLat * cosLon;
+        origin[4] = cosLat * sinLon;
+        origin[5] = sinLat;
+        origin[6] = -sinLon;
+        origin[7] = cosLon;
+        origin[8] = 0;
+        origin[9] = -sinLat * cosLon;
+        origin[10] = -sinLat * sinLon;
+        origin[11] = cosLat;
+    }
+
+    /**
+     * Gets the great circle distance and the bearing from a point stored by {@link #setOrigin}
+     * to another, as {@link #getDistance} and {@link #getBearing} would. Only the destination
+     * is converted, and the bearing comes from its components along the origin's east and
+     * north rather than from differences of angles.
+     *
+     * @param origin the origin's terms, from {@link #setOrigin}
+     * @param latitude the latitude of the destination
+     * @param longitude the longitude of the destination
+     * @param leg receives the distance in kilometers at index 0, and the bearing in degrees in
+     *        the range 0-360 at index 1
+     */
+    public static void getLegFrom(double[] origin, double latitude, double longitude,
+            float[] leg) {
+        toUnitVector(latitude, longitude, origin, 0);
+        leg[0] = (float) (EARTH_RADIUS_KM * getChordAngle(origin));
+        double y = origin[0] * origin[6] + origin[1] * origin[7] + origin[2] * origin[8];
+        double x = origin[0] * origin[9] + origin[1] * origin[10] + origin[2] * origin[11];
+        leg[1] = mod((float) Math.toDegrees(Math.atan2(y, x)), 360.0f);
+    }
+
+    /** Stores the unit vector of a point in degrees at {@code p[at]}, {@code p[at + 1]}, {@code p[at + 2]}. */
+    private static void toUnitVector(double latitude, double longitude, double[] p, int at) {
+        double sinLat = Math.sin(Math.toRadians(latitude));
+        double cosLat = Math.sqrt(1 - sinLat * sinLat); // latitudes are within +-90 degrees
+        double lon = Math.toRadians(longitude);
+        p[at] = cosLat * Math.cos(lon);
+        p[at + 1] = cosLat * Math.sin(lon);
+        p[at + 2] = sinLat;
+    }
+
+    /** Gets the central angle in radians between the unit vectors in {@code p[0..2]} and {@code p[3..5]}. */
+    private static double getChordAngle(double[] p) {
+        double dx = p[0] - p[3];
+        double dy = p[1] - p[4];
+        double dz = p[2] - p[5];
+        double h = Math.min(1, Math.sqrt(dx * dx + dy * dy + dz * dz) / 2);
+        if (h < SMALL_CHORD) {
+            // asin() by its series, which is exact to double precision here and much faster
+            double h2 = h * h;
+            return 2 * h * (1 + h2 * (1.0 / 6 + h2 * 3.0 / 40));
+        }
+        return 2 * Math.asin(h);
+    }
 }
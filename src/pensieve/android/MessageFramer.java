@@ -0,0 +1,58 @@
+package pensieve.android;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Builds FramedMessages as either separate header/payload frames (default) or the
+ * old combined packet, where header and data are joined by a separator byte.
+ */
+public class MessageFramer {
+	private final ByteBufferPool pool;
+	private final boolean combinedPacket;
+	private final byte separator;
+
+	public MessageFramer(ByteBufferPool pool, boolean combinedPacket, byte separator) {
+		this.pool = pool;
+		this.combinedPacket = combinedPacket;
+		this.separator = separator;
+	}
+
+	public boolean isCombinedPacket() {
+		return combinedPacket;
+	}
+
+	/** Header-only message (e.g. handshake). */
+	public FramedMessage frame(byte[] header) {
+		return new FramedMessage(pool, wrapHeader(header, 0), header.length, null, 0, 0, false);
+	}
+
+	/**
+	 * Message with room for payloadLength bytes, to be filled in place through
+	 * getPayloadArray()/getPayloadOffset() (e.g. straight from the audio ring).
+	 */
+	public FramedMessage frame(byte[] header, int payloadLength) {
+		if (combinedPacket) {
+			ByteBuffer packet = wrapHeader(header, 1 + payloadLength);
+			packet.array()[header.length] = separator;
+			return new FramedMessage(pool, packet, header.length, null, header.length + 1, payloadLength, false);
+		}
+		return new FramedMessage(pool, wrapHeader(header, 0), header.length, pool.acquire(payloadLength), 0, payloadLength, true);
+	}
+
+	/** Message around an existing payload array; it is sent as-is without copying in multipart mode. */
+	public FramedMessage frame(byte[] header, byte[] payload) {
+		if (combinedPacket) {
+			FramedMessage message = frame(header, payload.length);
+			System.arraycopy(payload, 0, message.getPayloadArray(), message.getPayloadOffset(), payload.length);
+			return message;
+		}
+		return new FramedMessage(pool, wrapHeader(header, 0), header.length, ByteBuffer.wrap(payload), 0, payload.length, false);
+	}
+
+	private ByteBuffer wrapHeader(byte[] header, int extra) {
+		ByteBuffer buffer = pool.acquire(header.length + extra);
+		buffer.put(header);
+		buffer.rewind();
+		return buffer;
+	}
+}
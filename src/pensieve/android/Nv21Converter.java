@@ -0,0 +1,157 @@
+package pensieve.android;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Fast NV21 (YCrCb 4:2:0, interleaved VU plane) to packed RGB conversion.
+ *
+ * Uses the same BT.601 coefficients as the original float converter, but precomputed per
+ * 8-bit input in 16.16 fixed point, and converts each 2x2 block of pixels that shares a
+ * chroma sample together. Output stays within +/-1 of the float version. The output buffer
+ * can be reused across frames, and the image can be split into row bands converted in
+ * parallel on an executor.
+ */
+public final class Nv21Converter {
+	private static final int SHIFT = 16;
+
+	// Per-value contributions, scaled by 2^SHIFT
+	private static final int[] Y_TABLE = new int[256];
+	private static final int[] RV_TABLE = new int[256];
+	private static final int[] GV_TABLE = new int[256];
+	private static final int[] GU_TABLE = new int[256];
+	private static final int[] BU_TABLE = new int[256];
+	// Clamps a scaled result (>> SHIFT) to 0..255, for results within [-CLAMP_OFFSET, CLAMP_OFFSET + 255]
+	private static final int CLAMP_OFFSET = 512;
+	private static final byte[] CLAMP = new byte[CLAMP_OFFSET * 2 + 256];
+
+	static {
+		final double scale = 1 << SHIFT;
+		for (int i = 0; i < 256; i++) {
+			Y_TABLE[i] = (int) Math.round(1.164 * (Math.max(i, 16) - 16) * scale);
+			RV_TABLE[i] = (int) Math.round(1.596 * (i - 128) * scale);
+			GV_TABLE[i] = (int) Math.round(-0.813 * (i - 128) * scale);
+			GU_TABLE[i] = (int) Math.round(-0.391 * (i - 128) * scale);
+			BU_TABLE[i] = (int) Math.round(2.018 * (i - 128) * scale);
+		}
+		for (int i = 0; i < CLAMP.length; i++) {
+			int v = i - CLAMP_OFFSET;
+			CLAMP[i] = (byte) (v < 0 ? 0 : (v > 255 ? 255 : v));
+		}
+	}
+
+	private Nv21Converter() {
+	}
+
+	/** Minimum NV21 buffer length for an image of the given size. */
+	public static int getNV21Size(int width, int height) {
+		return width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+	}
+
+	/**
+	 * Convert into imageRGB (3 bytes per pixel), allocating a new array only if it is null or too small.
+	 * Returns the array written to.
+	 */
+	public static byte[] toRGB(byte[] imageNV21, int width, int height, byte[] imageRGB) {
+		imageRGB = ensureOutput(imageNV21, width, height, imageRGB);
+		convertRows(imageNV21, width, height, imageRGB, 0, (height + 1) / 2);
+		return imageRGB;
+	}
+
+	/**
+	 * Like toRGB(), but splits the image into (up to) bands horizontal strips converted on executor.
+	 * Blocks until all bands are done.
+	 */
+	public static byte[] toRGB(final byte[] imageNV21, final int width, final int height, byte[] imageRGB, ExecutorService executor, int bands) {
+		final byte[] out = ensureOutput(imageNV21, width, height, imageRGB);
+		final int chromaRows = (height + 1) / 2;
+		bands = Math.max(1, Math.min(bands, chromaRows));
+		if (bands == 1 || executor == null) {
+			convertRows(imageNV21, width, height, out, 0, chromaRows);
+			return out;
+		}
+
+		List<Future<?>> futures = new ArrayList<Future<?>>(bands - 1);
+		for (int b = 1; b < bands; b++) {
+			final int from = chromaRows * b / bands;
+			final int to = chromaRows * (b + 1) / bands;
+			futures.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					convertRows(imageNV21, width, height, out, from, to);
+				}
+			}));
+		}
+		convertRows(imageNV21, width, height, out, 0, chromaRows / bands); // first band on the calling thread
+		try {
+			for (Future<?> f : futures)
+				f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while converting image", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Band conversion failed", e.getCause());
+		}
+		return out;
+	}
+
+	private static byte[] ensureOutput(byte[] imageNV21, int width, int height, byte[] imageRGB) {
+		if (width <= 0 || height <= 0 || imageNV21.length < getNV21Size(width, height))
+			throw new IllegalArgumentException("Invalid NV21 image; size: (" + width + ", " + height + "), num_bytes: " + imageNV21.length);
+		int size = width * height * 3;
+		return imageRGB != null && imageRGB.length >= size ? imageRGB : new byte[size];
+	}
+
+	/** Convert the pixel rows covered by chroma rows [fromChromaRow, toChromaRow). */
+	static void convertRows(byte[] nv21, int width, int height, byte[] rgb, int fromChromaRow, int toChromaRow) {
+		final int imageSize = width * height;
+		final int[] yTable = Y_TABLE, rv = RV_TABLE, gv = GV_TABLE, gu = GU_TABLE, bu = BU_TABLE;
+		final byte[] clamp = CLAMP;
+		final int round = CLAMP_OFFSET << SHIFT; // bias so >> SHIFT lands in the clamp table (also floors like the float cast does for positives)
+
+		for (int cr = fromChromaRow; cr < toChromaRow; cr++) {
+			int row0 = cr * 2;
+			boolean hasRow1 = row0 + 1 < height;
+			int y0 = row0 * width;
+			int y1 = y0 + width;
+			int o0 = y0 * 3;
+			int o1 = y1 * 3;
+			int c = imageSize + cr * width; // chroma rows are width bytes apiece (VU pairs)
+
+			for (int col = 0; col < width; col += 2, c += 2) {
+				int v = nv21[c] & 0xff;
+				int u = nv21[c + 1] & 0xff;
+				int r = rv[v] + round;
+				int g = gv[v] + gu[u] + round;
+				int b = bu[u] + round;
+				boolean hasCol1 = col + 1 < width;
+
+				int y = yTable[nv21[y0 + col] & 0xff];
+				rgb[o0++] = clamp[(y + r) >> SHIFT];
+				rgb[o0++] = clamp[(y + g) >> SHIFT];
+				rgb[o0++] = clamp[(y + b) >> SHIFT];
+				if (hasCol1) {
+					y = yTable[nv21[y0 + col + 1] & 0xff];
+					rgb[o0++] = clamp[(y + r) >> SHIFT];
+					rgb[o0++] = clamp[(y + g) >> SHIFT];
+					rgb[o0++] = clamp[(y + b) >> SHIFT];
+				}
+				if (hasRow1) {
+					y = yTable[nv21[y1 + col] & 0xff];
+					rgb[o1++] = clamp[(y + r) >> SHIFT];
+					rgb[o1++] = clamp[(y + g) >> SHIFT];
+					rgb[o1++] = clamp[(y + b) >> SHIFT];
+					if (hasCol1) {
+						y = yTable[nv21[y1 + col + 1] & 0xff];
+						rgb[o1++] = clamp[(y + r) >> SHIFT];
+						rgb[o1++] = clamp[(y + g) >> SHIFT];
+						rgb[o1++] = clamp[(y + b) >> SHIFT];
+					}
+				}
+			}
+		}
+	}
+}
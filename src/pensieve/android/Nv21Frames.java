@@ -0,0 +1,134 @@
+package pensieve.android;
+
+/**
+ * NV21 frame operations on plain arrays: crop to a region and box-filter downscale, NV21 in
+ * and NV21 out, so the result can go straight to the JPEG encoder. For grayscale, see
+ * LumaView, which slices the Y plane in place.
+ *
+ * Regions are snapped to even coordinates, since each 2x2 block of pixels shares one VU
+ * sample. Output buffers are the caller's, to be reused across frames.
+ */
+public final class Nv21Frames {
+	private Nv21Frames() {
+	}
+
+	/** Width (or height) of a crop of size length after downscaling by factor; even, as NV21 needs. */
+	public static int getScaledSize(int length, int factor) {
+		return (length / factor) & ~1;
+	}
+
+	/**
+	 * Crop imageNV21 (width x height) to the cropWidth x cropHeight region at (left, top),
+	 * downscaling it by factor (1, 2 or 4) with a box filter, into dst, which must hold
+	 * Nv21Converter.getNV21Size() of the scaled size (see getScaledSize()); the region is
+	 * snapped to even coordinates and must lie within the frame.
+	 */
+	public static void cropAndScale(byte[] imageNV21, int width, int height, int left, int top, int cropWidth, int cropHeight, int factor, byte[] dst) {
+		if (factor != 1 && factor != 2 && factor != 4)
+			throw new IllegalArgumentException("Downscale factor must be 1, 2 or 4: " + factor);
+		left &= ~1;
+		top &= ~1;
+		if (left < 0 || top < 0 || left + cropWidth > width || top + cropHeight > height)
+			throw new IllegalArgumentException("Region " + cropWidth + "x" + cropHeight + " at (" + left + ", " + top + ") is outside the " + width + "x" + height + " frame");
+		int outWidth = getScaledSize(cropWidth, factor), outHeight = getScaledSize(cropHeight, factor);
+		int chromaStride = 2 * ((width + 1) / 2);
+
+		// * Y plane: one output pixel per factor x factor block
+		scalePlane(imageNV21, 0, width, left, top, outWidth, outHeight, factor, 1, dst, 0);
+
+		// * VU plane: pairs at half resolution, each averaged over factor x factor pairs
+		scalePlane(imageNV21, width * height, chromaStride, left, top / 2, outWidth / 2, outHeight / 2, factor, 2, dst, outWidth * outHeight);
+	}
+
+	/**
+	 * Clip a region of interest to a frameWidth x frameHeight frame and snap it to even
+	 * coordinates, into region as { left, top, width, height }; a region of width or height
+	 * 0 means the whole frame.
+	 */
+	public static void clipRegion(int left, int top, int width, int height, int frameWidth, int frameHeight, int[] region) {
+		if (width <= 0 || height <= 0) {
+			left = top = 0;
+			width = frameWidth;
+			height = frameHeight;
+		}
+		region[0] = Math.max(0, Math.min(left, frameWidth - 2)) & ~1;
+		region[1] = Math.max(0, Math.min(top, frameHeight - 2)) & ~1;
+		region[2] = Math.min(width, frameWidth - region[0]) & ~1;
+		region[3] = Math.min(height, frameHeight - region[1]) & ~1;
+	}
+
+	/**
+	 * Box-filter one plane of interleaved samples (1 per pixel for Y, 2 for VU): output sample
+	 * (x, y) is the mean of the factor x factor block of source samples at
+	 * (x0 + x * factor, y0 + y * factor), counted in pixels (Y) or pairs (VU).
+	 */
+	static void scalePlane(byte[] src, int srcOffset, int srcStride, int x0Bytes, int y0, int outWidth, int outHeight, int factor, int interleave, byte[] dst, int dstOffset) {
+		int rowBytes = outWidth * interleave;
+		if (factor == 1) {
+			for (int y = 0; y < outHeight; y++)
+				System.arraycopy(src, srcOffset + (y0 + y) * srcStride + x0Bytes, dst, dstOffset + y * rowBytes, rowBytes);
+			return;
+		}
+		if (factor == 2) {
+			scalePlane2x(src, srcOffset, srcStride, x0Bytes, y0, outWidth, outHeight, interleave, dst, dstOffset);
+			return;
+		}
+		if (interleave == 1) {
+			scaleLuma4x(src, srcOffset, srcStride, x0Bytes, y0, outWidth, outHeight, dst, dstOffset);
+			return;
+		}
+		int shift = 4; // log2(factor * factor)
+		int round = 1 << (shift - 1);
+		int step = factor * interleave; // bytes between blocks in a row
+		int o = dstOffset;
+		for (int y = 0; y < outHeight; y++) {
+			int rowStart = srcOffset + (y0 + y * factor) * srcStride + x0Bytes;
+			for (int x = 0; x < outWidth; x++) {
+				int blockStart = rowStart + x * step;
+				for (int c = 0; c < interleave; c++) {
+					int sum = 0;
+					for (int dy = 0, p = blockStart + c; dy < factor; dy++, p += srcStride) {
+						for (int dx = 0; dx < step; dx += interleave)
+							sum += src[p + dx] & 0xff;
+					}
+					dst[o++] = (byte) ((sum + round) >> shift);
+				}
+			}
+		}
+	}
+
+	/** scalePlane() for factor 2, the common case, unrolled to two rows of two. */
+	private static void scalePlane2x(byte[] src, int srcOffset, int srcStride, int x0Bytes, int y0, int outWidth, int outHeight, int interleave, byte[] dst, int dstOffset) {
+		int rowBytes = outWidth * interleave;
+		int o = dstOffset;
+		for (int y = 0; y < outHeight; y++) {
+			int p = srcOffset + (y0 + 2 * y) * srcStride + x0Bytes;
+			int q = p + srcStride;
+			if (interleave == 1) {
+				for (int end = o + rowBytes; o < end; p += 2, q += 2)
+					dst[o++] = (byte) (((src[p] & 0xff) + (src[p + 1] & 0xff) + (src[q] & 0xff) + (src[q + 1] & 0xff) + 2) >> 2);
+				continue;
+			}
+			for (int i = 0; i < rowBytes; i += interleave, p += interleave, q += interleave) {
+				for (int end = o + interleave; o < end; p++, q++)
+					dst[o++] = (byte) (((src[p] & 0xff) + (src[p + interleave] & 0xff) + (src[q] & 0xff) + (src[q + interleave] & 0xff) + 2) >> 2);
+			}
+		}
+	}
+
+	/** scalePlane() for factor 4 on the Y plane, four rows at a time. */
+	private static void scaleLuma4x(byte[] src, int srcOffset, int srcStride, int x0, int y0, int outWidth, int outHeight, byte[] dst, int dstOffset) {
+		int o = dstOffset;
+		for (int y = 0; y < outHeight; y++) {
+			int p0 = srcOffset + (y0 + 4 * y) * srcStride + x0;
+			int p1 = p0 + srcStride, p2 = p1 + srcStride, p3 = p2 + srcStride;
+			for (int end = o + outWidth; o < end; p0 += 4, p1 += 4, p2 += 4, p3 += 4) {
+				int sum = (src[p0] & 0xff) + (src[p0 + 1] & 0xff) + (src[p0 + 2] & 0xff) + (src[p0 + 3] & 0xff)
+						+ (src[p1] & 0xff) + (src[p1 + 1] & 0xff) + (src[p1 + 2] & 0xff) + (src[p1 + 3] & 0xff)
+						+ (src[p2] & 0xff) + (src[p2 + 1] & 0xff) + (src[p2 + 2] & 0xff) + (src[p2 + 3] & 0xff)
+						+ (src[p3] & 0xff) + (src[p3 + 1] & 0xff) + (src[p3 + 2] & 0xff) + (src[p3 + 3] & 0xff);
+				dst[o++] = (byte) ((sum + 8) >> 4);
+			}
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package pensieve.android;
+
+/** Raw 16-bit little-endian PCM, sent as captured. */
+public class Pcm16Codec implements AudioCodec {
+	public static final String NAME = "pcm16";
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public int getMaxEncodedSize(int pcmBytes) {
+		return pcmBytes;
+	}
+
+	@Override
+	public int encode(byte[] pcm, int offset, int length, byte[] out, int outOffset) {
+		System.arraycopy(pcm, offset, out, outOffset, length);
+		return length;
+	}
+}
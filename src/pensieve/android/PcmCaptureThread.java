@@ -0,0 +1,73 @@
+package pensieve.android;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Runs a single long-lived AudioRecord (16-bit mono PCM) and streams everything it
+ * captures into a PcmRingBuffer, until stopped.
+ */
+public class PcmCaptureThread extends Thread {
+	private static final String TAG = "PcmCapture";
+
+	private final PcmRingBuffer ring;
+	private final int sampleRate;
+	private volatile boolean running = true;
+
+	public PcmCaptureThread(PcmRingBuffer ring, int sampleRate) {
+		super("PcmCapture");
+		this.ring = ring;
+		this.sampleRate = sampleRate;
+	}
+
+	public void run() {
+		Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+		int minBufferSize = AudioRecord.getMinBufferSize(sampleRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+		if (minBufferSize == AudioRecord.ERROR || minBufferSize == AudioRecord.ERROR_BAD_VALUE) {
+			Log.e(TAG, "Unsupported capture parameters; sample rate: " + sampleRate);
+			return;
+		}
+		// Give the driver some slack, but read in small frames (~20 ms) to keep the ring fresh
+		int frameSize = Math.max(2, (sampleRate / 50) * 2);
+		AudioRecord record = new AudioRecord(MediaRecorder.AudioSource.MIC, sampleRate, AudioFormat.CHANNEL_IN_MONO,
+				AudioFormat.ENCODING_PCM_16BIT, Math.max(minBufferSize, frameSize) * 4);
+		if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+			Log.e(TAG, "AudioRecord failed to initialize");
+			record.release();
+			return;
+		}
+
+		byte[] frame = new byte[frameSize];
+		try {
+			record.startRecording();
+			Log.d(TAG, "Capturing at " + sampleRate + " Hz into a " + ring.getCapacity() + " byte ring");
+			while (running) {
+				int n = record.read(frame, 0, frame.length);
+				if (n > 0) {
+					ring.write(frame, 0, n);
+				} else if (n < 0) {
+					Log.e(TAG, "AudioRecord read failed: " + n);
+					break;
+				}
+			}
+		} finally {
+			record.stop();
+			record.release();
+			Log.d(TAG, "Capture stopped");
+		}
+	}
+
+	/** Stop capturing and wait for the recorder to be released. */
+	public void stopCapture() {
+		running = false;
+		try {
+			join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
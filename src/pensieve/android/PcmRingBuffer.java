@@ -0,0 +1,65 @@
+package pensieve.android;
+
+/**
+ * Preallocated ring of raw PCM audio bytes, filled by a single capture thread.
+ * Audio is addressed by absolute byte position (total bytes written so far), so
+ * readers can slice chunks straight out of the ring without touching storage.
+ */
+public class PcmRingBuffer {
+	private final byte[] buffer;
+	private final int capacity;
+	private long writePosition = 0; // total number of bytes ever written
+
+	public PcmRingBuffer(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Ring capacity must be positive: " + capacity);
+		this.capacity = capacity;
+		buffer = new byte[capacity];
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/** Absolute position just past the most recently written byte. */
+	public synchronized long getWritePosition() {
+		return writePosition;
+	}
+
+	/** Absolute position of the oldest byte still held in the ring. */
+	public synchronized long getOldestPosition() {
+		return Math.max(0, writePosition - capacity);
+	}
+
+	/** Append bytes to the ring, overwriting the oldest audio once it is full. */
+	public synchronized void write(byte[] src, int offset, int length) {
+		if (length > capacity) { // only the tail would survive anyways
+			offset += length - capacity;
+			writePosition += length - capacity;
+			length = capacity;
+		}
+		int start = (int) (writePosition % capacity);
+		int firstPart = Math.min(length, capacity - start);
+		System.arraycopy(src, offset, buffer, start, firstPart);
+		if (firstPart < length)
+			System.arraycopy(src, offset + firstPart, buffer, 0, length - firstPart);
+		writePosition += length;
+	}
+
+	/**
+	 * Copy up to length bytes starting at absolute position into dst.
+	 * Positions that have already been overwritten are skipped; returns the number of bytes copied.
+	 */
+	public synchronized int read(long position, byte[] dst, int offset, int length) {
+		position = Math.max(position, Math.max(0, writePosition - capacity));
+		length = (int) Math.min(length, writePosition - position);
+		if (length <= 0)
+			return 0;
+		int start = (int) (position % capacity);
+		int firstPart = Math.min(length, capacity - start);
+		System.arraycopy(buffer, start, dst, offset, firstPart);
+		if (firstPart < length)
+			System.arraycopy(buffer, 0, dst, offset + firstPart, length - firstPart);
+		return length;
+	}
+}
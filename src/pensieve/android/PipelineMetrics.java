@@ -0,0 +1,150 @@
+package pensieve.android;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Where the time goes between the microphone and the screen: a LatencyHistogram per
+ * pipeline Stage plus a set of Counters, all safe to update from any thread without locks
+ * or allocation. snapshot() gives a consistent-enough copy for logging or for the server.
+ */
+public class PipelineMetrics {
+	public enum Stage {
+		CAPTURE, // slicing a chunk out of the capture ring (or a recording), incl. voice gating
+		ENCODE, // framing and encoding a chunk for upload
+		QUEUE_WAIT, // from a chunk being queued to the uploader taking it
+		SEND, // handing a request to the transport
+		ROUND_TRIP, // request sent to reply received
+		PARSE, // decoding a reply
+		DISPLAY, // new text to it being drawn
+	}
+
+	public enum Counter {
+		CHUNKS_QUEUED,
+		CHUNKS_DROPPED, // by the upload queue's overflow policy
+		CHUNKS_SENT,
+		REQUESTS_SENT,
+		BYTES_SENT, // audio payload bytes
+		REQUESTS_FAILED,
+		RETRIES, // chunks spooled or handed out again after a failure
+		TIMEOUTS,
+	}
+
+	private static final Stage[] STAGES = Stage.values();
+	private static final Counter[] COUNTERS = Counter.values();
+
+	private final LatencyHistogram[] histograms = new LatencyHistogram[STAGES.length];
+	private final AtomicLongArray counters = new AtomicLongArray(COUNTERS.length);
+	private final long startedAt = System.currentTimeMillis();
+
+	public PipelineMetrics() {
+		for (int i = 0; i < histograms.length; i++)
+			histograms[i] = new LatencyHistogram();
+	}
+
+	/** A System.nanoTime() reading, to pass to recordSince() later. */
+	public static long now() {
+		return System.nanoTime();
+	}
+
+	public void record(Stage stage, long micros) {
+		histograms[stage.ordinal()].record(micros);
+	}
+
+	/** Record the time since startNanos (see now()) against stage. */
+	public void recordSince(Stage stage, long startNanos) {
+		histograms[stage.ordinal()].recordSince(startNanos);
+	}
+
+	public void increment(Counter counter) {
+		counters.incrementAndGet(counter.ordinal());
+	}
+
+	public void add(Counter counter, long delta) {
+		counters.addAndGet(counter.ordinal(), delta);
+	}
+
+	public long get(Counter counter) {
+		return counters.get(counter.ordinal());
+	}
+
+	public Snapshot snapshot() {
+		LatencyHistogram.Snapshot[] stages = new LatencyHistogram.Snapshot[STAGES.length];
+		for (int i = 0; i < stages.length; i++)
+			stages[i] = histograms[i].snapshot();
+		long[] values = new long[COUNTERS.length];
+		for (int i = 0; i < values.length; i++)
+			values[i] = counters.get(i);
+		return new Snapshot(System.currentTimeMillis() - startedAt, stages, values);
+	}
+
+	/** The metrics at one point in time. */
+	public static class Snapshot {
+		private final long uptimeMillis;
+		private final LatencyHistogram.Snapshot[] stages;
+		private final long[] counters;
+
+		Snapshot(long uptimeMillis, LatencyHistogram.Snapshot[] stages, long[] counters) {
+			this.uptimeMillis = uptimeMillis;
+			this.stages = stages;
+			this.counters = counters;
+		}
+
+		public long getUptimeMillis() {
+			return uptimeMillis;
+		}
+
+		public LatencyHistogram.Snapshot get(Stage stage) {
+			return stages[stage.ordinal()];
+		}
+
+		public long get(Counter counter) {
+			return counters[counter.ordinal()];
+		}
+
+		/**
+		 * As JSON: {"uptime_ms": ..., "stages": {"capture": {"count", "mean_us", "p50_us",
+		 * "p90_us", "p99_us", "max_us"}, ...}, "counters": {"chunks_queued": ..., ...}}
+		 */
+		public JSONObject toJson() throws JSONException {
+			JSONObject stagesObj = new JSONObject();
+			for (Stage stage : STAGES) {
+				LatencyHistogram.Snapshot h = stages[stage.ordinal()];
+				JSONObject obj = new JSONObject();
+				obj.put("count", h.getCount());
+				obj.put("mean_us", h.getMean());
+				obj.put("p50_us", h.getPercentile(50));
+				obj.put("p90_us", h.getPercentile(90));
+				obj.put("p99_us", h.getPercentile(99));
+				obj.put("max_us", h.getMax());
+				stagesObj.put(stage.name().toLowerCase(Locale.US), obj);
+			}
+			JSONObject countersObj = new JSONObject();
+			for (Counter counter : COUNTERS)
+				countersObj.put(counter.name().toLowerCase(Locale.US), counters[counter.ordinal()]);
+			JSONObject obj = new JSONObject();
+			obj.put("uptime_ms", uptimeMillis);
+			obj.put("stages", stagesObj);
+			obj.put("counters", countersObj);
+			return obj;
+		}
+
+		/** One line per stage that saw any samples, then the counters. */
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder("metrics after " + (uptimeMillis / 1000) + " s:");
+			for (Stage stage : STAGES) {
+				LatencyHistogram.Snapshot h = stages[stage.ordinal()];
+				if (h.getCount() > 0)
+					sb.append("\n  ").append(stage.name().toLowerCase(Locale.US)).append(": ").append(h);
+			}
+			sb.append("\n ");
+			for (Counter counter : COUNTERS)
+				sb.append(' ').append(counter.name().toLowerCase(Locale.US)).append('=').append(counters[counter.ordinal()]);
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,299 @@
+package pensieve.android;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.zeromq.ZMQ;
+
+/**
+ * Asynchronous ZMQ client that keeps a window of requests in flight on a DEALER socket.
+ *
+ * Each request is sent as [seq][empty][request frames...], so a REP or envelope-preserving ROUTER
+ * server echoes the sequence id back with its reply. Replies are matched to their request
+ * and handed to listeners strictly in submission order; a request that times out is
+ * delivered as a null reply so it doesn't hold up the ones behind it.
+ *
+ * The socket is owned by a single I/O loop, which runs as a task on the given executor (see
+ * TaskRuntime.getIoExecutor()) until stop(); submit() may be called from any thread.
+ */
+public class PipelinedTransport {
+	private static final String TAG = "PipelinedTransport";
+
+	/** Receives the reply to one request (null if it failed or timed out). */
+	public interface ReplyListener {
+		public void onReply(long seq, String reply);
+	}
+
+	/** Observes how long a request took; called on the I/O thread as soon as it replies or times out. */
+	public interface RoundTripListener {
+		public void onRoundTrip(long seq, long rttMillis, int outstanding, boolean timedOut);
+	}
+
+	private static class Request {
+		final long seq;
+		final FramedMessage message;
+		final ReplyListener listener;
+		final int replyTimeout;
+		final RoundTripListener roundTripListener; // null if nobody is timing it
+		long sentAt;
+		String reply;
+
+		Request(long seq, FramedMessage message, ReplyListener listener, int replyTimeout, RoundTripListener roundTripListener) {
+			this.seq = seq;
+			this.message = message;
+			this.listener = listener;
+			this.replyTimeout = replyTimeout;
+			this.roundTripListener = roundTripListener;
+		}
+	}
+
+	private final String address;
+	private final int window;
+	private final int replyTimeout;
+	private final int sendTimeout;
+	private final ExecutorService executor;
+
+	private final LinkedBlockingQueue<Request> pending = new LinkedBlockingQueue<Request>();
+	private final Map<Long, Request> inFlight = new HashMap<Long, Request>(); // sent, awaiting reply (I/O thread only)
+	private final Map<Long, Request> completed = new HashMap<Long, Request>(); // replied or timed out, awaiting in-order delivery (I/O thread only)
+	private long nextSeq = 0; // guarded by pending
+	private long nextDeliverSeq = 0;
+
+	private volatile boolean running = false;
+	private Future<?> ioTask = null;
+
+	/**
+	 * @param address server endpoint, e.g. "tcp://192.168.1.5:61455"
+	 * @param window maximum number of requests awaiting a reply at once
+	 * @param replyTimeout milliseconds to wait for a reply before giving up on a request
+	 * @param sendTimeout milliseconds a send may block
+	 * @param executor runs the I/O loop, holding one of its threads until stop()
+	 */
+	public PipelinedTransport(String address, int window, int replyTimeout, int sendTimeout, ExecutorService executor) {
+		this.address = address;
+		this.window = Math.max(1, window);
+		this.replyTimeout = replyTimeout;
+		this.sendTimeout = sendTimeout;
+		this.executor = executor;
+	}
+
+	/** Start the I/O loop; after a stop(), not until the previous loop has exited, as they would share its state. */
+	public synchronized void start() {
+		if (running)
+			return;
+		if (!awaitIoLoop()) {
+			ClientLog.w(TAG, "Can't start the I/O loop: the previous one is still running");
+			return;
+		}
+		running = true;
+		try {
+			ioTask = executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					ioLoop();
+				}
+			});
+		} catch (RejectedExecutionException e) { // the runtime is shutting down
+			ClientLog.w(TAG, "Can't start the I/O loop: " + e);
+			running = false;
+		}
+	}
+
+	/** Stop the I/O loop and close the socket; requests still outstanding are failed. */
+	public synchronized void stop() {
+		running = false;
+		if (!awaitIoLoop())
+			ClientLog.w(TAG, "I/O loop still busy; it exits after the current poll");
+	}
+
+	/** Wait a while for the I/O loop to exit, once running is false; returns false if it is still going. */
+	private boolean awaitIoLoop() {
+		if (ioTask == null)
+			return true;
+		try {
+			ioTask.get(2000, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			ClientLog.e(TAG, "I/O loop failed: " + e.getCause());
+		} catch (TimeoutException e) {
+			// still going
+		}
+		if (!ioTask.isDone())
+			return false; // kept, so start() waits for it too
+		ioTask = null;
+		return true;
+	}
+
+	/** Queue a request for sending; returns its sequence id. Replies are delivered in sequence order. */
+	public long submit(FramedMessage request, ReplyListener listener) {
+		return submit(request, listener, replyTimeout);
+	}
+
+	/** Like submit(request, listener), with its own reply timeout (e.g. a short one for heartbeats). */
+	public long submit(FramedMessage request, ReplyListener listener, int replyTimeout) {
+		return submit(request, listener, replyTimeout, null);
+	}
+
+	/**
+	 * Like submit(request, listener, replyTimeout), and tells roundTripListener (if not null)
+	 * how long this request took, without waiting for the replies ahead of it.
+	 */
+	public long submit(FramedMessage request, ReplyListener listener, int replyTimeout, RoundTripListener roundTripListener) {
+		synchronized(pending) {
+			long seq = nextSeq++;
+			pending.add(new Request(seq, request, listener, replyTimeout, roundTripListener));
+			return seq;
+		}
+	}
+
+	/** Number of requests queued but not yet sent. */
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	private void ioLoop() {
+		ZMQ.Context context = ZMQ.context(1);
+		ZMQ.Socket socket = context.socket(ZMQ.DEALER);
+		socket.setLinger(0);
+		socket.setSendTimeOut(sendTimeout);
+		socket.connect(address);
+		ClientLog.d(TAG, "Connected to " + address + " (window: " + window + ")");
+
+		ZMQ.Poller poller = new ZMQ.Poller(1);
+		poller.register(socket, ZMQ.Poller.POLLIN);
+		try {
+			while (running) {
+				// * Fill the window
+				while (inFlight.size() < window) {
+					Request request = pending.poll();
+					if (request == null)
+						break;
+					send(socket, request);
+				}
+
+				// * Collect replies
+				if (poller.poll(inFlight.isEmpty() ? 20 : 10) > 0 && poller.pollin(0)) {
+					receive(socket);
+				}
+
+				expire(System.currentTimeMillis());
+				deliver();
+			}
+		} catch (Exception e) {
+			ClientLog.e(TAG, "I/O loop failed: " + e);
+		} finally {
+			// Anything still awaiting a reply (or never sent) is failed, so nobody waits on it
+			completed.putAll(inFlight);
+			inFlight.clear();
+			Request request;
+			while ((request = pending.poll()) != null)
+				completed.put(request.seq, request);
+			deliver();
+			socket.close();
+			context.term();
+			ClientLog.d(TAG, "Disconnected from " + address);
+		}
+	}
+
+	private void send(ZMQ.Socket socket, Request request) {
+		request.sentAt = System.currentTimeMillis();
+		if (socket.sendMore(encodeSeq(request.seq)) && socket.sendMore(new byte[0]) && request.message.send(socket, 0)) {
+			inFlight.put(request.seq, request);
+		}
+		else {
+			ClientLog.e(TAG, "Failed to send request #" + request.seq);
+			completed.put(request.seq, request); // deliver as failed, in order
+		}
+	}
+
+	private void receive(ZMQ.Socket socket) {
+		// Drain everything that is ready: [seq][empty][reply]
+		byte[] seqFrame;
+		while ((seqFrame = socket.recv(ZMQ.DONTWAIT)) != null) {
+			byte[] body = null;
+			int parts = 1;
+			while (socket.hasReceiveMore()) {
+				body = socket.recv(0);
+				parts++;
+			}
+			if (seqFrame.length != 8 || parts != 3) {
+				ClientLog.w(TAG, "Discarding malformed reply (" + parts + " frames)");
+				continue;
+			}
+			Request request = inFlight.remove(decodeSeq(seqFrame));
+			if (request == null)
+				continue; // late reply to a request that already timed out
+			request.reply = new String(body);
+			request.message.release(); // fully written out, since the server has answered it
+			completed.put(request.seq, request);
+			reportRoundTrip(request, System.currentTimeMillis() - request.sentAt, false);
+		}
+	}
+
+	private void expire(long now) {
+		Iterator<Request> it = inFlight.values().iterator();
+		while (it.hasNext()) {
+			Request request = it.next();
+			if (now - request.sentAt > request.replyTimeout) {
+				ClientLog.w(TAG, "Request #" + request.seq + " timed out after " + request.replyTimeout + " ms");
+				it.remove();
+				completed.put(request.seq, request);
+				reportRoundTrip(request, now - request.sentAt, true);
+			}
+		}
+	}
+
+	private void reportRoundTrip(Request request, long rttMillis, boolean timedOut) {
+		RoundTripListener listener = request.roundTripListener;
+		if (listener == null)
+			return;
+		try {
+			listener.onRoundTrip(request.seq, rttMillis, inFlight.size() + pending.size(), timedOut);
+		} catch (Exception e) {
+			ClientLog.e(TAG, "Round-trip listener failed for request #" + request.seq + ": " + e);
+		}
+	}
+
+	private void deliver() {
+		Request request;
+		while ((request = completed.remove(nextDeliverSeq)) != null) {
+			nextDeliverSeq++;
+			if (request.listener != null) {
+				try {
+					request.listener.onReply(request.seq, request.reply);
+				} catch (Exception e) {
+					ClientLog.e(TAG, "Reply listener failed for request #" + request.seq + ": " + e);
+				}
+			}
+		}
+	}
+
+	private static byte[] encodeSeq(long seq) {
+		byte[] b = new byte[8];
+		for (int i = 7; i >= 0; i--) {
+			b[i] = (byte) seq;
+			seq >>>= 8;
+		}
+		return b;
+	}
+
+	private static long decodeSeq(byte[] b) {
+		long seq = 0;
+		for (int i = 0; i < 8; i++)
+			seq = (seq << 8) | (b[i] & 0xff);
+		return seq;
+	}
+}
@@ -0,0 +1,104 @@
+package pensieve.android;
+
+/**
+ * Sends frames without compression, for server-side tasks that want pixels rather than a
+ * JPEG: "gray8" is the luma plane as packed 8-bit grayscale (2/3 of the NV21 bytes, 1/3
+ * of RGB), "nv21" the frame as it is. Downscaling by 2 or 4 cuts that by 4 or 16.
+ *
+ * When nothing needs packing (gray8 over whole rows, or nv21 of the whole frame, at full
+ * size), the data is the camera's own buffer and no copy is made here.
+ */
+public class RawFrameEncoder extends FrameEncoder {
+	public static final String GRAY8 = "gray8", NV21 = "nv21";
+
+	private final boolean gray;
+	private final int[] region = new int[4];
+	private byte[] buffer = new byte[0];
+
+	// Last frame
+	private byte[] data = null;
+	private int offset = 0, length = 0, width = 0, height = 0;
+
+	/** @param format GRAY8 or NV21 */
+	public RawFrameEncoder(String format) {
+		if (!GRAY8.equals(format) && !NV21.equals(format))
+			throw new IllegalArgumentException("Unknown raw frame format: " + format);
+		gray = GRAY8.equals(format);
+	}
+
+	@Override
+	public String getFormat() {
+		return gray ? GRAY8 : NV21;
+	}
+
+	@Override
+	public synchronized boolean encode(byte[] imageNV21, int frameWidth, int frameHeight, long nowNanos) {
+		getRegion(frameWidth, frameHeight, region);
+		int factor = getDownscale();
+		if (gray) {
+			LumaView luma = LumaView.of(imageNV21, frameWidth, frameHeight).crop(region[0], region[1], region[2], region[3]);
+			width = LumaView.getDownsampledSize(luma.getWidth(), factor);
+			height = LumaView.getDownsampledSize(luma.getHeight(), factor);
+			length = width * height;
+			if (factor == 1 && luma.isPacked()) {
+				data = imageNV21; // whole rows of the Y plane
+				offset = luma.getOffset();
+			}
+			else {
+				luma.downsample(factor, ensureBuffer(length), 0);
+				data = buffer;
+				offset = 0;
+			}
+		}
+		else {
+			width = Nv21Frames.getScaledSize(region[2], factor);
+			height = Nv21Frames.getScaledSize(region[3], factor);
+			length = Nv21Converter.getNV21Size(width, height);
+			if (factor == 1 && width == frameWidth && height == frameHeight) {
+				data = imageNV21;
+			}
+			else {
+				Nv21Frames.cropAndScale(imageNV21, frameWidth, frameHeight, region[0], region[1], region[2], region[3], factor, ensureBuffer(length));
+				data = buffer;
+			}
+			offset = 0;
+		}
+		return length > 0;
+	}
+
+	private byte[] ensureBuffer(int size) {
+		if (buffer.length < size)
+			buffer = new byte[size];
+		return buffer;
+	}
+
+	@Override
+	public synchronized byte[] getData() {
+		return data;
+	}
+
+	@Override
+	public synchronized int getOffset() {
+		return offset;
+	}
+
+	@Override
+	public synchronized int getLength() {
+		return length;
+	}
+
+	@Override
+	public synchronized int getWidth() {
+		return width;
+	}
+
+	@Override
+	public synchronized int getHeight() {
+		return height;
+	}
+
+	@Override
+	public String toString() {
+		return getFormat() + " frames, downscaled " + getDownscale() + "x";
+	}
+}
@@ -0,0 +1,68 @@
+package pensieve.android;
+
+/**
+ * Preallocated ring of three-axis sensor samples (a timestamp and x, y, z each), filled by
+ * the sensor thread and drained in batches, so recording a sample allocates nothing. Once
+ * full, the oldest samples are overwritten (and counted as dropped).
+ */
+public class SensorRing {
+	private final long[] timestamps; // ns, as in SensorEvent
+	private final float[] values; // x, y, z per sample
+	private final int capacity;
+	private int start = 0, size = 0;
+	private long written = 0, dropped = 0;
+
+	public SensorRing(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Ring capacity must be positive: " + capacity);
+		this.capacity = capacity;
+		timestamps = new long[capacity];
+		values = new float[3 * capacity];
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public synchronized void write(long timestampNanos, float x, float y, float z) {
+		int i;
+		if (size < capacity) {
+			i = (start + size++) % capacity;
+		}
+		else {
+			i = start;
+			start = (start + 1) % capacity;
+			dropped++;
+		}
+		timestamps[i] = timestampNanos;
+		values[3 * i] = x;
+		values[3 * i + 1] = y;
+		values[3 * i + 2] = z;
+		written++;
+	}
+
+	/**
+	 * Move every sample held, oldest first, into timestampsOut and valuesOut (3 per sample),
+	 * which must hold getCapacity() samples; returns how many there were.
+	 */
+	public synchronized int drain(long[] timestampsOut, float[] valuesOut) {
+		int firstPart = Math.min(size, capacity - start);
+		System.arraycopy(timestamps, start, timestampsOut, 0, firstPart);
+		System.arraycopy(values, 3 * start, valuesOut, 0, 3 * firstPart);
+		if (firstPart < size) {
+			System.arraycopy(timestamps, 0, timestampsOut, firstPart, size - firstPart);
+			System.arraycopy(values, 0, valuesOut, 3 * firstPart, 3 * (size - firstPart));
+		}
+		int n = size;
+		start = size = 0;
+		return n;
+	}
+
+	public synchronized long getWritten() {
+		return written;
+	}
+
+	public synchronized long getDropped() {
+		return dropped;
+	}
+}
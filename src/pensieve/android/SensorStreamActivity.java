@@ -1,16 +1,11 @@
 package pensieve.android;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.io.FileUtils;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.zeromq.ZMQ;
 
 import android.app.Activity;
 import android.media.MediaRecorder;
@@ -18,47 +13,82 @@ import android.os.Bundle;
 import android.os.Environment;
 import android.speech.tts.TextToSpeech;
 import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
 import android.view.Window;
 import android.view.WindowManager;
 import android.widget.TextView;
 
+/** The Glass UI around a ClientEngine: capture sources, camera, transcript display and TTS. */
 public class SensorStreamActivity extends Activity implements TextReceivedListener {
 	public static final String TAG = "SensorStream";
 
 	private boolean silent = true; // suppress all audio output
 	private TextToSpeech tts = null;
 	private boolean ttsReady = false;
-	
-	private byte imageHeaderDataSep = '\n'; // used to separate image header from data in combined packet mode; must be byte or byte[]
 
-	// ZMQ components (TODO use separate ZMQClientThread class)
+	// ZMQ components live in the engine (see ClientEngine)
 	private String serverAddress = null; // leave null to read from resources; or any endpoint e.g.: "tcp://192.168.1.106:61445", "tcp://honeydew.csc.ncsu.edu:61445"; for emulator to host: "tcp://10.0.2.2:61445"
-	private ZMQ.Context context = null;
-	private ZMQ.Socket socket = null;
-	private final Object socketLock = new Object();
-	private volatile boolean serverAvailable = false;
+	private ClientEngine engine = null;
 	
+	// transcript display
+	private TextView txtView = null;
+	private final TranscriptBuffer transcriptBuffer = new TranscriptBuffer(100);
+	private final char[][] viewChars = { new char[100], new char[100] };
+	private int viewCharsIndex = 0;
+	private final AtomicBoolean viewUpdatePending = new AtomicBoolean(false);
+	private volatile long viewUpdateRequestedAt = 0; // nanoTime of the text that scheduled the pending refresh
+	private final Runnable viewUpdater = new Runnable() {
+		@Override
+		public void run() {
+			refreshTextView();
+			engine.getMetrics().recordSince(PipelineMetrics.Stage.DISPLAY, viewUpdateRequestedAt);
+		}
+	};
+
 	// audio stuff
+	private boolean streamingCapture = true; // capture raw PCM into an in-memory ring; set false to use the old MediaRecorder file rotation
 	private MediaRecorder rec[] = new MediaRecorder[16];
 	private String baseAudioPath = Environment.getExternalStorageDirectory().getAbsolutePath() + "/sound";
-	private int sampleRate = 16000;
-	private String audioFormat = "mpeg4";
-	private int recorderCount = 0;
+	private String audioFormat = "mpeg4"; // MediaRecorder mode; streaming capture uses the codec negotiated by the engine
+	private volatile int recorderCount = 0; // only advanced on the audio timer thread
 	private int numRecorders = 16;
 	
-	// audio timer
-	private Timer audioTimer = new Timer();
-	private NewTimerTask timerTask = new NewTimerTask(this) {
-		public void run() {
-			PostAudioSnippetThread audioThread = new PostAudioSnippetThread(this.activity);
-			audioThread.start();
-		}
-	};
+	// camera stuff (frames are only streamed over the pipelined transport)
+	private boolean streamCamera = false; // stream preview frames to the server as "image" requests
+	private float cameraTargetFps = 2;
+	private String cameraFormat = "jpeg"; // or RawFrameEncoder.GRAY8 / NV21, for server tasks that want pixels
+	private int cameraJpegQuality = 60; // to start with; then adjusted to cameraBytesPerSecond
+	private int cameraBytesPerSecond = 64 * 1024; // JPEG budget (0 for a fixed quality)
+	private int cameraDownscale = 1; // 1, 2 or 4
+	private float cameraChangeThreshold = 4; // mean luma levels a frame must differ by to be sent (0 sends every frame)
+	private long cameraKeyframeMillis = 5000; // send a frame at least this often, changed or not
+	private CameraManager cameraManager = null;
+	private CameraFrameStreamer frameStreamer = null;
+	
+	// location stuff (requests are tagged with the latest fix, see LocationTrail)
+	private boolean tagLocation = true;
+	private float locationMinDistanceMeters = 25; // keep a fix once the wearer has moved this far
+	private float locationMinTurnDegrees = 45; // or turned this much
+	private long locationMinMillis = 5000; // fixes asked of LocationManager at most this often
+	private long locationRefreshMillis = 60000; // repeat an unchanged location on requests this often
+	private AndroidLocationSource locationSource = null;
+	
+	// IMU stuff (accelerometer, gyroscope and magnetometer, batched; see ImuRecorder)
+	private boolean streamImu = true;
+	private int imuSamplingMicros = 20000; // 50 Hz per sensor
+	private long imuBatchMillis = 1000; // one "imu" request this often
+	private ImuRecorder imuRecorder = null;
+	private AndroidImuSource imuSource = null;
+	
+	// threads (see TaskRuntime)
+	private TaskRuntime runtime = null;
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.activity_sensor_stream);
+		txtView = (TextView) findViewById(R.id.mainViewText);
 		
 		// Keep screen on
 		Window myWindow = getWindow();
@@ -66,31 +96,42 @@ public class SensorStreamActivity extends Activity implements TextReceivedListen
 		myWindow.addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
 		myWindow.addFlags(WindowManager.LayoutParams.FLAG_DISMISS_KEYGUARD);
 		
-		//audio
-		for (int i = 0; i < numRecorders; i++) {
-			rec[i] = new MediaRecorder();
-			rec[i].setAudioSource(0);
-			rec[i].setAudioChannels(2);
-		    rec[i].setAudioEncodingBitRate(0x17700);
-		    rec[i].setAudioSamplingRate(16000);
-		    rec[i].setMaxDuration(0);
-		    rec[i].setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
-		    rec[i].setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
-		    rec[i].setOutputFile(getAudioPath(i));
-		    rec[i].setMaxDuration(-1);
-			//rec.setAudioSamplingRate(sampleRate);
-			
-			try {
-				rec[i].prepare();
-			} catch (IOException e) {
-				Log.e("log", "Recorder setup NOPEd everywhere ..." + e);
+		runtime = new TaskRuntime(Math.max(2, Runtime.getRuntime().availableProcessors() - 1), new Executor() {
+			@Override
+			public void execute(Runnable task) {
+				runOnUiThread(task);
 			}
+		});
+
+		// Get server endpoint address from resources
+		if (serverAddress == null)
+			serverAddress = getResources().getString(R.string.server_address);
+		engine = new ClientEngine(serverAddress, runtime, this);
+		engine.setSpoolDirectory(new File(getFilesDir(), "spool"));
+		if (tagLocation) {
+			LocationTrail trail = new LocationTrail(256, locationMinDistanceMeters, locationMinTurnDegrees, locationRefreshMillis);
+			engine.setLocationTrail(trail, locationRefreshMillis);
+			locationSource = new AndroidLocationSource(this, trail);
+		}
+		if (streamImu) {
+			imuRecorder = new ImuRecorder(4 * (int) (imuBatchMillis * 1000 / imuSamplingMicros)); // room for a few missed batches
+			engine.setImuRecorder(imuRecorder, imuBatchMillis);
+			imuSource = new AndroidImuSource(this, imuRecorder);
+		}
+
+		//audio
+		if (streamingCapture) {
+			engine.start(new AndroidAudioSource());
+		}
+		else {
+			startRecorders();
+			engine.start(new ClientEngine.RecordingSource() {
+				@Override
+				public byte[] nextRecording() throws IOException {
+					return rotateRecorders();
+				}
+			}, audioFormat);
 		}
-		
-		rec[recorderCount].start();
-		
-		//schedule audio timer for every half second
-		audioTimer.scheduleAtFixedRate(timerTask, 2000, 2000); //can adjust for testing
 
 		// Initialize TTS engine
 		if (!silent) {
@@ -112,26 +153,29 @@ public class SensorStreamActivity extends Activity implements TextReceivedListen
 		super.onResume();
 		if(ttsReady) tts.speak("Resumed", TextToSpeech.QUEUE_FLUSH, null);
 		
-		// Open network channels (use non-UI threads since these can take time)
-		(new Thread() {
-			public void run() {
-				openZMQ();
-				pingZMQServer(); // [test] ping ZMQ server
-			};
-		}).start();
+		engine.connect(); // handshakes with the server, then keeps checking the link
+		
+		if (locationSource != null)
+			locationSource.start(locationMinMillis, locationMinDistanceMeters / 4); // shorter legs, so the trail sees turns
+		if (imuSource != null)
+			imuSource.start(imuSamplingMicros);
 		
+		if (streamCamera)
+			startCameraStreaming();
 	}
 
 	@Override
 	protected void onPause() {
 		if(ttsReady) tts.speak("Paused", TextToSpeech.QUEUE_FLUSH, null);
 		
-		// Close network channels (also on non-UI threads)
-		(new Thread() {
-			public void run() {
-				closeZMQ();
-			}
-		}).start();
+		stopCameraStreaming();
+		
+		if (locationSource != null)
+			locationSource.stop();
+		if (imuSource != null)
+			imuSource.stop();
+		
+		engine.disconnect();
 		
 		super.onPause();
 	}
@@ -144,118 +188,117 @@ public class SensorStreamActivity extends Activity implements TextReceivedListen
 			tts.shutdown();
 		}
 		tts = null;
-		
-		socket = null;
-		context = null;
+
+		engine.stop(); // also stops capture
+
+		runtime.shutdown(2000); // also stops the audio timer and the uploader
 		
 		super.onDestroy();
 	}
 	
-	private void openZMQ() {
-		// NOTE Should run this from non-UI thread
-		// * Get server endpoint address from resources
-		if (serverAddress == null)
-			serverAddress = getResources().getString(R.string.server_address);
-		
-		// * Create ZMQ context and socket, set socket opts and connect to server
-		synchronized(socketLock) {
-			context = ZMQ.context(1);
-			socket = context.socket(ZMQ.REQ);
-			socket.setSendTimeOut(1500); // TODO fix hardcoded values
-			socket.setReceiveTimeOut(10000);
-			
-			Log.v(TAG, "openZMQ(): Connecting to " + serverAddress + "..."); // useful for debugging, in case connect() fails
-			socket.connect(serverAddress);
-			Log.d(TAG, "openZMQ(): Connected to " + serverAddress);
-			//serverAvailable = true; // NOTE no actual checking is performed here; pingZMQServer() does that
+	private void startCameraStreaming() {
+		if (!CameraManager.hasCamera(this)) {
+			Log.w(TAG, "startCameraStreaming(): No camera available");
+			return;
 		}
-	}
-	
-	private void closeZMQ() {
-		// Close ZMQ socket and terminate context
-		synchronized(socketLock) {
-			serverAvailable = false;
-			if (socket != null) {
-				socket.close();
-			}
-			if (context != null) {
-				context.term();
+		frameStreamer = new CameraFrameStreamer(new CameraFrameStreamer.FrameSink() {
+			@Override
+			public boolean sendFrame(byte[] data, int offset, int length, int width, int height, String format) {
+				return engine.postImage(data, offset, length, width, height, format);
 			}
+		}, runtime.getEncodeExecutor(), cameraTargetFps, newFrameEncoder(), 3);
+		if (cameraChangeThreshold > 0)
+			frameStreamer.setChangeDetector(new FrameChangeDetector(cameraChangeThreshold, cameraKeyframeMillis));
+		cameraManager = new CameraManager(this);
+		cameraManager.setFrameStreamer(frameStreamer);
+		cameraManager.open(CameraManager.defaultCameraID, CameraManager.defaultCameraWidth, CameraManager.defaultCameraHeight);
+		if (!cameraManager.isCameraOpen()) {
+			Log.e(TAG, "startCameraStreaming(): Failed to open camera");
+			cameraManager = null;
+			frameStreamer = null;
+			return;
 		}
+		// The preview has to be on screen for frames to flow, but it needn't be seen
+		addContentView(cameraManager.getCameraPreview(), new ViewGroup.LayoutParams(1, 1));
 	}
-	
-	private void pingZMQServer() {
-		// NOTE Should run this from non-UI thread
-		synchronized(socketLock) {
-			if (socket == null)
-				return;
-			serverAvailable = false; // assume unavailable till a ping succeeds
-			
-			// * Prepare a ping request
-			JSONObject requestObj = new JSONObject();
-			try {
-				requestObj.put("type", "handshake");
-				requestObj.put("value", "ping");
-			} catch (JSONException e) {
-				Log.e(TAG, "pingServer(): Failed to prepare JSON request: " + e);
-			}
-			String request = requestObj.toString();
-			
-			// * Send request and receive response
-			Log.d(TAG, "pingServer(): Sending request: " + request);
-			if(socket.send(request)) {
-				String reply = socket.recvStr();
-				Log.d(TAG, "pingServer(): Received (raw): " + reply);
-				if(reply != null) {
-					try {
-						JSONObject replyObj = new JSONObject(reply);
-						Log.d(TAG, "pingServer(): Received (obj): " + replyObj.toString());
-						String status = replyObj.getString("status");
-						Log.d(TAG, "pingServer(): Reply status: " + status);
-						serverAvailable = true;
-					} catch (JSONException e) {
-						Log.e(TAG, "pingServer(): Failed to decode JSON reply: " + e);
-					}
-				}
-				else {
-					Log.w(TAG, "pingServer(): ZMQ server not available (?)");
-					serverAvailable = false; // NOTE actual check, but how reliable is it?
-				}
-			}
-			else {
-				Log.e(TAG, "pingServer(): Failed to send");
-			}
-		}
+
+	private FrameEncoder newFrameEncoder() {
+		FrameEncoder encoder;
+		if (cameraFormat.equals("jpeg"))
+			encoder = new JpegEncoder(new JpegRateController(cameraBytesPerSecond, cameraJpegQuality, 20, 90, 1));
+		else
+			encoder = new RawFrameEncoder(cameraFormat);
+		encoder.setDownscale(cameraDownscale);
+		return encoder;
+	}
+
+	private void stopCameraStreaming() {
+		if (cameraManager == null)
+			return;
+		cameraManager.release(); // also stops the frame streamer
+		View preview = cameraManager.getCameraPreview();
+		if (preview != null && preview.getParent() != null)
+			((ViewGroup) preview.getParent()).removeView(preview);
+		cameraManager = null;
+		frameStreamer = null;
 	}
 
 	private String getAudioPath(int num) {
 		return baseAudioPath + num + ".m4a";
 	}
-	
-	private void appendTextToView(String str) {
-		TextView txtView = (TextView) findViewById(R.id.mainViewText);
-		String text = txtView.getText().toString();
-		text += " " + str;
-		while (text.length() > 100) {
-			text = text.substring(text.indexOf(" ") + 1);
+
+	private void startRecorders() {
+		for (int i = 0; i < numRecorders; i++) {
+			rec[i] = new MediaRecorder();
+			rec[i].setAudioSource(0);
+			rec[i].setAudioChannels(2);
+		    rec[i].setAudioEncodingBitRate(0x17700);
+		    rec[i].setAudioSamplingRate(16000);
+		    rec[i].setMaxDuration(0);
+		    rec[i].setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
+		    rec[i].setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
+		    rec[i].setOutputFile(getAudioPath(i));
+		    rec[i].setMaxDuration(-1);
+			//rec.setAudioSamplingRate(sampleRate);
+
+			try {
+				rec[i].prepare();
+			} catch (IOException e) {
+				Log.e("log", "Recorder setup NOPEd everywhere ..." + e);
+			}
 		}
-		txtView.setText(text);
+
+		rec[recorderCount].start();
 	}
-	
-	abstract class NewTimerTask extends TimerTask {
-		TextReceivedListener activity;
-		
-		public NewTimerTask(TextReceivedListener l) {
-			super();
-			activity = l;
-		}
-		
+
+	/** Stop the current recorder, start the next one and read back the finished file (MediaRecorder mode). */
+	private byte[] rotateRecorders() throws IOException {
+		//stop recording
+		rec[recorderCount].stop();
+
+		//open the audio file to send to the server
+		File f = new File(getAudioPath(recorderCount));
+		recorderCount = (recorderCount+1) % numRecorders;
+		rec[recorderCount].start();
+
+		//re-setup the media recorder object (needed after stop is called)
+		runtime.execute(runtime.getCaptureExecutor(), "refreshRecorder", new RefreshMediaRecorderTask((recorderCount+(numRecorders-1))%numRecorders)); //essentially, recorderCount-1 with wraparound
+
+		return FileUtils.readFileToByteArray(f);
+	}
+
+	/** Show the latest transcript text; runs at most once per frame, however many transcripts arrived. */
+	private void refreshTextView() {
+		viewUpdatePending.set(false); // anything appended from here on schedules another refresh
+		char[] chars = viewChars[viewCharsIndex ^= 1]; // TextView keeps the array it was given, so alternate
+		int n = transcriptBuffer.copyTo(chars);
+		txtView.setText(chars, 0, n);
 	}
 	
-	class RefreshMediaRecorderThread extends Thread {
+	class RefreshMediaRecorderTask implements Runnable {
 		int recNum;
 		
-		public RefreshMediaRecorderThread(int num) {
+		public RefreshMediaRecorderTask(int num) {
 			recNum = num;
 		}
 		
@@ -282,110 +325,12 @@ public class SensorStreamActivity extends Activity implements TextReceivedListen
 		}
 	}
 	
-	class PostAudioSnippetThread extends Thread {
-		private TextReceivedListener activity;
-		
-		public PostAudioSnippetThread(TextReceivedListener l) {
-			activity = l;
-		}
-		
-		public void run() {
-			Log.d(TAG, "running PostAudioSnippetThread - " + recorderCount);
-			
-			//stop recording
-			rec[recorderCount].stop();
-			
-			//open the audio file to send to the server
-			File f = new File(getAudioPath(recorderCount));
-			byte[] bytes;
-			recorderCount = (recorderCount+1) % numRecorders;
-			rec[recorderCount].start();
-			
-			//re-setup the media recorder object (needed after stop is called)
-			RefreshMediaRecorderThread t = new RefreshMediaRecorderThread((recorderCount+(numRecorders-1))%numRecorders); //essentially, recorderCount-1 with wraparound
-			t.start();
-			
-			try {
-				bytes = FileUtils.readFileToByteArray(f);
-				// Send over ZMQ (header as JSON-encoded string and raw image data concatenated with a separator)
-				// * TODO Check if ZMQ socket is ready to send
-				synchronized(socketLock) {
-					try {
-						// * Prepare header request
-						JSONObject requestObj = new JSONObject();
-						requestObj.put("type", "stt"); //speech to text
-						requestObj.put("num_bytes", bytes.length);
-						requestObj.put("sample_rate", sampleRate);
-						requestObj.put("format", audioFormat); //unhardcode
-						String request = requestObj.toString();
-						Log.d(TAG, "[STT] Request: " + request);
-						
-						// * Send header request and data concatenated together with a known separator
-						ByteArrayOutputStream combinedRequestStream = new ByteArrayOutputStream( );
-						combinedRequestStream.write(request.getBytes());
-						combinedRequestStream.write(imageHeaderDataSep);
-						combinedRequestStream.write(bytes);
-						Log.v(TAG, "[STT] Sending audio header + data packet");
-						if(socket.send(combinedRequestStream.toByteArray())) {
-							String reply = socket.recvStr();
-							Log.v(TAG, "[STT] Received reply (raw): " + reply);
-							if(reply != null) {
-								try {
-									JSONObject replyObj = new JSONObject(reply);
-									Log.v(TAG, "[STT] Received reply (obj): " + replyObj.toString());
-									try {
-										JSONArray result = replyObj.getJSONArray("result");
-										Log.v(TAG, "[STT] Got result object - " + result);
-										JSONObject a = result.getJSONObject(0);
-										JSONArray alternative = a.getJSONArray("alternative");
-										Log.v(TAG, "[STT] Got alternative object");
-										Log.v(TAG, "[STT] " + alternative);
-										JSONObject entry = alternative.getJSONObject(0);
-										Log.v(TAG, "[STT] Got entry object");
-										String transcript = entry.getString("transcript");
-										Log.v(TAG, "[STT] Adding text '" + transcript + "'.");
-										activity.onTextReceived(transcript);
-									} catch (JSONException e) {
-										int status = replyObj.getInt("status");
-										if (status == 200) {
-											Log.d(TAG, "[STT] Reply status OK: " + status);
-										} else {
-											Log.w(TAG, "[STT] Reply status not favorable: " + status);
-										}
-									}
-								} catch (JSONException e) {
-									Log.e(TAG, "[STT] Failed to decode JSON reply: " + e);
-								}
-							} else {
-								Log.e(TAG, "[STT] Null reply (no response?)");
-							}
-						} else {
-							Log.e(TAG, "[STT] Failed to send audio header + data");
-						}
-					} catch (JSONException e) {
-						Log.e(TAG, "[STT] Failed to prepare JSON header: " + e);
-					} catch (IOException e) {
-						Log.e(TAG, "[STT] Failed to prepare audio header + data packet: " + e);
-					}
-				}
-			} catch (IOException e1) {
-				Log.e(TAG, "[STT] Failed to read file.");
-				e1.printStackTrace();
-			} catch (Exception e) {
-				Log.e(TAG, "[STT] Failed somehow...");
-				e.printStackTrace();
-			}
-		}
-	}
-
 	@Override
 	public void onTextReceived(String str) {
-		final String s = str;
-		runOnUiThread(new Runnable() {
-			@Override
-			public void run() {
-				appendTextToView(s);
-			}
-		});
+		transcriptBuffer.append(str);
+		if (viewUpdatePending.compareAndSet(false, true)) {
+			viewUpdateRequestedAt = PipelineMetrics.now();
+			txtView.postOnAnimation(viewUpdater); // coalesce into the next frame
+		}
 	}
 }
@@ -0,0 +1,95 @@
+package pensieve.android;
+
+import java.util.Arrays;
+
+/**
+ * Packs several framed STT requests into one "stt_batch" request, so a backlog of chunks
+ * costs one round trip instead of one each:
+ *
+ *   header:  {"type": "stt_batch", "chunks": [<stt header>, <stt header>, ...]}
+ *   payload: the chunks' payloads back to back, in the same order (each num_bytes long)
+ *
+ * The server answers with one reply per chunk (see SttReplyDecoder.decodeBatch()). The
+ * batch remembers each part's header and place in the payload, so a failed batch can still
+ * be taken apart, e.g. to spool its chunks one by one.
+ */
+public class SttBatch {
+	private static final byte[] PREFIX = "{\"type\":\"stt_batch\",\"chunks\":[".getBytes();
+	private static final byte[] SUFFIX = "]}".getBytes();
+
+	private final FramedMessage[] parts;
+	private final byte[][] headers;
+	private final int[] payloadOffsets, payloadLengths;
+	private int count = 0;
+	private int headerBytes = 0, payloadBytes = 0;
+
+	public SttBatch(int maxChunks) {
+		parts = new FramedMessage[maxChunks];
+		headers = new byte[maxChunks][];
+		payloadOffsets = new int[maxChunks];
+		payloadLengths = new int[maxChunks];
+	}
+
+	/** Add a framed STT request; the batch takes it over and releases it in frame(). */
+	public void add(FramedMessage part) {
+		if (count == parts.length)
+			throw new IllegalStateException("Batch is full");
+		parts[count] = part;
+		headers[count] = Arrays.copyOf(part.getHeaderArray(), part.getHeaderLength()); // the pooled header is reused once released
+		payloadOffsets[count] = payloadBytes;
+		payloadLengths[count] = part.getPayloadLength();
+		headerBytes += part.getHeaderLength();
+		payloadBytes += part.getPayloadLength();
+		count++;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public boolean isFull() {
+		return count == parts.length;
+	}
+
+	public int getPayloadLength() {
+		return payloadBytes;
+	}
+
+	/** Build the batch request, copying the parts' payloads into it and releasing them. */
+	public FramedMessage frame(MessageFramer framer) {
+		byte[] header = new byte[PREFIX.length + headerBytes + Math.max(0, count - 1) + SUFFIX.length];
+		System.arraycopy(PREFIX, 0, header, 0, PREFIX.length);
+		int p = PREFIX.length;
+		for (int i = 0; i < count; i++) {
+			if (i > 0)
+				header[p++] = ',';
+			System.arraycopy(headers[i], 0, header, p, headers[i].length);
+			p += headers[i].length;
+		}
+		System.arraycopy(SUFFIX, 0, header, p, SUFFIX.length);
+
+		FramedMessage message = framer.frame(header, payloadBytes);
+		byte[] dst = message.getPayloadArray();
+		int offset = message.getPayloadOffset();
+		for (int i = 0; i < count; i++) {
+			System.arraycopy(parts[i].getPayloadArray(), parts[i].getPayloadOffset(), dst, offset + payloadOffsets[i], payloadLengths[i]);
+			parts[i].release();
+			parts[i] = null;
+		}
+		return message;
+	}
+
+	/** Header of part i (a complete STT request header). */
+	public byte[] getHeader(int i) {
+		return headers[i];
+	}
+
+	/** Where part i's payload starts, relative to the batch payload. */
+	public int getPayloadOffset(int i) {
+		return payloadOffsets[i];
+	}
+
+	public int getPayloadLength(int i) {
+		return payloadLengths[i];
+	}
+}
@@ -0,0 +1,47 @@
+package pensieve.android;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** The fields of a speech-to-text reply the client uses; filled in by SttReplyDecoder and reusable. */
+public class SttReply {
+	int status = -1; // -1 if absent or not numeric
+	String transcript = null; // top alternative of the first result
+	double confidence = Double.NaN;
+	boolean isFinal = false;
+	final List<String> alternatives = new ArrayList<String>(); // every alternative, best first (only if asked for)
+
+	void reset() {
+		status = -1;
+		transcript = null;
+		confidence = Double.NaN;
+		isFinal = false;
+		alternatives.clear();
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	/** Whether the reply carried a (non-empty) transcript, as opposed to just a status. */
+	public boolean hasTranscript() {
+		return transcript != null && transcript.length() > 0;
+	}
+
+	public String getTranscript() {
+		return transcript;
+	}
+
+	/** Confidence of the top alternative, or NaN if the server didn't give one. */
+	public double getConfidence() {
+		return confidence;
+	}
+
+	public boolean isFinal() {
+		return isFinal;
+	}
+
+	public List<String> getAlternatives() {
+		return alternatives;
+	}
+}
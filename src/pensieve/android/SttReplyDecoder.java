@@ -0,0 +1,425 @@
+package pensieve.android;
+
+/**
+ * Streaming decoder for speech-to-text replies such as:
+ *   {"status": 200, "result": [{"alternative": [{"transcript": "...", "confidence": 0.9}, ...], "final": true}]}
+ *
+ * It makes one pass over the text and pulls out only status, the first result's transcript,
+ * its confidence and final flag, and (optionally) the other alternatives. Everything else is
+ * skipped without being materialized. A reply with no result is a normal outcome, not an error.
+ *
+ * Not thread-safe; decode() is synchronized so a shared instance is still correct.
+ */
+public class SttReplyDecoder {
+	/** Thrown internally for malformed input; decode() reports it as false. */
+	private static class MalformedReplyException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this; // no stack trace: cheap to throw
+		}
+	}
+
+	private static final MalformedReplyException MALFORMED = new MalformedReplyException();
+
+	private final boolean collectAlternatives;
+	private final StringBuilder scratch = new StringBuilder();
+	private String s;
+	private int pos;
+	private int end;
+
+	/** @param collectAlternatives also collect every alternative transcript (not just the top one) */
+	public SttReplyDecoder(boolean collectAlternatives) {
+		this.collectAlternatives = collectAlternatives;
+	}
+
+	/** Decode reply into out (which is reset first); returns false if the reply isn't valid JSON of the expected shape. */
+	public synchronized boolean decode(String reply, SttReply out) {
+		out.reset();
+		if (reply == null)
+			return false;
+		s = reply;
+		pos = 0;
+		end = reply.length();
+		try {
+			readReply(out);
+			return true;
+		} catch (MalformedReplyException e) {
+			return false;
+		} catch (IndexOutOfBoundsException e) { // truncated input
+			return false;
+		} finally {
+			s = null;
+		}
+	}
+
+	/**
+	 * Decode an "stt_batch" reply, {"status": ..., "results": [<reply>, ...]}, with one reply per
+	 * chunk in request order, into out[0..]; returns how many were decoded (those past it are
+	 * reset), or -1 if the reply isn't valid. A batch-level status with no results, e.g. an
+	 * error, is copied into every out.
+	 */
+	public synchronized int decodeBatch(String reply, SttReply[] out) {
+		for (SttReply r : out)
+			r.reset();
+		if (reply == null)
+			return -1;
+		s = reply;
+		pos = 0;
+		end = reply.length();
+		try {
+			int status = -1, count = 0;
+			boolean hasResults = false;
+			expect('{');
+			if (!tryConsume('}')) {
+				do {
+					int keyStart = keyStart();
+					int keyEnd = keyEnd(keyStart);
+					expect(':');
+					if (keyEquals(keyStart, keyEnd, "status")) {
+						status = readStatus();
+					}
+					else if (keyEquals(keyStart, keyEnd, "results") && tryConsumeArrayStart()) {
+						hasResults = true;
+						if (!tryConsume(']')) {
+							do {
+								if (count < out.length && peek() == '{')
+									readReply(out[count++]);
+								else
+									skipValue();
+							} while (tryConsume(','));
+							expect(']');
+						}
+					}
+					else {
+						skipValue();
+					}
+				} while (tryConsume(','));
+				expect('}');
+			}
+			if (!hasResults) {
+				for (SttReply r : out)
+					r.status = status;
+				return out.length;
+			}
+			return count;
+		} catch (MalformedReplyException e) {
+			return -1;
+		} catch (IndexOutOfBoundsException e) {
+			return -1;
+		} finally {
+			s = null;
+		}
+	}
+
+	private void readReply(SttReply out) throws MalformedReplyException {
+		expect('{');
+		if (tryConsume('}'))
+			return;
+		do {
+			int keyStart = keyStart();
+			int keyEnd = keyEnd(keyStart);
+			expect(':');
+			if (keyEquals(keyStart, keyEnd, "status"))
+				out.status = readStatus();
+			else if (keyEquals(keyStart, keyEnd, "result"))
+				readResults(out);
+			else
+				skipValue();
+		} while (tryConsume(','));
+		expect('}');
+	}
+
+	private void readResults(SttReply out) throws MalformedReplyException {
+		if (!tryConsumeArrayStart()) {
+			skipValue(); // e.g. null
+			return;
+		}
+		if (tryConsume(']'))
+			return;
+		int index = 0;
+		do {
+			if (index++ == 0 && peek() == '{')
+				readResult(out);
+			else
+				skipValue();
+		} while (tryConsume(','));
+		expect(']');
+	}
+
+	private void readResult(SttReply out) throws MalformedReplyException {
+		expect('{');
+		if (tryConsume('}'))
+			return;
+		do {
+			int keyStart = keyStart();
+			int keyEnd = keyEnd(keyStart);
+			expect(':');
+			if (keyEquals(keyStart, keyEnd, "alternative"))
+				readAlternatives(out);
+			else if (keyEquals(keyStart, keyEnd, "final"))
+				out.isFinal = readLiteral() == Boolean.TRUE;
+			else
+				skipValue();
+		} while (tryConsume(','));
+		expect('}');
+	}
+
+	private void readAlternatives(SttReply out) throws MalformedReplyException {
+		if (!tryConsumeArrayStart()) {
+			skipValue();
+			return;
+		}
+		if (tryConsume(']'))
+			return;
+		int index = 0;
+		do {
+			boolean first = index++ == 0;
+			if ((first || collectAlternatives) && peek() == '{')
+				readAlternative(out, first);
+			else
+				skipValue();
+		} while (tryConsume(','));
+		expect(']');
+	}
+
+	private void readAlternative(SttReply out, boolean first) throws MalformedReplyException {
+		expect('{');
+		if (tryConsume('}'))
+			return;
+		do {
+			int keyStart = keyStart();
+			int keyEnd = keyEnd(keyStart);
+			expect(':');
+			if (keyEquals(keyStart, keyEnd, "transcript")) {
+				String transcript = readString();
+				if (first)
+					out.transcript = transcript;
+				if (collectAlternatives)
+					out.alternatives.add(transcript);
+			}
+			else if (first && keyEquals(keyStart, keyEnd, "confidence")) {
+				out.confidence = readNumber();
+			}
+			else {
+				skipValue();
+			}
+		} while (tryConsume(','));
+		expect('}');
+	}
+
+	/** Status as an int, whether sent as a number or a numeric string; -1 otherwise. */
+	private int readStatus() throws MalformedReplyException {
+		skipWhitespace();
+		char c = s.charAt(pos);
+		if (c == '"') {
+			String status = readString();
+			try {
+				return Integer.parseInt(status.trim());
+			} catch (NumberFormatException e) {
+				return -1; // e.g. a ping reply's "ok"
+			}
+		}
+		if (c == '-' || (c >= '0' && c <= '9')) {
+			double d = readNumber();
+			return (int) d;
+		}
+		skipValue();
+		return -1;
+	}
+
+	// --- Tokens ---
+
+	private void skipWhitespace() {
+		while (pos < end) {
+			char c = s.charAt(pos);
+			if (c != ' ' && c != '\n' && c != '\r' && c != '\t')
+				break;
+			pos++;
+		}
+	}
+
+	private char peek() {
+		skipWhitespace();
+		return s.charAt(pos);
+	}
+
+	private void expect(char c) throws MalformedReplyException {
+		if (peek() != c)
+			throw MALFORMED;
+		pos++;
+	}
+
+	private boolean tryConsume(char c) {
+		skipWhitespace();
+		if (pos < end && s.charAt(pos) == c) {
+			pos++;
+			return true;
+		}
+		return false;
+	}
+
+	private boolean tryConsumeArrayStart() {
+		return tryConsume('[');
+	}
+
+	/** Position just after a key's opening quote. */
+	private int keyStart() throws MalformedReplyException {
+		expect('"');
+		return pos;
+	}
+
+	/** Skip to the end of a key started at keyStart; returns the position of its closing quote. */
+	private int keyEnd(int keyStart) throws MalformedReplyException {
+		pos = keyStart;
+		while (true) {
+			char c = s.charAt(pos);
+			if (c == '"')
+				break;
+			pos += c == '\\' ? 2 : 1;
+		}
+		return pos++;
+	}
+
+	private boolean keyEquals(int start, int stop, String key) {
+		return stop - start == key.length() && s.regionMatches(start, key, 0, key.length());
+	}
+
+	private String readString() throws MalformedReplyException {
+		expect('"');
+		int start = pos;
+		// Fast path: no escapes, just take the substring
+		while (true) {
+			char c = s.charAt(pos);
+			if (c == '"') {
+				return s.substring(start, pos++);
+			}
+			if (c == '\\')
+				break;
+			pos++;
+		}
+		scratch.setLength(0);
+		scratch.append(s, start, pos);
+		while (true) {
+			char c = s.charAt(pos++);
+			if (c == '"')
+				return scratch.toString();
+			if (c != '\\') {
+				scratch.append(c);
+				continue;
+			}
+			char e = s.charAt(pos++);
+			switch (e) {
+			case 'n': scratch.append('\n'); break;
+			case 't': scratch.append('\t'); break;
+			case 'r': scratch.append('\r'); break;
+			case 'b': scratch.append('\b'); break;
+			case 'f': scratch.append('\f'); break;
+			case 'u':
+				int code = 0;
+				for (int i = 0; i < 4; i++) {
+					int digit = Character.digit(s.charAt(pos++), 16);
+					if (digit < 0)
+						throw MALFORMED;
+					code = (code << 4) | digit;
+				}
+				scratch.append((char) code);
+				break;
+			default: scratch.append(e); // \" \\ \/
+			}
+		}
+	}
+
+	private double readNumber() throws MalformedReplyException {
+		skipWhitespace();
+		int start = pos;
+		while (pos < end) {
+			char c = s.charAt(pos);
+			if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E')
+				pos++;
+			else
+				break;
+		}
+		if (pos == start)
+			throw MALFORMED;
+		// Integers (the common case for status) without allocating
+		long value = 0;
+		boolean negative = s.charAt(start) == '-';
+		int i = negative ? start + 1 : start;
+		for (; i < pos; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9')
+				break;
+			value = value * 10 + (c - '0');
+		}
+		if (i == pos && i > (negative ? start + 1 : start))
+			return negative ? -value : value;
+		try {
+			return Double.parseDouble(s.substring(start, pos));
+		} catch (NumberFormatException e) {
+			throw MALFORMED;
+		}
+	}
+
+	/** true, false or null; returns Boolean.TRUE/FALSE or null. */
+	private Boolean readLiteral() throws MalformedReplyException {
+		skipWhitespace();
+		if (s.startsWith("true", pos)) {
+			pos += 4;
+			return Boolean.TRUE;
+		}
+		if (s.startsWith("false", pos)) {
+			pos += 5;
+			return Boolean.FALSE;
+		}
+		skipValue();
+		return null;
+	}
+
+	/** Skip any JSON value without building it. */
+	private void skipValue() throws MalformedReplyException {
+		char c = peek();
+		if (c == '"') {
+			pos++;
+			while (true) {
+				char d = s.charAt(pos);
+				if (d == '"')
+					break;
+				pos += d == '\\' ? 2 : 1;
+			}
+			pos++;
+		}
+		else if (c == '{' || c == '[') {
+			// Skip nested containers by depth, stepping over strings
+			int depth = 0;
+			do {
+				char d = s.charAt(pos);
+				if (d == '"') {
+					pos++;
+					while (s.charAt(pos) != '"')
+						pos += s.charAt(pos) == '\\' ? 2 : 1;
+				}
+				else if (d == '{' || d == '[') {
+					depth++;
+				}
+				else if (d == '}' || d == ']') {
+					depth--;
+				}
+				pos++;
+			} while (depth > 0);
+		}
+		else if (s.startsWith("true", pos)) {
+			pos += 4;
+		}
+		else if (s.startsWith("false", pos)) {
+			pos += 5;
+		}
+		else if (s.startsWith("null", pos)) {
+			pos += 4;
+		}
+		else {
+			readNumber();
+		}
+	}
+}
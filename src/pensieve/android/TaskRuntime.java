@@ -0,0 +1,155 @@
+package pensieve.android;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The client's shared threads, created once per activity and shut down with it.
+ *
+ *  - capture: one thread for capture housekeeping (e.g. re-arming recorders)
+ *  - encode: a small pool for CPU-bound work (image conversion, JPEG encoding)
+ *  - network: one thread, so connection setup, teardown and uploads run in order
+ *  - io: long-running loops that hold a thread while they run (the connection supervisor, a
+ *    transport's socket loop); idle threads are reused, so a reconnect doesn't start a new one
+ *  - ui: hand-off to the main thread (supplied by the caller)
+ *  - timers: scheduled tasks
+ *
+ * Every task is wrapped so an exception is logged rather than killing its thread, and a
+ * periodic task keeps running after one of its runs fails (unlike java.util.Timer or a bare
+ * ScheduledExecutorService).
+ */
+public class TaskRuntime {
+	private static final String TAG = "TaskRuntime";
+
+	private final ExecutorService capture;
+	private final ExecutorService encode;
+	private final ExecutorService network;
+	private final ExecutorService io;
+	private final ScheduledThreadPoolExecutor timers;
+	private final Executor ui;
+
+	/** @param ui runs tasks on the UI thread (e.g. a Handler on the main looper) */
+	public TaskRuntime(int encodeThreads, Executor ui) {
+		capture = newPool("capture", 1);
+		encode = newPool("encode", Math.max(1, encodeThreads));
+		network = newPool("network", 1);
+		io = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new NamedThreadFactory("io"));
+		timers = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("timer"));
+		this.ui = ui;
+	}
+
+	public ExecutorService getCaptureExecutor() {
+		return capture;
+	}
+
+	public ExecutorService getEncodeExecutor() {
+		return encode;
+	}
+
+	public ExecutorService getNetworkExecutor() {
+		return network;
+	}
+
+	/** For tasks that loop until they are stopped; each holds one of its threads meanwhile. */
+	public ExecutorService getIoExecutor() {
+		return io;
+	}
+
+	public Executor getUiExecutor() {
+		return ui;
+	}
+
+	/** Run task on executor, logging (not propagating) anything it throws. */
+	public void execute(Executor executor, String name, Runnable task) {
+		try {
+			executor.execute(guard(name, task));
+		} catch (RuntimeException e) { // rejected after shutdown
+			ClientLog.w(TAG, "Dropped task '" + name + "': " + e);
+		}
+	}
+
+	/** Run task once after delayMillis; null if the runtime has been shut down. */
+	public ScheduledFuture<?> schedule(String name, Runnable task, long delayMillis) {
+		try {
+			return timers.schedule(guard(name, task), delayMillis, TimeUnit.MILLISECONDS);
+		} catch (RuntimeException e) {
+			ClientLog.w(TAG, "Dropped task '" + name + "': " + e);
+			return null;
+		}
+	}
+
+	/** Run task every periodMillis (measured between runs) until cancelled; failed runs don't stop it. */
+	public ScheduledFuture<?> scheduleWithFixedDelay(String name, Runnable task, long initialDelayMillis, long periodMillis) {
+		try {
+			return timers.scheduleWithFixedDelay(guard(name, task), initialDelayMillis, periodMillis, TimeUnit.MILLISECONDS);
+		} catch (RuntimeException e) {
+			ClientLog.w(TAG, "Dropped task '" + name + "': " + e);
+			return null;
+		}
+	}
+
+	public boolean isShutdown() {
+		return timers.isShutdown();
+	}
+
+	/** Stop taking tasks, let running ones finish for up to timeoutMillis, then interrupt them. */
+	public void shutdown(long timeoutMillis) {
+		timers.shutdownNow();
+		capture.shutdown();
+		encode.shutdown();
+		network.shutdown();
+		io.shutdown();
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		try {
+			for (ExecutorService executor : new ExecutorService[] { capture, encode, network, io }) {
+				if (!executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS))
+					executor.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		ClientLog.d(TAG, "Shut down");
+	}
+
+	private static Runnable guard(final String name, final Runnable task) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					task.run();
+				} catch (Throwable t) {
+					ClientLog.e(TAG, "Task '" + name + "' failed: " + t);
+					t.printStackTrace();
+				}
+			}
+		};
+	}
+
+	private static ExecutorService newPool(String name, int threads) {
+		return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(name));
+	}
+
+	private static class NamedThreadFactory implements ThreadFactory {
+		private final String name;
+		private final AtomicInteger count = new AtomicInteger();
+
+		NamedThreadFactory(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "pensieve-" + name + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package pensieve.android;
+
+/**
+ * Bounded ring of the most recent transcript text, for display.
+ *
+ * Appending costs O(length of the new words) and rendering copies at most maxChars, however
+ * long the transcript gets. When old text has to go, it is dropped a whole word at a time
+ * (unless the buffer holds a single word longer than maxChars).
+ */
+public class TranscriptBuffer {
+	private final char[] ring;
+	private int start = 0; // index of the oldest char
+	private int length = 0;
+
+	public TranscriptBuffer(int maxChars) {
+		ring = new char[Math.max(1, maxChars)];
+	}
+
+	public int getMaxChars() {
+		return ring.length;
+	}
+
+	/** Append words, separated from what's already there by a space. */
+	public synchronized void append(CharSequence words) {
+		int n = words.length();
+		if (n == 0)
+			return;
+		char dropped = ' '; // last char pushed out the front, if any
+		if (length > 0)
+			dropped = put(' ', dropped);
+		for (int i = 0; i < n; i++)
+			dropped = put(words.charAt(i), dropped);
+
+		// If a word was cut in half at the front, drop the rest of it (and the space after it)
+		if (dropped != ' ' && indexOfSpace() >= 0) {
+			while (length > 0 && ring[start] != ' ')
+				dropFirst();
+			dropFirst();
+		}
+	}
+
+	/** Copy the current text into dst (at least getMaxChars() long); returns the number of chars. */
+	public synchronized int copyTo(char[] dst) {
+		int firstPart = Math.min(length, ring.length - start);
+		System.arraycopy(ring, start, dst, 0, firstPart);
+		System.arraycopy(ring, 0, dst, firstPart, length - firstPart);
+		return length;
+	}
+
+	public synchronized void clear() {
+		start = 0;
+		length = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		char[] text = new char[length];
+		copyTo(text);
+		return new String(text);
+	}
+
+	private char put(char c, char dropped) {
+		if (length == ring.length) {
+			dropped = ring[start];
+			dropFirst();
+		}
+		ring[(start + length) % ring.length] = c;
+		length++;
+		return dropped;
+	}
+
+	private void dropFirst() {
+		if (length == 0)
+			return;
+		start = (start + 1) % ring.length;
+		length--;
+	}
+
+	private int indexOfSpace() {
+		for (int i = 0; i < length; i++) {
+			if (ring[(start + i) % ring.length] == ' ')
+				return i;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,83 @@
+package pensieve.android;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Joins transcripts of overlapping audio chunks. Each new transcript is aligned against the
+ * tail of the previous one, and only the words after the overlap are emitted.
+ *
+ * The longest suffix of the previous words that matches a prefix of the new words wins;
+ * the word at either edge of the overlap may differ, since the audio boundary can cut it.
+ */
+public class TranscriptStitcher {
+	private final int maxTailWords;
+	private final List<String> tail = new ArrayList<String>(); // normalized words of the previous transcript(s)
+
+	/** @param maxTailWords how many previous words to align against (should cover the overlap) */
+	public TranscriptStitcher(int maxTailWords) {
+		this.maxTailWords = Math.max(1, maxTailWords);
+	}
+
+	/**
+	 * Return the part of transcript that isn't already covered by the previous one.
+	 * If overlapsPrevious is false, the whole transcript is new.
+	 */
+	public synchronized String stitch(String transcript, boolean overlapsPrevious) {
+		String[] words = transcript.trim().split("\\s+");
+		if (words.length == 1 && words[0].length() == 0)
+			return "";
+		String[] normalized = new String[words.length];
+		for (int i = 0; i < words.length; i++)
+			normalized[i] = normalize(words[i]);
+
+		int skip = overlapsPrevious ? findOverlap(normalized) : 0;
+
+		if (!overlapsPrevious)
+			tail.clear();
+		for (int i = skip; i < normalized.length; i++)
+			tail.add(normalized[i]);
+		while (tail.size() > maxTailWords)
+			tail.remove(0);
+
+		StringBuilder out = new StringBuilder();
+		for (int i = skip; i < words.length; i++) {
+			if (out.length() > 0)
+				out.append(' ');
+			out.append(words[i]);
+		}
+		return out.toString();
+	}
+
+	/** Forget the previous transcript (e.g. a chunk got no transcript, or audio was skipped). */
+	public synchronized void reset() {
+		tail.clear();
+	}
+
+	private int findOverlap(String[] words) {
+		int max = Math.min(tail.size(), words.length);
+		for (int k = max; k >= 1; k--) {
+			int offset = tail.size() - k;
+			int mismatches = 0;
+			for (int i = 0; i < k && mismatches <= 1; i++) {
+				if (!tail.get(offset + i).equals(words[i])) {
+					boolean edge = (i == 0 || i == k - 1) && k >= 3;
+					mismatches += edge ? 1 : 2;
+				}
+			}
+			if (mismatches <= 1)
+				return k;
+		}
+		return 0;
+	}
+
+	private static String normalize(String word) {
+		StringBuilder sb = new StringBuilder(word.length());
+		for (int i = 0; i < word.length(); i++) {
+			char c = word.charAt(i);
+			if (Character.isLetterOrDigit(c) || c == '\'')
+				sb.append(Character.toLowerCase(c));
+		}
+		return sb.toString();
+	}
+}
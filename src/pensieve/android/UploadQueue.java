@@ -0,0 +1,121 @@
+package pensieve.android;
+
+import java.util.ArrayDeque;
+
+/**
+ * Bounded hand-off between a producer (e.g. the audio timer) and a single uploader thread.
+ *
+ * offer() never blocks. When the queue is full the policy decides what gives: the oldest
+ * item, the new one, or (MERGE) the new item is folded into the newest queued one if the
+ * merger can combine them, falling back to dropping the oldest. Either way memory stays
+ * bounded by capacity items however slow the consumer gets.
+ */
+public class UploadQueue<T> {
+	public enum Policy {
+		DROP_OLDEST, DROP_NEWEST, MERGE
+	}
+
+	/** Combines two adjacent items (older queued first); null if they can't be combined. */
+	public interface Merger<T> {
+		public T merge(T older, T newer);
+	}
+
+	private final ArrayDeque<T> items;
+	private final int capacity;
+	private final Policy policy;
+	private final Merger<T> merger;
+
+	// Counters
+	private int maxDepth = 0;
+	private long offered = 0, taken = 0, droppedOldest = 0, droppedNewest = 0, merged = 0;
+
+	/** @param merger used by the MERGE policy; may be null for the others */
+	public UploadQueue(int capacity, Policy policy, Merger<T> merger) {
+		if (policy == Policy.MERGE && merger == null)
+			throw new IllegalArgumentException("MERGE policy needs a merger");
+		this.capacity = Math.max(1, capacity);
+		this.policy = policy;
+		this.merger = merger;
+		items = new ArrayDeque<T>(this.capacity);
+	}
+
+	/** Queue an item; returns false if it was dropped (DROP_NEWEST on a full queue). */
+	public synchronized boolean offer(T item) {
+		offered++;
+		if (items.size() >= capacity) {
+			if (policy == Policy.DROP_NEWEST) {
+				droppedNewest++;
+				return false;
+			}
+			if (policy == Policy.MERGE) {
+				T combined = merger.merge(items.peekLast(), item);
+				if (combined != null) {
+					items.pollLast();
+					items.addLast(combined);
+					merged++;
+					notifyAll();
+					return true;
+				}
+				// Not adjacent, or too big to combine: drop the oldest as DROP_OLDEST does
+			}
+			items.pollFirst();
+			droppedOldest++;
+		}
+		items.addLast(item);
+		maxDepth = Math.max(maxDepth, items.size());
+		notifyAll();
+		return true;
+	}
+
+	/** Wait up to timeoutMillis for the oldest item; null if none arrived. */
+	public synchronized T take(long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (items.isEmpty()) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				return null;
+			wait(remaining);
+		}
+		taken++;
+		return items.pollFirst();
+	}
+
+	/** The oldest item, or null if the queue is empty. */
+	public synchronized T poll() {
+		T item = items.pollFirst();
+		if (item != null)
+			taken++;
+		return item;
+	}
+
+	public synchronized void clear() {
+		items.clear();
+	}
+
+	public synchronized int getDepth() {
+		return items.size();
+	}
+
+	public synchronized int getMaxDepth() {
+		return maxDepth;
+	}
+
+	public synchronized long getOffered() {
+		return offered;
+	}
+
+	/** Items lost to overflow, under either drop policy. */
+	public synchronized long getDropped() {
+		return droppedOldest + droppedNewest;
+	}
+
+	public synchronized long getMerged() {
+		return merged;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "upload queue (" + policy + "): depth " + items.size() + "/" + capacity + " (max " + maxDepth + "), offered: " + offered + ", taken: " + taken
+				+ ", dropped oldest: " + droppedOldest + ", dropped newest: " + droppedNewest + ", merged: " + merged;
+	}
+}
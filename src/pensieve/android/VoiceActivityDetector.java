@@ -0,0 +1,171 @@
+package pensieve.android;
+
+/**
+ * Lightweight energy / zero-crossing voice activity gate for 16-bit mono PCM chunks.
+ *
+ * Each chunk is split into short frames. A frame counts as speech if its mean absolute
+ * amplitude clears an adaptive noise floor by speechRatio, or if it clears half of that
+ * and has a voiced-like zero-crossing rate (soft vowels). A chunk is sent if it holds at
+ * least minSpeechMillis of speech, or if it starts within hangoverMillis of the last speech
+ * (so trailing words aren't cut). When speech resumes after suppressed chunks,
+ * getPreRollBytes() says how much earlier audio to prepend so the onset isn't clipped.
+ */
+public class VoiceActivityDetector {
+	private final int sampleRate;
+	private int frameMillis = 20;
+	private float speechRatio = 3.0f; // ~10 dB over the noise floor
+	private int minEnergy = 100; // mean |sample| below this is never speech
+	private float minVoicedZcr = 0.02f, maxVoicedZcr = 0.25f; // zero crossings per sample
+	private int minSpeechMillis = 60;
+	private int hangoverMillis = 600;
+	private int preRollMillis = 300;
+
+	private final byte[] scratch; // one frame, for reading out of a ring
+	private float noiseFloor = -1; // mean |sample| of background; < 0 until first frame
+	private long lastSpeechEnd = Long.MIN_VALUE / 2; // absolute byte position
+	private boolean lastSuppressed = false;
+	private boolean onset = false;
+
+	// Counters
+	private long chunksAnalyzed = 0;
+	private long chunksSuppressed = 0;
+	private long bytesSuppressed = 0;
+
+	public VoiceActivityDetector(int sampleRate) {
+		this.sampleRate = sampleRate;
+		scratch = new byte[frameBytes()];
+	}
+
+	public void setSpeechRatio(float speechRatio) {
+		this.speechRatio = speechRatio;
+	}
+
+	public void setMinEnergy(int minEnergy) {
+		this.minEnergy = minEnergy;
+	}
+
+	public void setMinSpeechMillis(int minSpeechMillis) {
+		this.minSpeechMillis = minSpeechMillis;
+	}
+
+	public void setHangoverMillis(int hangoverMillis) {
+		this.hangoverMillis = hangoverMillis;
+	}
+
+	public void setPreRollMillis(int preRollMillis) {
+		this.preRollMillis = preRollMillis;
+	}
+
+	/**
+	 * Decide whether the audio between absolute ring positions start and end should be sent.
+	 * Reads the ring a frame at a time; nothing is allocated.
+	 */
+	public synchronized boolean accept(PcmRingBuffer ring, long start, long end) {
+		int speechFrames = 0;
+		long position = start, speechEnd = 0;
+		while (end - position >= scratch.length) {
+			int n = ring.read(position, scratch, 0, scratch.length);
+			if (n < scratch.length)
+				break;
+			position += n;
+			if (isSpeechFrame(scratch, 0, n)) {
+				speechFrames++;
+				speechEnd = position;
+			}
+		}
+		return decide(start, end, speechFrames, speechEnd);
+	}
+
+	/** Decide whether a chunk of PCM (starting at absolute position start) should be sent. */
+	public synchronized boolean accept(byte[] pcm, int offset, int length, long start) {
+		int frameBytes = scratch.length;
+		int speechFrames = 0;
+		long speechEnd = 0;
+		for (int i = 0; i + frameBytes <= length; i += frameBytes) {
+			if (isSpeechFrame(pcm, offset + i, frameBytes)) {
+				speechFrames++;
+				speechEnd = start + i + frameBytes;
+			}
+		}
+		return decide(start, start + length, speechFrames, speechEnd);
+	}
+
+	/** Bytes of audio to prepend to the chunk just accepted, if it ends a run of suppressed chunks. */
+	public synchronized int getPreRollBytes() {
+		return onset ? msToBytes(preRollMillis) : 0;
+	}
+
+	public synchronized long getChunksAnalyzed() {
+		return chunksAnalyzed;
+	}
+
+	public synchronized long getChunksSuppressed() {
+		return chunksSuppressed;
+	}
+
+	public synchronized long getBytesSuppressed() {
+		return bytesSuppressed;
+	}
+
+	public synchronized float getNoiseFloor() {
+		return noiseFloor;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "VAD: suppressed " + chunksSuppressed + " of " + chunksAnalyzed + " chunks (" + bytesSuppressed + " bytes), noise floor: " + (int) noiseFloor;
+	}
+
+	/** speechEnd is where the chunk's last speech frame ends; the hangover runs from the speech of earlier chunks. */
+	private boolean decide(long start, long end, int speechFrames, long speechEnd) {
+		chunksAnalyzed++;
+		boolean speech = speechFrames * frameMillis >= minSpeechMillis;
+		boolean send = speech || start - lastSpeechEnd < msToBytes(hangoverMillis);
+		if (speech)
+			lastSpeechEnd = Math.max(lastSpeechEnd, speechEnd); // a stray click doesn't start a hangover either
+		onset = send && lastSuppressed;
+		lastSuppressed = !send;
+		if (!send) {
+			chunksSuppressed++;
+			bytesSuppressed += end - start;
+		}
+		return send;
+	}
+
+	private boolean isSpeechFrame(byte[] pcm, int offset, int length) {
+		long sum = 0;
+		int crossings = 0;
+		int samples = length / 2;
+		int prev = 0;
+		for (int i = offset; i < offset + samples * 2; i += 2) {
+			int sample = (short) ((pcm[i] & 0xff) | (pcm[i + 1] << 8)); // little-endian
+			sum += sample < 0 ? -sample : sample;
+			if ((sample ^ prev) < 0)
+				crossings++;
+			prev = sample;
+		}
+		float energy = (float) sum / samples;
+		float zcr = (float) crossings / samples;
+
+		if (noiseFloor < 0)
+			noiseFloor = energy;
+		float threshold = Math.max(minEnergy, noiseFloor * speechRatio);
+		boolean speech = energy > threshold
+				|| (energy > threshold / 2 && zcr >= minVoicedZcr && zcr <= maxVoicedZcr);
+
+		// Track the background: quickly downwards, slowly upwards, and very slowly while someone is talking
+		if (energy < noiseFloor)
+			noiseFloor += (energy - noiseFloor) / 4;
+		else
+			noiseFloor += (energy - noiseFloor) / (speech ? 512 : 32);
+		return speech;
+	}
+
+	private int frameBytes() {
+		return msToBytes(frameMillis);
+	}
+
+	private int msToBytes(int millis) {
+		return (int) ((long) sampleRate * millis / 1000) * 2;
+	}
+}
@@ -0,0 +1,167 @@
+package pensieve.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Executor;
+
+import pensieve.android.ClientEngine;
+import pensieve.android.ClientLog;
+import pensieve.android.FileAudioSource;
+import pensieve.android.ImuRecorder;
+import pensieve.android.LocationTrail;
+import pensieve.android.TaskRuntime;
+import pensieve.android.TextReceivedListener;
+
+/**
+ * Streams a WAV or raw PCM file to a pensieve-speech server (or StandInServer) through the
+ * client's own ClientEngine, as if it were the microphone, and prints each piece of
+ * transcript with the time it arrived. At the end it prints the pipeline's metrics.
+ *
+ * --speed replays the file faster than real time. Chunks are cut in audio time, so the
+ * server sees the same requests either way, only sooner. Run it under a profiler to see
+ * where the client spends its time.
+ *
+ * --location tags requests with a simulated walk: a fix a second (in audio time) from a start
+ * point, at a speed and heading, through the same LocationTrail decimation as on the device.
+ * --imu adds "imu" batches of synthetic accelerometer, gyroscope and magnetometer samples of
+ * someone walking while slowly turning, at the given rate in audio time.
+ */
+public class FileStreamer {
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Options options = new Options("FileStreamer --file speech.wav [options]")
+				.add("file", "", "WAV file (16-bit PCM), or raw 16-bit mono PCM with --rate")
+				.add("rate", 0, "sample rate of a raw PCM file, Hz (0 if --file is a WAV file)")
+				.add("connect", "tcp://127.0.0.1:61445", "server endpoint")
+				.add("speed", 1.0, "replay this many times faster than real time")
+				.add("codecs", "flac,ima_adpcm,pcm16", "audio formats to offer, best first")
+				.add("window", 4, "requests in flight")
+				.add("vad", 1, "skip chunks without speech (0 to send everything)")
+				.add("spool", "", "directory to spool audio in while the server is unreachable")
+				.add("drain", 30, "seconds to wait for replies after the end of the file")
+				.add("location", "", "tag requests with a walk: lat,lon[,speed m/s,heading degrees]")
+				.add("imu", 0, "send synthetic IMU samples at this rate per sensor, Hz (0 for none)")
+				.add("log", "warn", "client log level: verbose, debug, info, warn or error")
+				.parse(args);
+		if (options.getString("file").length() == 0) {
+			System.err.println("No --file given; see --help");
+			System.exit(2);
+		}
+		setLogLevel(options.getString("log"));
+
+		// * Source, and an engine to match its sample rate and speed
+		File file = new File(options.getString("file"));
+		double speed = options.getDouble("speed");
+		FileAudioSource source = options.getInt("rate") > 0 ? new FileAudioSource(file, options.getInt("rate"), speed) : new FileAudioSource(file, speed);
+		TaskRuntime runtime = new TaskRuntime(Math.max(1, Runtime.getRuntime().availableProcessors() - 1), new Executor() {
+			@Override
+			public void execute(Runnable task) {
+				task.run(); // no UI thread here
+			}
+		});
+		final long startedAt = System.nanoTime();
+		ClientEngine engine = new ClientEngine(options.getString("connect"), runtime, new TextReceivedListener() {
+			@Override
+			public void onTextReceived(String str) {
+				System.out.println(String.format("%8.2f s  %s", (System.nanoTime() - startedAt) / 1e9, str));
+			}
+		});
+		engine.setSampleRate(source.getSampleRate());
+		engine.setAudioClockRate(speed);
+		engine.setCodecPreference(options.getList("codecs"));
+		engine.setMaxRequestsInFlight(options.getInt("window"));
+		engine.setVoiceGate(options.getInt("vad") != 0);
+		if (options.getString("spool").length() > 0)
+			engine.setSpoolDirectory(new File(options.getString("spool")));
+		Timer walk = null;
+		if (options.getString("location").length() > 0) {
+			LocationTrail trail = new LocationTrail(256, 25, 45, 60000);
+			engine.setLocationTrail(trail, 60000);
+			walk = startWalk(options.getList("location"), trail, speed);
+		}
+		Timer imu = null;
+		ImuRecorder imuRecorder = null;
+		if (options.getInt("imu") > 0) {
+			imuRecorder = new ImuRecorder(4 * options.getInt("imu"));
+			engine.setImuRecorder(imuRecorder, Math.max(1, (long) (1000 / speed)));
+			imu = startImu(imuRecorder, options.getInt("imu"), speed);
+		}
+
+		// * Stream the file, then cut the rest and wait for the last replies
+		engine.start(source);
+		engine.connect();
+		source.awaitEnd();
+		double audioSeconds = source.getPosition();
+		engine.flush();
+		boolean drained = engine.awaitIdle(options.getInt("drain") * 1000L);
+		double seconds = (System.nanoTime() - startedAt) / 1e9;
+		if (walk != null)
+			walk.cancel();
+		if (imu != null)
+			imu.cancel();
+		engine.stop();
+		engine.disconnect();
+		runtime.shutdown(2000);
+
+		System.out.println(String.format("Streamed %.1f s of audio in %.1f s (%.1fx real time)%s", audioSeconds, seconds, audioSeconds / seconds,
+				drained ? "" : "; gave up waiting for replies"));
+		if (imuRecorder != null)
+			System.out.println("IMU: " + imuRecorder);
+		System.out.println(engine.getMetrics().snapshot());
+		System.exit(drained ? 0 : 1);
+	}
+
+	/** Add a fix to trail every second of audio time, walking from lat,lon at speed m/s along heading. */
+	private static Timer startWalk(String[] spec, final LocationTrail trail, double speed) {
+		final double startLatitude = Double.parseDouble(spec[0]), startLongitude = Double.parseDouble(spec[1]);
+		final double metersPerSecond = spec.length > 2 ? Double.parseDouble(spec[2]) : 0;
+		final double heading = Math.toRadians(spec.length > 3 ? Double.parseDouble(spec[3]) : 0);
+		final double metersPerDegree = 111195; // of latitude, on the sphere MathUtils uses
+		Timer timer = new Timer("walk", true);
+		timer.scheduleAtFixedRate(new TimerTask() {
+			private int seconds = 0;
+
+			@Override
+			public void run() {
+				double meters = metersPerSecond * seconds++;
+				double latitude = startLatitude + meters * Math.cos(heading) / metersPerDegree;
+				double longitude = startLongitude + meters * Math.sin(heading) / (metersPerDegree * Math.cos(Math.toRadians(startLatitude)));
+				trail.add(latitude, longitude, 5, System.currentTimeMillis());
+			}
+		}, 0, Math.max(1, (long) (1000 / speed)));
+		return timer;
+	}
+
+	/** Record synthetic samples at hz in audio time: a walking bounce, and a turn of 6 degrees a second (device Y up, Z facing forward). */
+	private static Timer startImu(final ImuRecorder recorder, final int hz, double speed) {
+		Timer timer = new Timer("imu", true);
+		timer.scheduleAtFixedRate(new TimerTask() {
+			private long sample = 0;
+
+			@Override
+			public void run() {
+				long nanos = sample * 1000000000L / hz;
+				double t = nanos / 1e9, heading = Math.toRadians(6 * t);
+				float bounce = (float) (1.5 * Math.sin(2 * Math.PI * 2 * t)); // two steps a second
+				recorder.onSample(ImuRecorder.ACCELEROMETER, nanos, 0, 9.81f + bounce, 0.3f * bounce);
+				recorder.onSample(ImuRecorder.GYROSCOPE, nanos, 0, (float) Math.toRadians(6), 0.05f * bounce);
+				// 20 uT towards north, which turns the other way, and 40 uT down
+				recorder.onSample(ImuRecorder.MAGNETOMETER, nanos, (float) (20 * Math.sin(heading)), -40, (float) (20 * Math.cos(heading)));
+				sample++;
+			}
+		}, 0, Math.max(1, (long) (1000 / hz / speed)));
+		return timer;
+	}
+
+	private static void setLogLevel(String name) {
+		String[] names = { "verbose", "debug", "info", "warn", "error" };
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equals(name)) {
+				ClientLog.setSink(new ClientLog.ConsoleSink(ClientLog.VERBOSE + i));
+				return;
+			}
+		}
+		throw new IllegalArgumentException("Unknown log level " + name);
+	}
+}
@@ -0,0 +1,127 @@
+package pensieve.tools;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import pensieve.android.ImuBatch;
+
+/**
+ * Round-trips random ImuBatches through ImuBatch.decode() and checks what comes back: every
+ * sample, in order, with timestamps to the microsecond and values to half a quantum. Then
+ * decodes every truncation of each batch, which must fail with IllegalArgumentException
+ * (as StandInServer expects) rather than anything else. Exits with status 1 on a mismatch.
+ */
+public class ImuBatchCheck {
+	private static final float[] QUANTA = { 0.001f, 0.0001f, 0.01f };
+
+	private final Random random;
+	private int failures = 0;
+
+	ImuBatchCheck(long seed) {
+		random = new Random(seed);
+	}
+
+	public static void main(String[] args) {
+		Options options = new Options("ImuBatchCheck [options]")
+				.add("batches", 200, "random batches to round-trip")
+				.add("seed", 1, "random seed")
+				.parse(args);
+		ImuBatchCheck check = new ImuBatchCheck(options.getInt("seed"));
+		int batches = options.getInt("batches");
+		ImuBatch batch = new ImuBatch(); // reused, as on the device
+		long samples = 0;
+		for (int i = 0; i < batches && check.failures < 10; i++)
+			samples += check.roundTrip(batch, i);
+		if (check.failures > 0) {
+			System.out.println("FAILED: " + check.failures + " mismatches");
+			System.exit(1);
+		}
+		System.out.println("OK: " + batches + " batches, " + samples + " samples, every truncation rejected");
+	}
+
+	/** Encode a random batch, decode it and compare; returns the number of samples. */
+	private int roundTrip(ImuBatch batch, int index) {
+		// * Up to three sensors, each with a run of samples (none at all for some)
+		int[] counts = new int[3];
+		final long[][] timestamps = new long[3][];
+		final float[][] values = new float[3][];
+		batch.reset();
+		int total = 0;
+		for (int sensor = 0; sensor < 3; sensor++) {
+			int count = random.nextInt(4) == 0 ? 0 : 1 + random.nextInt(300);
+			timestamps[sensor] = new long[count];
+			values[sensor] = new float[3 * count];
+			long t = Math.abs(random.nextLong() >>> 4);
+			float range = 2000 * QUANTA[sensor] * (1 + random.nextInt(1000));
+			for (int j = 0; j < count; j++) {
+				t += random.nextInt(5) == 0 ? 0 : random.nextInt(20000000); // repeated timestamps too
+				timestamps[sensor][j] = t;
+				for (int k = 0; k < 3; k++)
+					values[sensor][3 * j + k] = (random.nextFloat() * 2 - 1) * range;
+			}
+			batch.addSensor(sensor, QUANTA[sensor], timestamps[sensor], values[sensor], count);
+			counts[sensor] = count;
+			total += count;
+		}
+		if (batch.getSampleCount() != total)
+			fail(index, "sample count " + batch.getSampleCount() + ", expected " + total);
+
+		// * Decode and compare, sample by sample
+		final int[] seen = new int[3];
+		final int batchIndex = index;
+		byte[] data = batch.getData();
+		int length = batch.getLength();
+		int decoded = ImuBatch.decode(data, 0, length, new ImuBatch.Listener() {
+			@Override
+			public void onSample(int sensor, long timestampNanos, float x, float y, float z) {
+				int j = seen[sensor]++;
+				if (j >= timestamps[sensor].length) {
+					fail(batchIndex, "extra sample of sensor " + sensor);
+					return;
+				}
+				long expected = timestamps[sensor][j];
+				long first = timestamps[sensor][0];
+				if (timestampNanos != first + (expected - first) / 1000 * 1000)
+					fail(batchIndex, "sensor " + sensor + " sample " + j + " at " + timestampNanos + " ns, expected " + expected);
+				float[] v = values[sensor];
+				if (!near(x, v[3 * j], QUANTA[sensor]) || !near(y, v[3 * j + 1], QUANTA[sensor]) || !near(z, v[3 * j + 2], QUANTA[sensor]))
+					fail(batchIndex, "sensor " + sensor + " sample " + j + " off by more than half a quantum: " + x + ", " + y + ", " + z);
+			}
+		});
+		if (decoded != total)
+			fail(index, "decoded " + decoded + " samples, expected " + total);
+		for (int sensor = 0; sensor < 3; sensor++) {
+			if (seen[sensor] != counts[sensor])
+				fail(index, "sensor " + sensor + ": " + seen[sensor] + " samples, expected " + counts[sensor]);
+		}
+
+		// * Every truncation is rejected as malformed, with nothing past the cut to read by mistake
+		ImuBatch.Listener ignore = new ImuBatch.Listener() {
+			@Override
+			public void onSample(int sensor, long timestampNanos, float x, float y, float z) {
+			}
+		};
+		for (int cut = 0; cut < length; cut++) {
+			try {
+				ImuBatch.decode(Arrays.copyOf(data, cut), 0, cut, ignore);
+				fail(index, "truncated to " + cut + " of " + length + " bytes, but decoded");
+			} catch (IllegalArgumentException e) {
+				// expected
+			} catch (RuntimeException e) {
+				fail(index, "truncated to " + cut + " of " + length + " bytes: " + e);
+			}
+		}
+		return total;
+	}
+
+	/** Within half a quantum, give or take the float rounding of the decoded value. */
+	private static boolean near(float decoded, float expected, float quantum) {
+		return Math.abs(decoded - expected) <= quantum / 2 + Math.ulp(expected);
+	}
+
+	private void fail(int index, String message) {
+		failures++;
+		if (failures <= 10)
+			System.out.println("batch " + index + ": " + message);
+	}
+}
@@ -0,0 +1,309 @@
+package pensieve.tools;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.zeromq.ZMQ;
+
+import pensieve.android.AudioCodec;
+import pensieve.android.AudioCodecs;
+import pensieve.android.ByteBufferPool;
+import pensieve.android.FramedMessage;
+import pensieve.android.LatencyHistogram;
+import pensieve.android.MessageFramer;
+
+/**
+ * Simulates --clients clients streaming synthetic speech to a pensieve-speech server (or
+ * StandInServer) for --duration seconds, then reports throughput and latency percentiles.
+ *
+ * Each client speaks the pipelined client's protocol: a DEALER socket, a handshake, then
+ * one "stt" request per chunk of --chunk-ms audio framed by the client's MessageFramer and
+ * encoded with the client's codecs, with at most --window requests in flight. Chunks are
+ * made as fast as audio is captured (or --speedup times that) and wait on the client while
+ * the window is full, so a slow server shows up as end-to-end latency. Requests without a
+ * reply after --timeout ms count as timeouts.
+ */
+public class LoadGenerator {
+	private static final long HANDSHAKE_SEQ = -1;
+
+	private final String address;
+	private final int clients;
+	private final int durationSeconds;
+	private final int chunkMillis;
+	private final double speedup;
+	private final int window;
+	private final int timeoutMillis;
+	private final String format;
+	private final int sampleRate;
+
+	// Results, shared by the clients
+	private final LatencyHistogram roundTrips = new LatencyHistogram(); // request sent to reply
+	private final LatencyHistogram endToEnd = new LatencyHistogram(); // chunk captured to reply
+	private final AtomicLong chunksMade = new AtomicLong(), requestsSent = new AtomicLong(), bytesSent = new AtomicLong();
+	private final AtomicLong replies = new AtomicLong(), transcripts = new AtomicLong(), errors = new AtomicLong(), timeouts = new AtomicLong();
+	private final AtomicLong handshakeFailures = new AtomicLong(), backlog = new AtomicLong();
+
+	public LoadGenerator(Options options) {
+		address = options.getString("connect");
+		clients = options.getInt("clients");
+		durationSeconds = options.getInt("duration");
+		chunkMillis = options.getInt("chunk-ms");
+		speedup = options.getDouble("speedup");
+		window = Math.max(1, options.getInt("window"));
+		timeoutMillis = options.getInt("timeout");
+		format = options.getString("format");
+		sampleRate = options.getInt("sample-rate");
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		Options options = new Options("LoadGenerator [options]")
+				.add("connect", "tcp://127.0.0.1:61445", "server endpoint")
+				.add("clients", 8, "concurrent clients")
+				.add("duration", 30, "seconds to stream for")
+				.add("chunk-ms", 2000, "audio per request, ms")
+				.add("speedup", 1.0, "make audio this many times faster than real time")
+				.add("window", 4, "requests in flight per client")
+				.add("timeout", 10000, "ms without a reply before a request counts as timed out")
+				.add("format", "pcm16", "audio codec: pcm16, ima_adpcm or flac")
+				.add("sample-rate", 16000, "Hz")
+				.parse(args);
+		System.exit(new LoadGenerator(options).run() ? 0 : 1);
+	}
+
+	/** Run the load and print the report; false if no client got through the handshake. */
+	public boolean run() throws InterruptedException {
+		if (AudioCodecs.forName(format, sampleRate) == null)
+			throw new IllegalArgumentException("Unknown format " + format);
+		System.out.println("Streaming " + format + " from " + clients + " clients to " + address + " for " + durationSeconds + " s ("
+				+ chunkMillis + " ms chunks, " + speedup + "x real time, window " + window + ")");
+
+		ZMQ.Context context = ZMQ.context(1);
+		final long startedAt = System.currentTimeMillis();
+		final long endAt = startedAt + durationSeconds * 1000L;
+		Thread[] threads = new Thread[clients];
+		for (int i = 0; i < clients; i++) {
+			final Client client = new Client(context, i);
+			threads[i] = new Thread("client-" + i) {
+				@Override
+				public void run() {
+					client.run(endAt);
+				}
+			};
+			threads[i].start();
+		}
+
+		// * Progress, once a second
+		long lastReplies = 0;
+		while (System.currentTimeMillis() < endAt) {
+			Thread.sleep(1000);
+			long r = replies.get();
+			LatencyHistogram.Snapshot rtt = roundTrips.snapshot();
+			System.out.println(String.format("%4d s: %5d replies/s, rtt p50 %s p99 %s, backlog %d chunks", (System.currentTimeMillis() - startedAt) / 1000,
+					r - lastReplies, format(rtt.getPercentile(50)), format(rtt.getPercentile(99)), backlog.get()));
+			lastReplies = r;
+		}
+		for (Thread t : threads)
+			t.join();
+		context.term();
+		report(System.currentTimeMillis() - startedAt);
+		return handshakeFailures.get() < clients;
+	}
+
+	private void report(long elapsedMillis) {
+		double seconds = elapsedMillis / 1000.0;
+		double audioSeconds = replies.get() * chunkMillis / 1000.0;
+		System.out.println();
+		System.out.println(String.format("clients:     %d (%d failed the handshake)", clients, handshakeFailures.get()));
+		System.out.println(String.format("chunks:      %d made, %d sent, %d left unsent", chunksMade.get(), requestsSent.get(), backlog.get()));
+		System.out.println(String.format("replies:     %d (%d with a transcript), %d errors, %d timeouts", replies.get(), transcripts.get(), errors.get(), timeouts.get()));
+		System.out.println(String.format("throughput:  %.1f requests/s, %.1f s of audio/s, %.2f MB/s sent", replies.get() / seconds, audioSeconds / seconds,
+				bytesSent.get() / 1e6 / seconds));
+		System.out.println("round trip:  " + roundTrips.snapshot());
+		System.out.println("end to end:  " + endToEnd.snapshot());
+	}
+
+	private static String format(long micros) {
+		return (micros / 1000) + " ms";
+	}
+
+	/** A request waiting for its reply. */
+	private static class Pending {
+		final FramedMessage message;
+		final long capturedAt, sentAt; // nanoTime
+
+		Pending(FramedMessage message, long capturedAt, long sentAt) {
+			this.message = message;
+			this.capturedAt = capturedAt;
+			this.sentAt = sentAt;
+		}
+	}
+
+	/** One simulated client, on its own thread and socket. */
+	private class Client {
+		private final ZMQ.Socket socket;
+		private final int id;
+		private final AudioCodec codec = AudioCodecs.forName(format, sampleRate);
+		private final MessageFramer framer = new MessageFramer(new ByteBufferPool(window + 2), false, (byte) '\n');
+		private final byte[] speech;
+		private final int chunkBytes = sampleRate * 2 * chunkMillis / 1000;
+		private final byte[] encoded;
+		private final ArrayDeque<Long> captured = new ArrayDeque<Long>(); // capture times of chunks waiting for the window
+		private final Map<Long, Pending> inFlight = new HashMap<Long, Pending>();
+		private long nextSeq = 0;
+		private int speechPosition = 0;
+
+		Client(ZMQ.Context context, int id) {
+			this.id = id;
+			socket = context.socket(ZMQ.DEALER);
+			socket.setLinger(0);
+			speech = syntheticSpeech(sampleRate * 2 * 10, id);
+			encoded = new byte[codec.getMaxEncodedSize(chunkBytes)];
+		}
+
+		void run(long endAt) {
+			socket.connect(address);
+			try {
+				if (!handshake()) {
+					handshakeFailures.incrementAndGet();
+					System.err.println("Client " + id + ": no handshake reply");
+					return;
+				}
+				ZMQ.Poller poller = new ZMQ.Poller(1);
+				poller.register(socket, ZMQ.Poller.POLLIN);
+				long interval = (long) (chunkMillis * 1e6 / speedup); // ns
+				long nextChunkAt = System.nanoTime() + interval;
+				long lastChunkAt = System.nanoTime() + (endAt - System.currentTimeMillis()) * 1000000L;
+
+				// * Stream until the end, then wait for what's still in flight
+				while (true) {
+					long now = System.nanoTime();
+					if (now >= nextChunkAt && nextChunkAt <= lastChunkAt) {
+						captured.addLast(nextChunkAt);
+						chunksMade.incrementAndGet();
+						backlog.incrementAndGet();
+						nextChunkAt += interval;
+					}
+					while (!captured.isEmpty() && inFlight.size() < window)
+						send(captured.pollFirst());
+					expire(now);
+					if (nextChunkAt > lastChunkAt && inFlight.isEmpty())
+						break;
+					long wait = Math.max(0, Math.min(nextChunkAt - now, 50000000L)) / 1000000L; // ms
+					if (poller.poll(wait) > 0 && poller.pollin(0))
+						receive();
+				}
+			} finally {
+				backlog.addAndGet(-captured.size());
+				socket.close();
+			}
+		}
+
+		private boolean handshake() {
+			String header = "{\"type\":\"handshake\",\"value\":\"ping\",\"codecs\":[\"" + format + "\"],\"sample_rate\":" + sampleRate + "}";
+			socket.sendMore(seqFrame(HANDSHAKE_SEQ));
+			socket.sendMore(new byte[0]);
+			socket.send(header.getBytes(), 0);
+			ZMQ.Poller poller = new ZMQ.Poller(1);
+			poller.register(socket, ZMQ.Poller.POLLIN);
+			if (poller.poll(timeoutMillis) <= 0 || !poller.pollin(0))
+				return false;
+			socket.recv(0);
+			while (socket.hasReceiveMore())
+				socket.recv(0);
+			return true;
+		}
+
+		/** Frame the next piece of speech as an stt request and send it. */
+		private void send(long capturedAt) {
+			if (speechPosition + chunkBytes > speech.length)
+				speechPosition = 0;
+			int n = codec.encode(speech, speechPosition, chunkBytes, encoded, 0);
+			speechPosition += chunkBytes;
+			String header = "{\"type\":\"stt\",\"num_bytes\":" + n + ",\"sample_rate\":" + sampleRate + ",\"format\":\"" + format + "\",\"channels\":1}";
+			FramedMessage message = framer.frame(header.getBytes(), n);
+			System.arraycopy(encoded, 0, message.getPayloadArray(), message.getPayloadOffset(), n);
+
+			long seq = nextSeq++;
+			if (socket.sendMore(seqFrame(seq)) && socket.sendMore(new byte[0]) && message.send(socket, 0)) {
+				inFlight.put(seq, new Pending(message, capturedAt, System.nanoTime()));
+				requestsSent.incrementAndGet();
+				bytesSent.addAndGet(n);
+				backlog.decrementAndGet();
+			}
+			else {
+				errors.incrementAndGet();
+				backlog.decrementAndGet();
+			}
+		}
+
+		private void receive() {
+			byte[] seqFrame;
+			while ((seqFrame = socket.recv(ZMQ.DONTWAIT)) != null) {
+				byte[] body = null;
+				while (socket.hasReceiveMore())
+					body = socket.recv(0); // the empty delimiter, then the reply
+				Pending pending = inFlight.remove(seq(seqFrame));
+				if (pending == null || body == null)
+					continue; // timed out already, or the handshake
+				long now = System.nanoTime();
+				roundTrips.record((now - pending.sentAt) / 1000);
+				endToEnd.record((now - pending.capturedAt) / 1000);
+				pending.message.release();
+				replies.incrementAndGet();
+				String reply = new String(body);
+				if (!reply.matches("(?s).*\"status\"\\s*:\\s*\"?(200|ok)\"?.*"))
+					errors.incrementAndGet();
+				else if (reply.contains("\"transcript\""))
+					transcripts.incrementAndGet();
+			}
+		}
+
+		private void expire(long now) {
+			Iterator<Pending> it = inFlight.values().iterator();
+			while (it.hasNext()) {
+				if (now - it.next().sentAt > timeoutMillis * 1000000L) {
+					it.remove(); // its buffers may still be queued in the socket, so they aren't reused
+					timeouts.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	private static byte[] seqFrame(long seq) {
+		byte[] b = new byte[8];
+		for (int i = 7; i >= 0; i--) {
+			b[i] = (byte) seq;
+			seq >>>= 8;
+		}
+		return b;
+	}
+
+	private static long seq(byte[] b) {
+		long seq = 0;
+		for (int i = 0; i < b.length && i < 8; i++)
+			seq = (seq << 8) | (b[i] & 0xff);
+		return seq;
+	}
+
+	/** 16-bit mono PCM that compresses like speech: gliding voiced tones in syllables, with pauses. */
+	static byte[] syntheticSpeech(int bytes, long seed) {
+		Random random = new Random(seed);
+		byte[] pcm = new byte[bytes];
+		double phase = 0, pitch = 120 + random.nextInt(100);
+		for (int i = 0; i < bytes / 2; i++) {
+			int syllable = (i / 3200) % 5; // 200 ms at 16 kHz
+			double envelope = syllable == 4 ? 0.02 : Math.sin(Math.PI * (i % 3200) / 3200.0);
+			pitch += (random.nextDouble() - 0.5) * 0.5;
+			phase += 2 * Math.PI * pitch / 16000;
+			double s = envelope * (0.6 * Math.sin(phase) + 0.3 * Math.sin(3 * phase) + 0.1 * Math.sin(5 * phase)) + 0.01 * random.nextGaussian();
+			int v = (int) (s * 12000);
+			pcm[2 * i] = (byte) v;
+			pcm[2 * i + 1] = (byte) (v >> 8);
+		}
+		return pcm;
+	}
+}
@@ -0,0 +1,60 @@
+package pensieve.tools;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** "--name value" command line options, each with a default and a line of help. */
+class Options {
+	private final String usage;
+	private final Map<String, String> values = new LinkedHashMap<String, String>();
+	private final Map<String, String> help = new LinkedHashMap<String, String>();
+
+	Options(String usage) {
+		this.usage = usage;
+	}
+
+	/** Declare an option; call before parse(). */
+	Options add(String name, Object defaultValue, String description) {
+		values.put(name, String.valueOf(defaultValue));
+		help.put(name, description);
+		return this;
+	}
+
+	/** Parse args over the defaults; prints usage and exits on --help or anything unknown. */
+	Options parse(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String name = args[i].startsWith("--") ? args[i].substring(2) : null;
+			if (name == null || !values.containsKey(name) || i + 1 == args.length) {
+				if (!"--help".equals(args[i]))
+					System.err.println("Bad option: " + args[i]);
+				printUsage();
+				System.exit(2);
+			}
+			values.put(name, args[++i]);
+		}
+		return this;
+	}
+
+	String getString(String name) {
+		return values.get(name);
+	}
+
+	int getInt(String name) {
+		return Integer.parseInt(values.get(name));
+	}
+
+	double getDouble(String name) {
+		return Double.parseDouble(values.get(name));
+	}
+
+	String[] getList(String name) {
+		String value = values.get(name);
+		return value.length() == 0 ? new String[0] : value.split(",");
+	}
+
+	private void printUsage() {
+		System.err.println("Usage: " + usage);
+		for (Map.Entry<String, String> e : help.entrySet())
+			System.err.println(String.format("  --%-16s %s (default: %s)", e.getKey(), e.getValue(), values.get(e.getKey())));
+	}
+}
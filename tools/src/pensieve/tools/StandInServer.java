@@ -0,0 +1,359 @@
+package pensieve.tools;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.zeromq.ZMQ;
+
+import pensieve.android.ImuBatch;
+import pensieve.android.LocationTrail;
+
+/**
+ * Stand-in for the pensieve-speech server, so the client's protocol can be exercised and
+ * measured on a plain JVM. It binds a ROUTER socket, so both the pipelined (DEALER) and the
+ * blocking (REQ) client connect to it, and answers:
+ *
+ *   "handshake"  at once, with the codecs and batch size it accepts
+ *   "stt"        a made-up transcript, or only a status (--status-only)
+ *   "stt_batch"  one such reply per chunk, as "results"
+ *   "metrics"    a status, after printing the reported metrics
+ *   "image"      a status
+ *   "imu"        a status, after decoding the batch (status 400 if it doesn't decode)
+ *
+ * A "location" field on a request adds the fix to that client's LocationTrail at the fix's
+ * own time (a fix seen before, or older than the trail's latest, isn't added again), and the
+ * stats line reports how far the clients have gone and how much they have turned.
+ *
+ * STT replies come after a simulated processing time of latency +- jitter, plus rtf times
+ * the audio's duration, on one of --workers simulated workers; requests queue for a free
+ * worker like on a busy server. A request can also fail (--error-rate, status 500) or get no
+ * reply at all (--drop-rate, so the client times out).
+ *
+ * Everything runs on one thread: replies wait in a queue ordered by due time, and the socket
+ * is polled until the next one is due.
+ */
+public class StandInServer {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Pattern TYPE = Pattern.compile("\"type\"\\s*:\\s*\"([^\"]*)\"");
+	private static final Pattern NUM_BYTES = Pattern.compile("\"num_bytes\"\\s*:\\s*(\\d+)");
+	private static final Pattern SAMPLE_RATE = Pattern.compile("\"sample_rate\"\\s*:\\s*(\\d+)");
+	private static final Pattern LOCATION = Pattern.compile("\"location\"\\s*:\\s*\\{([^}]*)\\}");
+	private static final Pattern LATITUDE = Pattern.compile("\"lat\"\\s*:\\s*(-?[\\d.eE+-]+)");
+	private static final Pattern LONGITUDE = Pattern.compile("\"lon\"\\s*:\\s*(-?[\\d.eE+-]+)");
+	private static final Pattern ACCURACY = Pattern.compile("\"acc\"\\s*:\\s*([\\d.]+)");
+	private static final Pattern TIME = Pattern.compile("\"time_ms\"\\s*:\\s*(\\d+)");
+	private static final String[] WORDS = { "the", "quick", "brown", "fox", "jumps", "over", "a", "lazy", "dog", "while", "we", "talk",
+			"about", "glass", "and", "speech" };
+
+	/** A reply waiting for its due time. */
+	private static class Reply implements Comparable<Reply> {
+		final List<byte[]> envelope;
+		final String body; // null to drop
+		final long dueAt;
+		final long order;
+
+		Reply(List<byte[]> envelope, String body, long dueAt, long order) {
+			this.envelope = envelope;
+			this.body = body;
+			this.dueAt = dueAt;
+			this.order = order;
+		}
+
+		@Override
+		public int compareTo(Reply other) {
+			if (dueAt != other.dueAt)
+				return dueAt < other.dueAt ? -1 : 1;
+			return order < other.order ? -1 : (order == other.order ? 0 : 1);
+		}
+	}
+
+	private final String bind;
+	private final int latencyMillis, jitterMillis;
+	private final double rtf;
+	private final double errorRate, statusOnlyRate, dropRate;
+	private final String[] codecs;
+	private final int maxBatch;
+	private final int statsSeconds;
+	private final long[] workerFreeAt;
+	private final PriorityQueue<Reply> replies = new PriorityQueue<Reply>();
+	private final Random random = new Random(1);
+	private final Map<String, LocationTrail> trails = new HashMap<String, LocationTrail>(); // by client identity
+	private volatile boolean running = true;
+	private long order = 0;
+	private int nextWord = 0;
+
+	// Counters, since the last stats line
+	private long requests = 0, processed = 0, chunks = 0, bytes = 0, sent = 0, errors = 0, dropped = 0, serviceMillis = 0, locations = 0, imuSamples = 0;
+
+	public StandInServer(Options options) {
+		bind = options.getString("bind");
+		latencyMillis = options.getInt("latency");
+		jitterMillis = options.getInt("jitter");
+		rtf = options.getDouble("rtf");
+		errorRate = options.getDouble("error-rate");
+		statusOnlyRate = options.getDouble("status-only");
+		dropRate = options.getDouble("drop-rate");
+		codecs = options.getList("codecs");
+		maxBatch = options.getInt("batch");
+		statsSeconds = options.getInt("stats");
+		workerFreeAt = new long[Math.max(1, options.getInt("workers"))];
+	}
+
+	public static void main(String[] args) {
+		Options options = new Options("StandInServer [options]")
+				.add("bind", "tcp://*:61445", "endpoint to bind")
+				.add("latency", 300, "mean STT processing time, ms")
+				.add("jitter", 100, "processing time varies uniformly by up to this, ms")
+				.add("rtf", 0.0, "extra processing time per second of audio (real-time factor)")
+				.add("workers", 4, "requests processed at once; the rest queue")
+				.add("error-rate", 0.0, "fraction of requests answered with status 500")
+				.add("status-only", 0.0, "fraction of chunks answered with a status but no transcript")
+				.add("drop-rate", 0.0, "fraction of requests never answered")
+				.add("codecs", "pcm16,ima_adpcm,flac", "audio formats accepted in the handshake")
+				.add("batch", 8, "most chunks per stt_batch request (1 to not offer batching)")
+				.add("stats", 5, "seconds between stats lines (0 for none)")
+				.parse(args);
+		new StandInServer(options).run();
+	}
+
+	public void stop() {
+		running = false;
+	}
+
+	public void run() {
+		ZMQ.Context context = ZMQ.context(1);
+		ZMQ.Socket socket = context.socket(ZMQ.ROUTER);
+		socket.setLinger(0);
+		socket.bind(bind);
+		ZMQ.Poller poller = new ZMQ.Poller(1);
+		poller.register(socket, ZMQ.Poller.POLLIN);
+		System.out.println("Stand-in server on " + bind + ": latency " + latencyMillis + "+-" + jitterMillis + " ms, rtf " + rtf + ", " + workerFreeAt.length
+				+ " workers, errors " + errorRate + ", status-only " + statusOnlyRate + ", drops " + dropRate);
+
+		long nextStats = System.currentTimeMillis() + statsSeconds * 1000L;
+		List<byte[]> frames = new ArrayList<byte[]>();
+		while (running) {
+			// * Send what's due
+			long now = System.currentTimeMillis();
+			while (!replies.isEmpty() && replies.peek().dueAt <= now)
+				send(socket, replies.poll());
+
+			// * Wait for requests until the next reply is due
+			long wait = replies.isEmpty() ? 100 : Math.min(100, replies.peek().dueAt - now);
+			if (poller.poll(Math.max(0, wait)) > 0 && poller.pollin(0)) {
+				byte[] frame;
+				while ((frame = socket.recv(ZMQ.DONTWAIT)) != null) {
+					frames.clear();
+					frames.add(frame);
+					while (socket.hasReceiveMore())
+						frames.add(socket.recv(0));
+					handle(frames, System.currentTimeMillis());
+				}
+			}
+
+			if (statsSeconds > 0 && now >= nextStats) {
+				printStats();
+				nextStats = now + statsSeconds * 1000L;
+			}
+		}
+		socket.close();
+		context.term();
+	}
+
+	private void send(ZMQ.Socket socket, Reply reply) {
+		if (reply.body == null)
+			return; // dropped
+		for (byte[] frame : reply.envelope)
+			socket.sendMore(frame);
+		socket.send(reply.body.getBytes(UTF8), 0);
+		sent++;
+	}
+
+	/** One request: [identity][seq (pipelined client only)][empty][header][payload]. */
+	private void handle(List<byte[]> frames, long now) {
+		int empty = 0;
+		while (empty < frames.size() && frames.get(empty).length > 0)
+			empty++;
+		if (empty >= frames.size() - 1)
+			return; // no envelope or no body
+		List<byte[]> envelope = new ArrayList<byte[]>(frames.subList(0, empty + 1));
+
+		// * Header: the first frame, or up to the separator in a combined packet
+		byte[] first = frames.get(empty + 1);
+		int headerLength = 0;
+		while (headerLength < first.length && first[headerLength] != '\n')
+			headerLength++;
+		String header = new String(first, 0, headerLength, UTF8);
+		long payloadBytes = first.length - Math.min(first.length, headerLength + 1);
+		for (int i = empty + 2; i < frames.size(); i++)
+			payloadBytes += frames.get(i).length;
+		requests++;
+		bytes += payloadBytes;
+
+		String type = match(TYPE, header, "");
+		addLocations(envelope.get(0), header, now);
+		if (type.equals("handshake")) {
+			replies.add(new Reply(envelope, handshakeReply(), now, order++));
+			return;
+		}
+		if (type.equals("metrics")) {
+			System.out.println("Client metrics: " + header);
+			replies.add(new Reply(envelope, "{\"status\": 200}", now, order++));
+			return;
+		}
+		if (type.equals("imu")) {
+			replies.add(new Reply(envelope, imuReply(frames, empty + 1, headerLength), now, order++));
+			return;
+		}
+		if (!type.equals("stt") && !type.equals("stt_batch") && !type.equals("image")) {
+			replies.add(new Reply(envelope, "{\"status\": 400, \"error\": \"unknown request type\"}", now, order++));
+			return;
+		}
+
+		// * Simulated processing, on the first free worker
+		int count = type.equals("image") ? 0 : countChunks(header);
+		chunks += count;
+		double audioSeconds = (double) payloadBytes / (2 * Integer.parseInt(match(SAMPLE_RATE, header, "16000")));
+		long service = Math.max(0, latencyMillis + (jitterMillis > 0 ? random.nextInt(2 * jitterMillis + 1) - jitterMillis : 0) + (long) (rtf * audioSeconds * 1000));
+		int worker = 0;
+		for (int i = 1; i < workerFreeAt.length; i++) {
+			if (workerFreeAt[i] < workerFreeAt[worker])
+				worker = i;
+		}
+		long dueAt = Math.max(now, workerFreeAt[worker]) + service;
+		workerFreeAt[worker] = dueAt;
+		processed++;
+		serviceMillis += dueAt - now;
+
+		String body;
+		if (random.nextDouble() < dropRate) {
+			body = null;
+			dropped++;
+		}
+		else if (random.nextDouble() < errorRate) {
+			body = "{\"status\": 500, \"error\": \"simulated failure\"}";
+			errors++;
+		}
+		else if (type.equals("stt_batch")) {
+			StringBuilder sb = new StringBuilder("{\"status\": 200, \"results\": [");
+			for (int i = 0; i < count; i++)
+				sb.append(i > 0 ? ", " : "").append(sttReply(audioSeconds / count));
+			body = sb.append("]}").toString();
+		}
+		else if (type.equals("stt")) {
+			body = sttReply(audioSeconds);
+		}
+		else {
+			body = "{\"status\": 200}";
+		}
+		replies.add(new Reply(envelope, body, dueAt, order++));
+	}
+
+	/** Decode an IMU batch: the rest of the first frame after the header, and any frames after it. */
+	private String imuReply(List<byte[]> frames, int first, int headerLength) {
+		byte[] head = frames.get(first);
+		int length = Math.max(0, head.length - headerLength - 1);
+		for (int i = first + 1; i < frames.size(); i++)
+			length += frames.get(i).length;
+		byte[] payload = new byte[length];
+		int p = Math.max(0, head.length - headerLength - 1);
+		System.arraycopy(head, head.length - p, payload, 0, p);
+		for (int i = first + 1; i < frames.size(); i++) {
+			System.arraycopy(frames.get(i), 0, payload, p, frames.get(i).length);
+			p += frames.get(i).length;
+		}
+		try {
+			imuSamples += ImuBatch.decode(payload, 0, length, new ImuBatch.Listener() {
+				@Override
+				public void onSample(int sensor, long timestampNanos, float x, float y, float z) {
+				}
+			});
+			return "{\"status\": 200}";
+		} catch (IllegalArgumentException e) {
+			return "{\"status\": 400, \"error\": \"" + e.getMessage() + "\"}";
+		}
+	}
+
+	private String handshakeReply() {
+		StringBuilder sb = new StringBuilder("{\"status\": \"ok\", \"codecs\": [");
+		for (int i = 0; i < codecs.length; i++)
+			sb.append(i > 0 ? ", " : "").append('"').append(codecs[i]).append('"');
+		return sb.append("], \"batch\": ").append(maxBatch).append('}').toString();
+	}
+
+	/** A transcript of about 2.5 words per second of audio, or just a status. */
+	private String sttReply(double audioSeconds) {
+		if (random.nextDouble() < statusOnlyRate)
+			return "{\"status\": 200}";
+		StringBuilder transcript = new StringBuilder();
+		int words = Math.max(1, (int) Math.round(audioSeconds * 2.5));
+		for (int i = 0; i < words; i++)
+			transcript.append(i > 0 ? " " : "").append(WORDS[nextWord++ % WORDS.length]);
+		return "{\"status\": 200, \"result\": [{\"alternative\": [{\"transcript\": \"" + transcript + "\", \"confidence\": 0.9}], \"final\": true}], \"result_index\": 0}";
+	}
+
+	/** Add any location fixes in the header to the client's trail. */
+	private void addLocations(byte[] identity, String header, long now) {
+		Matcher m = LOCATION.matcher(header);
+		while (m.find()) {
+			String fix = m.group(1);
+			try {
+				double latitude = Double.parseDouble(match(LATITUDE, fix, ""));
+				double longitude = Double.parseDouble(match(LONGITUDE, fix, ""));
+				String client = toHex(identity);
+				LocationTrail trail = trails.get(client);
+				if (trail == null) {
+					trail = new LocationTrail(4096);
+					trails.put(client, trail);
+				}
+				trail.add(latitude, longitude, Float.parseFloat(match(ACCURACY, fix, "0")), Long.parseLong(match(TIME, fix, String.valueOf(now))));
+				locations++;
+			} catch (NumberFormatException e) {
+				System.out.println("Bad location in " + header);
+			}
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(2 * bytes.length);
+		for (byte b : bytes)
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		return sb.toString();
+	}
+
+	private static int countChunks(String header) {
+		Matcher m = NUM_BYTES.matcher(header);
+		int count = 0;
+		while (m.find())
+			count++;
+		return Math.max(1, count);
+	}
+
+	private static String match(Pattern pattern, String s, String otherwise) {
+		Matcher m = pattern.matcher(s);
+		return m.find() ? m.group(1) : otherwise;
+	}
+
+	private void printStats() {
+		System.out.println(String.format("requests %d (%d chunks, %.1f MB), replies %d, errors %d, dropped %d, waiting %d, mean time to reply %d ms", requests, chunks,
+				bytes / 1e6, sent, errors, dropped, replies.size(), processed > 0 ? serviceMillis / processed : 0));
+		if (imuSamples > 0)
+			System.out.println(String.format("imu samples %d", imuSamples));
+		if (!trails.isEmpty()) {
+			double meters = 0, turns = 0;
+			for (LocationTrail trail : trails.values()) {
+				meters += trail.getLengthMeters();
+				turns += trail.getTurnDegrees(5);
+			}
+			System.out.println(String.format("locations %d; %d client trails, %.0f m and %.0f degrees of turns in all", locations, trails.size(), meters, turns));
+		}
+		requests = processed = chunks = bytes = sent = errors = dropped = serviceMillis = locations = imuSamples = 0;
+	}
+}